@@ -0,0 +1,88 @@
+package org.nypr.cordova.vlcplugin;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * A small benchmark harness: warms a scenario up, then times rounds of it and counts what the
+ * measuring thread allocated. Everything a scenario does must run on the calling thread for
+ * the allocation figures to cover it.
+ */
+abstract class Benchmark {
+
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int ROUNDS = 500;
+
+    private final String name;
+    private final int opsPerRound;
+
+    /**
+     * @param opsPerRound how many operations (events, commands, messages) one round is
+     */
+    Benchmark(String name, int opsPerRound) {
+        this.name = name;
+        this.opsPerRound = opsPerRound;
+    }
+
+    void setUp() throws Exception {
+    }
+
+    abstract void round() throws Exception;
+
+    void tearDown() throws Exception {
+    }
+
+    /**
+     * @return operations the round actually carried out (e.g. results sent), shown next to
+     * the timings so a scenario that quietly stopped doing work stands out
+     */
+    long getResultCount() {
+        return -1;
+    }
+
+    static void header() {
+        System.out.println(String.format(Locale.US, "%-44s %12s %12s %14s %10s", "benchmark", "ns/op", "bytes/op", "ops/s", "results"));
+    }
+
+    void run() throws Exception {
+        setUp();
+        try {
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                round();
+            }
+            long results = getResultCount();
+
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                round();
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocatedAfter = allocatedBytes();
+
+            long ops = (long) ROUNDS * opsPerRound;
+            double nsPerOp = (double) elapsed / ops;
+            String bytesPerOp = allocated >= 0 ? String.format(Locale.US, "%.1f", (double) (allocatedAfter - allocated) / ops) : "n/a";
+            String resultCount = results >= 0 ? String.valueOf(getResultCount() - results) : "";
+            System.out.println(String.format(Locale.US, "%-44s %12.1f %12s %14.0f %10s",
+                    name, nsPerOp, bytesPerOp, 1e9 / nsPerOp, resultCount));
+        } finally {
+            tearDown();
+        }
+    }
+
+    /**
+     * @return bytes allocated by this thread so far, or -1 if the JVM does not tell
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
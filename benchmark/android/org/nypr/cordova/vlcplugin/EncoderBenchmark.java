@@ -0,0 +1,124 @@
+package org.nypr.cordova.vlcplugin;
+
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.videolan.libvlc.MediaPlayer;
+
+import java.lang.reflect.Field;
+
+/**
+ * The cost of turning one player event into a PluginResult: state messages from the
+ * encoder's prebuilt tables against the per-event reflection the plugin used to do, and
+ * the progress and error messages that are still built for every event.
+ */
+public class EncoderBenchmark {
+
+    private static final int MESSAGES = 1000;
+
+    private static final int[] TYPES = {
+            MediaPlayer.Event.Opening,
+            MediaPlayer.Event.Buffering,
+            MediaPlayer.Event.Playing,
+            MediaPlayer.Event.TimeChanged,
+            MediaPlayer.Event.Paused,
+            MediaPlayer.Event.EndReached
+    };
+
+    public static void main(String[] args) throws Exception {
+        Benchmark.header();
+        new Encoding("state, precomputed") {
+            @Override
+            PluginResult encode(int i) throws JSONException {
+                return encoder.stateResult(TYPES[i % TYPES.length]);
+            }
+        }.run();
+        new Encoding("state, reflective (before the encoder)") {
+            private final MediaPlayer.Event[] events = new MediaPlayer.Event[TYPES.length];
+
+            @Override
+            void setUp() {
+                for (int i = 0; i < TYPES.length; i++) {
+                    events[i] = new MediaPlayer.Event(TYPES[i]) {
+                    };
+                }
+            }
+
+            @Override
+            PluginResult encode(int i) {
+                return reflectiveStateResult(events[i % events.length]);
+            }
+        }.run();
+        new Encoding("progress") {
+            @Override
+            PluginResult encode(int i) throws JSONException {
+                return encoder.result(encoder.progressMessage(i * 250, 3600000, -1));
+            }
+        }.run();
+        new Encoding("error") {
+            @Override
+            PluginResult encode(int i) throws JSONException {
+                return encoder.result(encoder.errorMessage(MediaPlayer.Event.EncounteredError));
+            }
+        }.run();
+    }
+
+    private abstract static class Encoding extends Benchmark {
+        final AudioEventEncoder encoder = new AudioEventEncoder();
+        private long results;
+        // read back so the results cannot be optimised away
+        PluginResult last;
+
+        Encoding(String name) {
+            super(name, MESSAGES);
+        }
+
+        abstract PluginResult encode(int i) throws JSONException;
+
+        @Override
+        void round() throws Exception {
+            for (int i = 0; i < MESSAGES; i++) {
+                last = encode(i);
+                if (last != null) {
+                    results++;
+                }
+            }
+        }
+
+        @Override
+        long getResultCount() {
+            return results;
+        }
+    }
+
+    /**
+     * What VLCPlugin.onAudioStateUpdated did for every state event before the encoder.
+     */
+    private static PluginResult reflectiveStateResult(MediaPlayer.Event event) {
+        JSONObject o = new JSONObject();
+        PluginResult result = null;
+        try {
+            o.put("type", "state");
+            o.put("state", AudioEventEncoder.mapState(event.type).ordinal());
+
+            Field[] fields = MediaPlayer.Event.class.getDeclaredFields();
+            for (Field f : fields) {
+                try {
+                    if (f.getInt(event) == event.type) {
+                        o.put("description", f.getName());
+                        break;
+                    }
+                } catch (IllegalAccessException e) {
+                    // skipped, as it was
+                }
+            }
+
+            result = new PluginResult(PluginResult.Status.OK, o);
+        } catch (JSONException e) {
+            result = new PluginResult(PluginResult.Status.ERROR, e.getMessage());
+        } finally {
+            result.setKeepCallback(true);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,225 @@
+package org.nypr.cordova.vlcplugin;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.nypr.cordova.vlcplugin.OnAudioInterruptListener.INTERRUPT_TYPE;
+import org.videolan.libvlc.MediaPlayer;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Replays event storms, command bursts and interrupt sequences through the service on a fake
+ * player and the plugin, down to the PluginResults that would cross the bridge:
+ * Player.Listener.onEvent, VLCPlayerService, VLCPlugin.onAudioStateUpdated, PluginResult.
+ *
+ * The player loop is run by hand on the measuring thread, so the figures cover the service's
+ * work as well as the plugin's.
+ */
+public class PlayerBenchmark {
+
+    private static final String EPISODE = "http://127.0.0.1/episode.mp3";
+
+    public static void main(String[] args) throws Exception {
+        Benchmark.header();
+        new EventStorm(false).run();
+        new EventStorm(true).run();
+        new StateChanges().run();
+        new CommandBurst().run();
+        new Interrupts().run();
+    }
+
+    /**
+     * Counts what would be sent to JS.
+     */
+    private static class Bridge extends CallbackContext {
+        long results;
+
+        Bridge() {
+            super("benchmark", null);
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult pluginResult) {
+            results++;
+        }
+    }
+
+    /**
+     * The plugin bound to a service on a fake player that is playing an episode.
+     */
+    private abstract static class PlayerScenario extends Benchmark {
+        File filesDir;
+        FakePlayerService service;
+        FakePlayer player;
+        VLCPlugin plugin;
+        Bridge bridge;
+
+        PlayerScenario(String name, int opsPerRound) {
+            super(name, opsPerRound);
+        }
+
+        @Override
+        void setUp() throws Exception {
+            filesDir = Files.createTempDirectory("benchmark").toFile();
+            service = new FakePlayerService(filesDir);
+            plugin = new VLCPlugin() {
+                @Override
+                protected List<File> getLocalDirectories() {
+                    // where the service downloads to
+                    return Collections.singletonList(new File(filesDir, "music"));
+                }
+            };
+            bridge = new Bridge();
+            plugin.playerService = service;
+            plugin.connectionCallbackContext = bridge;
+            plugin.commandExecutor.setTarget(service.getScheduler());
+            service.setAudioStateListener(plugin);
+
+            service.startPlaying(EPISODE, "Episode", "Show", null, 0, new JSONObject(), false);
+            service.loop.runUntilIdle();
+            player = service.player();
+            player.setLength(60 * 60 * 1000);
+        }
+
+        @Override
+        void tearDown() {
+            service.tearDown();
+            plugin.onDestroy();
+            LocalStreamProxyTest.delete(filesDir);
+        }
+
+        @Override
+        long getResultCount() {
+            return bridge.results;
+        }
+    }
+
+    /**
+     * Progress with some buffering and position noise, every progress let through (the worst
+     * case for the bridge), sent one by one or in batches.
+     */
+    private static class EventStorm extends PlayerScenario {
+        private static final int EVENTS = 1000;
+        private final boolean batched;
+        private long time;
+
+        EventStorm(boolean batched) {
+            super("event storm" + (batched ? ", batched" : ""), EVENTS);
+            this.batched = batched;
+        }
+
+        @Override
+        void setUp() throws Exception {
+            super.setUp();
+            service.getEventGovernor().configure(new JSONObject().put("progressInterval", 0));
+            if (batched) {
+                plugin.eventBatcher.setWindow(1000);
+            }
+        }
+
+        @Override
+        void round() {
+            for (int i = 0; i < EVENTS; i++) {
+                switch (i % 10) {
+                    case 8:
+                        player.emit(MediaPlayer.Event.PositionChanged);
+                        break;
+                    case 9:
+                        player.buffering(100f);
+                        break;
+                    default:
+                        time += 250;
+                        player.progress(time);
+                        break;
+                }
+            }
+            service.loop.runUntilIdle();
+            if (batched) {
+                plugin.eventBatcher.flush();
+            }
+        }
+    }
+
+    /**
+     * The player pausing and playing on its own, each change a state event.
+     */
+    private static class StateChanges extends PlayerScenario {
+        private static final int CHANGES = 100;
+
+        StateChanges() {
+            super("state changes", CHANGES);
+        }
+
+        @Override
+        void round() {
+            for (int i = 0; i < CHANGES / 2; i++) {
+                player.pause();
+                player.play();
+            }
+            service.loop.runUntilIdle();
+        }
+    }
+
+    /**
+     * Someone scrubbing through a downloaded episode: play, a burst of skips, a jump, pause.
+     */
+    private static class CommandBurst extends PlayerScenario {
+        private static final int SEEKS = 16;
+        private JSONArray playArgs;
+        private final JSONArray seekArgs = new JSONArray().put(15000);
+        private final JSONArray seekToArgs = new JSONArray().put(60000);
+        private final JSONArray noArgs = new JSONArray();
+
+        CommandBurst() {
+            super("command burst", SEEKS + 3);
+        }
+
+        @Override
+        void setUp() throws Exception {
+            super.setUp();
+            File music = new File(filesDir, "music");
+            music.mkdirs();
+            Files.write(new File(music, DownloadManager.fileNameFor(EPISODE)).toPath(), new byte[1024]);
+            playArgs = new JSONArray().put(EPISODE).put(new JSONObject().put("title", "Episode")).put(0).put(new JSONObject());
+        }
+
+        @Override
+        void round() throws Exception {
+            plugin.execute("playfile", playArgs, bridge);
+            service.loop.runUntilIdle();
+            for (int i = 0; i < SEEKS; i++) {
+                plugin.execute("seek", seekArgs, bridge);
+            }
+            plugin.execute("seekto", seekToArgs, bridge);
+            service.loop.runUntilIdle();
+            plugin.execute("pause", noArgs, bridge);
+            service.loop.runUntilIdle();
+        }
+    }
+
+    /**
+     * Calls coming in and ending while an episode plays.
+     */
+    private static class Interrupts extends PlayerScenario {
+        private static final int CALLS = 10;
+
+        Interrupts() {
+            super("interrupts", CALLS * 2);
+        }
+
+        @Override
+        void round() {
+            for (int i = 0; i < CALLS; i++) {
+                plugin.onAudioInterruptDetected(INTERRUPT_TYPE.INTERRUPT_PHONE, true);
+                service.loop.runUntilIdle();
+                plugin.onAudioInterruptCompleted(INTERRUPT_TYPE.INTERRUPT_PHONE, true);
+                service.loop.runUntilIdle();
+            }
+        }
+    }
+}
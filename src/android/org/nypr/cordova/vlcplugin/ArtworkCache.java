@@ -0,0 +1,330 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Artwork for the notification, decoded down to the size it is shown at.
+ *
+ * Bitmaps are kept in a memory LRU bounded by bytes, and the downsampled image is written
+ * to a disk LRU in the cache directory, so artwork seen before (a station logo) is neither
+ * downloaded nor decoded at full size again. All loading happens on one background thread.
+ */
+public class ArtworkCache {
+
+    protected static final String LOG_TAG = "ArtworkCache";
+
+    public interface Callback {
+        void onArtworkLoaded(String url, Bitmap bitmap);
+    }
+
+    private static final int DEFAULT_MEMORY_BYTES = 2 * 1024 * 1024;
+    private static final long DEFAULT_DISK_BYTES = 4 * 1024 * 1024;
+    private static final int TIMEOUT = 15000;
+    private static final int MAX_DOWNLOAD_BYTES = 8 * 1024 * 1024;
+
+    private final File directory;
+    private final int size;
+    private final long maxDiskBytes;
+    private final LruCache<String, Bitmap> memory;
+    // disk file -> size, in access order
+    private final LinkedHashMap<File, Long> files = new LinkedHashMap<File, Long>(16, 0.75f, true);
+    private long diskBytes;
+    private final Set<String> loading = new HashSet<String>();
+    private final ExecutorService io = Executors.newSingleThreadExecutor();
+    private volatile String userAgent;
+
+    /**
+     * @param size the edge in pixels the artwork is shown at
+     */
+    public ArtworkCache(File directory, int size) {
+        this(directory, size, DEFAULT_MEMORY_BYTES, DEFAULT_DISK_BYTES);
+    }
+
+    public ArtworkCache(File directory, int size, int maxMemoryBytes, long maxDiskBytes) {
+        this.directory = directory;
+        this.size = Math.max(1, size);
+        this.maxDiskBytes = maxDiskBytes;
+        this.memory = new LruCache<String, Bitmap>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                index();
+            }
+        });
+    }
+
+    public void setUserAgent(String userAgent) {
+        this.userAgent = userAgent;
+    }
+
+    /**
+     * @return the bitmap if it is in memory, otherwise null
+     */
+    public Bitmap peek(String url) {
+        if (url == null) {
+            return null;
+        }
+        return memory.get(url);
+    }
+
+    /**
+     * Loads the artwork in the background and hands it to the callback, on the loading
+     * thread, unless it could not be loaded. A load already running for the URL is not
+     * started again.
+     */
+    public void load(final String url, final Callback callback) {
+        if (url == null) {
+            return;
+        }
+        synchronized (this) {
+            if (!loading.add(url)) {
+                return;
+            }
+        }
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = null;
+                try {
+                    bitmap = fetch(url);
+                } finally {
+                    synchronized (ArtworkCache.this) {
+                        loading.remove(url);
+                    }
+                }
+                if (bitmap != null) {
+                    callback.onArtworkLoaded(url, bitmap);
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        io.shutdownNow();
+        memory.evictAll();
+    }
+
+    private Bitmap fetch(String url) {
+        Bitmap bitmap = memory.get(url);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        File file = new File(directory, SegmentCache.keyFor(url));
+        if (file.exists()) {
+            bitmap = BitmapFactory.decodeFile(file.getPath(), null);
+            if (bitmap != null) {
+                synchronized (this) {
+                    // touch for the LRU order
+                    files.get(file);
+                }
+                memory.put(url, bitmap);
+                return bitmap;
+            }
+            file.delete();
+        }
+
+        try {
+            byte[] data = download(url);
+            bitmap = decode(data);
+            if (bitmap == null) {
+                throw new IOException("Not an image");
+            }
+            memory.put(url, bitmap);
+            store(file, bitmap);
+            Log.d(LOG_TAG, "Loaded " + url + " at " + bitmap.getWidth() + "x" + bitmap.getHeight());
+            return bitmap;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not load artwork " + url + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private byte[] download(String url) throws IOException {
+        if (url.startsWith("file://") || url.startsWith("/")) {
+            return readFile(new File(url.startsWith("file://") ? url.substring("file://".length()) : url));
+        }
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        InputStream in = null;
+        try {
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setInstanceFollowRedirects(true);
+            if (userAgent != null) {
+                connection.setRequestProperty("User-Agent", userAgent);
+            }
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + status);
+            }
+            in = connection.getInputStream();
+            return readAll(in);
+        } finally {
+            closeQuietly(in);
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Decodes with the largest power of two subsampling that still covers the target size,
+     * then scales the rest of the way, so a big image is never decoded at full size.
+     */
+    private Bitmap decode(byte[] data) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sample = 1;
+        while (options.outWidth / (sample * 2) >= size && options.outHeight / (sample * 2) >= size) {
+            sample *= 2;
+        }
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sample;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (bitmap == null) {
+            return null;
+        }
+
+        float scale = Math.min(1f, size / (float) Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        if (scale < 1f) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                    Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+            }
+            bitmap = scaled;
+        }
+        return bitmap;
+    }
+
+    private void store(File file, Bitmap bitmap) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                return;
+            }
+            synchronized (this) {
+                Long old = files.put(file, file.length());
+                diskBytes += file.length() - (old != null ? old : 0);
+                evict();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not store artwork: " + e.getMessage());
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private void index() {
+        File[] found = directory.listFiles();
+        if (found == null) {
+            return;
+        }
+        List<File> list = new ArrayList<File>();
+        for (File f : found) {
+            if (f.getName().endsWith(".tmp")) {
+                f.delete();
+            } else {
+                list.add(f);
+            }
+        }
+        Collections.sort(list, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        synchronized (this) {
+            for (File f : list) {
+                files.put(f, f.length());
+                diskBytes += f.length();
+            }
+            evict();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<File, Long>> it = files.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && it.hasNext()) {
+            Map.Entry<File, Long> eldest = it.next();
+            diskBytes -= eldest.getValue();
+            it.remove();
+            eldest.getKey().delete();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return readAll(in);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+            if (out.size() > MAX_DOWNLOAD_BYTES) {
+                throw new IOException("Artwork too large");
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package org.nypr.cordova.vlcplugin;
+
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.videolan.libvlc.MediaPlayer;
+
+/**
+ * Encodes player events into the messages sent over the Cordova bridge.
+ *
+ * State messages only depend on the event type, so their JSON and the resulting
+ * PluginResult are built once per type and reused for every event after that. The tables
+ * are plain arrays, so this holds on a JVM benchmark as well as on a device.
+ */
+public class AudioEventEncoder {
+
+    // audio states as seen by the javascript side
+    public enum CordovaMediaState {
+        MEDIA_NONE,
+        MEDIA_STARTING,
+        MEDIA_RUNNING,
+        MEDIA_PAUSED,
+        MEDIA_STOPPED,
+        MEDIA_LOADING,
+        MEDIA_COMPLETED
+    }
+
+    private static final int[] EVENT_TYPES = {
+            MediaPlayer.Event.MediaChanged,
+            MediaPlayer.Event.Opening,
+            MediaPlayer.Event.Buffering,
+            MediaPlayer.Event.Playing,
+            MediaPlayer.Event.Paused,
+            MediaPlayer.Event.Stopped,
+            MediaPlayer.Event.EndReached,
+            MediaPlayer.Event.EncounteredError,
+            MediaPlayer.Event.TimeChanged,
+            MediaPlayer.Event.PositionChanged,
+            MediaPlayer.Event.SeekableChanged,
+            MediaPlayer.Event.PausableChanged,
+            MediaPlayer.Event.Vout,
+            MediaPlayer.Event.ESAdded,
+            MediaPlayer.Event.ESDeleted,
+            MediaPlayer.Event.ESSelected
+    };
+
+    private static final String[] EVENT_DESCRIPTIONS = {
+            "MediaChanged",
+            "Opening",
+            "Buffering",
+            "Playing",
+            "Paused",
+            "Stopped",
+            "EndReached",
+            "EncounteredError",
+            "TimeChanged",
+            "PositionChanged",
+            "SeekableChanged",
+            "PausableChanged",
+            "Vout",
+            "ESAdded",
+            "ESDeleted",
+            "ESSelected"
+    };
+
+    // by index into EVENT_TYPES
+    private final JSONObject[] stateMessages = new JSONObject[EVENT_TYPES.length];
+    private final PluginResult[] stateResults = new PluginResult[EVENT_TYPES.length];
+
+    public AudioEventEncoder() {
+        for (int i = 0; i < EVENT_TYPES.length; i++) {
+            try {
+                JSONObject o = buildStateMessage(EVENT_TYPES[i], EVENT_DESCRIPTIONS[i]);
+                stateMessages[i] = o;
+                stateResults[i] = keep(new PluginResult(PluginResult.Status.OK, o));
+            } catch (JSONException e) {
+                // only string and int values, never happens
+            }
+        }
+    }
+
+    public static String describe(int type) {
+        int i = indexOf(type);
+        return i >= 0 ? EVENT_DESCRIPTIONS[i] : null;
+    }
+
+    public static int typeOf(String description) {
+        for (int i = 0; i < EVENT_DESCRIPTIONS.length; i++) {
+            if (EVENT_DESCRIPTIONS[i].equalsIgnoreCase(description)) {
+                return EVENT_TYPES[i];
+            }
+        }
+        return -1;
+    }
+
+    /*
+        public static final int Opening = 258;
+        public static final int Playing = 260;
+        public static final int Paused = 261;
+        public static final int Stopped = 262;
+        public static final int EndReached = 265;
+        public static final int EncounteredError = 266;
+        public static final int TimeChanged = 267;
+        public static final int PositionChanged = 268;
+     */
+    public static CordovaMediaState mapState(int type) {
+        CordovaMediaState state;
+
+        switch (type) {
+            case MediaPlayer.Event.Opening:
+                state = CordovaMediaState.MEDIA_LOADING;
+                break;
+            case MediaPlayer.Event.Playing:
+                state = CordovaMediaState.MEDIA_RUNNING;
+                break;
+            case MediaPlayer.Event.Paused:
+                state = CordovaMediaState.MEDIA_PAUSED;
+                break;
+            case MediaPlayer.Event.Stopped:
+                state = CordovaMediaState.MEDIA_STOPPED;
+                break;
+            case MediaPlayer.Event.EndReached:
+                state = CordovaMediaState.MEDIA_COMPLETED;
+                break;
+            case MediaPlayer.Event.TimeChanged:
+                state = CordovaMediaState.MEDIA_RUNNING;
+                break;
+            case MediaPlayer.Event.PositionChanged:
+                state = CordovaMediaState.MEDIA_RUNNING;
+                break;
+            default:
+                state = CordovaMediaState.MEDIA_NONE;
+                break;
+        }
+
+        return state;
+    }
+
+    /**
+     * Shared state message for the event type. Must not be modified by the caller.
+     */
+    public JSONObject stateMessage(int type) throws JSONException {
+        int i = indexOf(type);
+        JSONObject o = i >= 0 ? stateMessages[i] : null;
+        if (o == null) {
+            o = buildStateMessage(type, null);
+        }
+        return o;
+    }
+
+    public PluginResult stateResult(int type) throws JSONException {
+        int i = indexOf(type);
+        PluginResult result = i >= 0 ? stateResults[i] : null;
+        if (result == null) {
+            result = keep(new PluginResult(PluginResult.Status.OK, buildStateMessage(type, null)));
+        }
+        return result;
+    }
+
+    /**
+     * @param liveLatency ms behind the live edge of a stream in live mode, otherwise -1 and left out
+     */
+    public JSONObject progressMessage(int progress, int duration, long liveLatency) throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("type", "progress");
+        o.put("progress", progress);
+        o.put("duration", duration);
+        o.put("available", -1);
+        if (liveLatency >= 0) {
+            o.put("liveLatency", liveLatency);
+        }
+        return o;
+    }
+
+    public JSONObject errorMessage(int reason) throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("type", "error");
+        o.put("reason", reason);
+        return o;
+    }
+
+    public PluginResult result(JSONObject o) {
+        return keep(new PluginResult(PluginResult.Status.OK, o));
+    }
+
+    public PluginResult errorResult(String message) {
+        return keep(new PluginResult(PluginResult.Status.ERROR, message));
+    }
+
+    private static int indexOf(int type) {
+        for (int i = 0; i < EVENT_TYPES.length; i++) {
+            if (EVENT_TYPES[i] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static JSONObject buildStateMessage(int type, String description) throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("type", "state");
+        o.put("state", mapState(type).ordinal());
+        if (description != null) {
+            o.put("description", description);
+        }
+        return o;
+    }
+
+    private static PluginResult keep(PluginResult result) {
+        result.setKeepCallback(true);
+        return result;
+    }
+}
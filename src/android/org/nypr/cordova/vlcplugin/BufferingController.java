@@ -0,0 +1,243 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.net.ConnectivityManager;
+import android.telephony.TelephonyManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Picks the LibVLC network caching for each new Media from the connection type and the
+ * recent stall history on that connection type.
+ *
+ * Every connection type starts from its own default. Repeated stalls within a few minutes
+ * grow the buffer for that connection type; a long stretch of playback without a stall
+ * shrinks it again, down to the type's default (or the minimum on wifi), so starts get
+ * quicker where the network allows it.
+ */
+public class BufferingController {
+
+    public static final int CONNECTION_NONE = 0;
+    public static final int CONNECTION_WIFI = 1;
+    public static final int CONNECTION_FAST_MOBILE = 2;
+    public static final int CONNECTION_SLOW_MOBILE = 3;
+    public static final int CONNECTION_OTHER = 4;
+
+    private static final String[] CONNECTION_NAMES = {"none", "wifi", "fastMobile", "slowMobile", "other"};
+    private static final int[] DEFAULT_CACHING = {3000, 1000, 2000, 5000, 3000};
+
+    private static final int DEFAULT_MIN = 300;
+    private static final int DEFAULT_MAX = 10000;
+    private static final float GROW = 1.5f;
+    private static final float SHRINK = 0.8f;
+    private static final long STALL_WINDOW = 5 * 60 * 1000;
+    private static final int STALLS_TO_GROW = 2;
+    private static final long STABLE_PLAYBACK = 3 * 60 * 1000;
+    private static final int HISTORY_SIZE = 16;
+
+    private boolean enabled = true;
+    private int min = DEFAULT_MIN;
+    private int max = DEFAULT_MAX;
+    private final int[] base = DEFAULT_CACHING.clone();
+    private final int[] caching = DEFAULT_CACHING.clone();
+    private int connection = CONNECTION_OTHER;
+
+    // ring of recent stalls: when, and on which connection type
+    private final long[] stallTimes = new long[HISTORY_SIZE];
+    private final int[] stallConnections = new int[HISTORY_SIZE];
+    private int stallCount;
+
+    // current media
+    private int sessionConnection = -1;
+    private int sessionStalls;
+    private long playedTime;
+    private long playingSince = -1;
+    private boolean started;
+    private boolean stalled;
+    private boolean seeking;
+    private int lastChoice = -1;
+
+    public static int classify(int type, int subtype) {
+        if (type == ConnectivityManager.TYPE_WIFI || type == ConnectivityManager.TYPE_ETHERNET) {
+            return CONNECTION_WIFI;
+        }
+        if (type != ConnectivityManager.TYPE_MOBILE) {
+            return CONNECTION_OTHER;
+        }
+        switch (subtype) {
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+            case TelephonyManager.NETWORK_TYPE_CDMA:
+            case TelephonyManager.NETWORK_TYPE_1xRTT:
+            case TelephonyManager.NETWORK_TYPE_UMTS:
+            case TelephonyManager.NETWORK_TYPE_EVDO_0:
+            case TelephonyManager.NETWORK_TYPE_EVDO_A:
+            case TelephonyManager.NETWORK_TYPE_HSDPA:
+            case TelephonyManager.NETWORK_TYPE_HSUPA:
+            case TelephonyManager.NETWORK_TYPE_HSPA:
+                return CONNECTION_SLOW_MOBILE;
+            default:
+                // LTE and whatever came after it
+                return CONNECTION_FAST_MOBILE;
+        }
+    }
+
+    /*
+        { "enabled": true, "min": 300, "max": 10000 }
+     */
+    public synchronized void configure(JSONObject config) {
+        if (config == null) {
+            return;
+        }
+        enabled = config.optBoolean("enabled", enabled);
+        min = Math.max(0, config.optInt("min", min));
+        max = Math.max(min, config.optInt("max", max));
+        for (int i = 0; i < caching.length; i++) {
+            caching[i] = clamp(caching[i]);
+        }
+    }
+
+    /**
+     * Sets the starting point for every connection type, e.g. from a profile with a fixed
+     * network caching. A value of 0 or less goes back to the built in defaults.
+     */
+    public synchronized void setBase(int networkCaching) {
+        for (int i = 0; i < base.length; i++) {
+            base[i] = networkCaching > 0 ? networkCaching : DEFAULT_CACHING[i];
+            caching[i] = clamp(base[i]);
+        }
+    }
+
+    public synchronized void setConnection(int connection) {
+        this.connection = connection;
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Chooses the network caching for a new Media, closing out the media before it.
+     *
+     * @return the network caching in ms, or -1 if the controller is off
+     */
+    public synchronized int choose(long now) {
+        startSession(now);
+        return peek();
+    }
+
+    /**
+     * Starts tracking a new media without choosing for it, for media created ahead of time.
+     */
+    public synchronized void startSession(long now) {
+        endSession(now);
+        sessionConnection = connection;
+    }
+
+    /**
+     * @return the network caching for the current connection type, or -1 if the controller is off
+     */
+    public synchronized int peek() {
+        if (!enabled) {
+            return -1;
+        }
+        lastChoice = caching[connection];
+        return lastChoice;
+    }
+
+    public synchronized void onPlaying(long now) {
+        started = true;
+        if (playingSince < 0) {
+            playingSince = now;
+        }
+    }
+
+    public synchronized void onPaused(long now) {
+        if (playingSince >= 0) {
+            playedTime += now - playingSince;
+            playingSince = -1;
+        }
+    }
+
+    public synchronized void onSeek() {
+        // the buffering that follows a seek is not a stall
+        seeking = true;
+    }
+
+    /**
+     * @return true if this started a stall
+     */
+    public synchronized boolean onBuffering(float percent, long now) {
+        if (percent >= 100f) {
+            stalled = false;
+            seeking = false;
+            return false;
+        }
+        if (!started || stalled || seeking || sessionConnection < 0) {
+            // still opening, or already counted
+            return false;
+        }
+        stalled = true;
+        sessionStalls++;
+
+        int slot = stallCount % HISTORY_SIZE;
+        stallTimes[slot] = now;
+        stallConnections[slot] = sessionConnection;
+        stallCount++;
+
+        if (recentStalls(sessionConnection, now) >= STALLS_TO_GROW) {
+            caching[sessionConnection] = clamp((int) (caching[sessionConnection] * GROW));
+        }
+        return true;
+    }
+
+    public synchronized int getConnection() {
+        return connection;
+    }
+
+    public static String connectionName(int connection) {
+        return connection >= 0 && connection < CONNECTION_NAMES.length ? CONNECTION_NAMES[connection] : "unknown";
+    }
+
+    public synchronized JSONObject toJSON(long now) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("enabled", enabled);
+        json.put("connection", connectionName(connection));
+        json.put("networkCaching", lastChoice);
+        json.put("recentStalls", recentStalls(connection, now));
+        JSONObject perConnection = new JSONObject();
+        for (int i = 0; i < caching.length; i++) {
+            perConnection.put(CONNECTION_NAMES[i], caching[i]);
+        }
+        json.put("caching", perConnection);
+        return json;
+    }
+
+    private void endSession(long now) {
+        onPaused(now);
+        if (sessionConnection >= 0 && sessionStalls == 0 && playedTime >= STABLE_PLAYBACK) {
+            int floor = sessionConnection == CONNECTION_WIFI ? min : base[sessionConnection];
+            caching[sessionConnection] = clamp(Math.max(floor, (int) (caching[sessionConnection] * SHRINK)));
+        }
+        sessionConnection = -1;
+        sessionStalls = 0;
+        playedTime = 0;
+        started = false;
+        stalled = false;
+        seeking = false;
+    }
+
+    private int recentStalls(int connection, long now) {
+        int count = 0;
+        for (int i = 0; i < Math.min(stallCount, HISTORY_SIZE); i++) {
+            if (stallConnections[i] == connection && now - stallTimes[i] <= STALL_WINDOW) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int clamp(int value) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
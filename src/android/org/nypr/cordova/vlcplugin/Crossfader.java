@@ -0,0 +1,119 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+/**
+ * Fades from one player to the next at the end of a queue item.
+ *
+ * The service starts the next item on a second player (on the same LibVLC) at volume 0
+ * shortly before the current one ends. Once it plays, the two volumes are ramped with equal
+ * power curves until the outgoing item ends, then the outgoing player is stopped and
+ * released, so there are never more than two players and the second only lives for the
+ * length of the fade.
+ *
+ * Call from the player thread.
+ */
+public class Crossfader {
+
+    protected static final String LOG_TAG = "Crossfader";
+
+    private static final long DEFAULT_DURATION = 3000;
+    private static final long MIN_FADE = 250;
+    private static final long STEP = 50;
+    private static final int FULL_VOLUME = 100;
+
+    private final PlayerScheduler scheduler;
+    private boolean enabled;
+    private long duration = DEFAULT_DURATION;
+
+    private Player outgoing;
+    private Player incoming;
+    private PlayerScheduler.Task task;
+    private long startedAt;
+    private long length;
+
+    public Crossfader(PlayerScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /*
+        { "enabled": false, "duration": 3000 }
+
+        duration (ms) is how long before the end of an item the next one starts
+     */
+    public synchronized void configure(JSONObject config) {
+        if (config == null) {
+            return;
+        }
+        enabled = config.optBoolean("enabled", enabled);
+        duration = Math.max(MIN_FADE, config.optLong("duration", duration));
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized long getDuration() {
+        return duration;
+    }
+
+    public boolean isFading() {
+        return task != null;
+    }
+
+    /**
+     * Ramps the incoming player up and the outgoing one down.
+     *
+     * @param remaining what is left of the outgoing item in ms, the fade ends with it
+     */
+    public void fade(Player outgoing, Player incoming, long remaining) {
+        finish();
+        this.outgoing = outgoing;
+        this.incoming = incoming;
+        this.length = Math.max(MIN_FADE, Math.min(getDuration(), remaining));
+        this.startedAt = SystemClock.elapsedRealtime();
+        Log.d(LOG_TAG, "Crossfading over " + length + "ms");
+
+        task = scheduler.scheduleAtFixedRate("crossfade", new Runnable() {
+            @Override
+            public void run() {
+                step();
+            }
+        }, 0, STEP);
+    }
+
+    /**
+     * Ends a running fade at once: the outgoing player is released and the incoming one is
+     * left at full volume.
+     */
+    public void finish() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        if (outgoing != null) {
+            outgoing.stop();
+            outgoing.release();
+            outgoing = null;
+        }
+        if (incoming != null) {
+            incoming.setVolume(FULL_VOLUME);
+            incoming = null;
+        }
+    }
+
+    private void step() {
+        float progress = Math.min(1f, (SystemClock.elapsedRealtime() - startedAt) / (float) length);
+        if (progress >= 1f) {
+            finish();
+            return;
+        }
+        // equal power, so the sum does not dip in the middle
+        double angle = progress * Math.PI / 2;
+        incoming.setVolume((int) Math.round(Math.sin(angle) * FULL_VOLUME));
+        outgoing.setVolume((int) Math.round(Math.cos(angle) * FULL_VOLUME));
+    }
+}
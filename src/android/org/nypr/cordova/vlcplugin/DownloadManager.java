@@ -0,0 +1,629 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Downloads remote files into the music directory, where playfile looks for them.
+ *
+ * A file is fetched as several HTTP Range chunks in parallel into a ".part" file. Progress
+ * of every chunk is saved in a ".state" file, so a download picks up where it left off after
+ * a network loss or a restart. Once the length checks out the ".part" file is renamed to its
+ * final name, so a partial file is never mistaken for a complete one.
+ */
+public class DownloadManager {
+
+    protected static final String LOG_TAG = "DownloadManager";
+
+    public interface Listener {
+        void onDownloadUpdated(JSONObject status);
+    }
+
+    public static final String STATE_NONE = "none";
+    public static final String STATE_RUNNING = "running";
+    public static final String STATE_WAITING = "waiting";
+    public static final String STATE_COMPLETE = "complete";
+    public static final String STATE_FAILED = "failed";
+    public static final String STATE_CANCELLED = "cancelled";
+
+    private static final int DEFAULT_CHUNKS = 4;
+    private static final int MAX_CHUNKS = 8;
+    private static final long MIN_CHUNK_SIZE = 512 * 1024;
+    private static final int MAX_RETRIES = 5;
+    private static final long RETRY_DELAY = 2000;
+    private static final long PROGRESS_INTERVAL = 500;
+    private static final int TIMEOUT = 15000;
+    private static final int STATE_VERSION = 1;
+
+    private final File directory;
+    private final Listener listener;
+    private final ExecutorService downloads = Executors.newCachedThreadPool();
+    private final ExecutorService chunks = Executors.newCachedThreadPool();
+    private final Map<String, Download> active = new HashMap<String, Download>();
+    private final Object connectivityLock = new Object();
+    private volatile boolean connected = true;
+    private volatile String userAgent;
+
+    public DownloadManager(File directory, Listener listener) {
+        this.directory = directory;
+        this.listener = listener;
+    }
+
+    public void setUserAgent(String userAgent) {
+        this.userAgent = userAgent;
+    }
+
+    /**
+     * Called from the service's connectivity receiver. Chunks that fail while the network is
+     * gone wait for it to come back instead of using up their retries.
+     */
+    public void onConnectivityChanged(boolean connected) {
+        synchronized (connectivityLock) {
+            this.connected = connected;
+            connectivityLock.notifyAll();
+        }
+    }
+
+    public static String fileNameFor(String url) {
+        return VLCPlugin.stripArgumentsFromFilename(new File(url).getName());
+    }
+
+    public File targetFor(String url) {
+        return new File(directory, fileNameFor(url));
+    }
+
+    public synchronized boolean start(String url, int chunkCount) {
+        if (active.containsKey(url)) {
+            return true;
+        }
+        if (targetFor(url).exists()) {
+            notifyListener(status(url));
+            return true;
+        }
+        Download download = new Download(url, Math.max(1, Math.min(chunkCount > 0 ? chunkCount : DEFAULT_CHUNKS, MAX_CHUNKS)));
+        active.put(url, download);
+        download.future = downloads.submit(download);
+        return true;
+    }
+
+    public synchronized boolean cancel(String url) {
+        Download download = active.remove(url);
+        if (download == null) {
+            // nothing running, drop whatever was left behind
+            deleteQuietly(partFile(targetFor(url)));
+            deleteQuietly(stateFile(targetFor(url)));
+            return false;
+        }
+        download.cancelled = true;
+        download.future.cancel(true);
+        return true;
+    }
+
+    public synchronized Download get(String url) {
+        return active.get(url);
+    }
+
+    /**
+     * @return true if an earlier download of the url stopped part way and can be resumed
+     */
+    public boolean hasPartial(String url) {
+        File target = targetFor(url);
+        return !target.exists() && stateFile(target).exists() && partFile(target).exists();
+    }
+
+    public JSONObject status(String url) {
+        Download download = get(url);
+        if (download != null) {
+            return download.toJSON();
+        }
+
+        File target = targetFor(url);
+        String state = STATE_NONE;
+        long bytes = 0;
+        long total = -1;
+        if (target.exists()) {
+            state = STATE_COMPLETE;
+            bytes = total = target.length();
+        } else {
+            ChunkState saved = ChunkState.read(stateFile(target));
+            if (saved != null) {
+                state = STATE_WAITING;
+                total = saved.total;
+                bytes = saved.downloaded();
+            }
+        }
+        return statusJSON(url, state, bytes, total, null);
+    }
+
+    public void shutdown() {
+        synchronized (this) {
+            for (Download download : active.values()) {
+                download.future.cancel(true);
+            }
+            active.clear();
+        }
+        downloads.shutdownNow();
+        chunks.shutdownNow();
+    }
+
+    private synchronized void finished(Download download) {
+        if (active.get(download.url) == download) {
+            active.remove(download.url);
+        }
+    }
+
+    private void notifyListener(JSONObject status) {
+        if (listener != null) {
+            listener.onDownloadUpdated(status);
+        }
+    }
+
+    private void awaitConnectivity() throws InterruptedException {
+        synchronized (connectivityLock) {
+            while (!connected) {
+                connectivityLock.wait();
+            }
+        }
+    }
+
+    private static File partFile(File target) {
+        return new File(target.getPath() + ".part");
+    }
+
+    private static File stateFile(File target) {
+        return new File(target.getPath() + ".state");
+    }
+
+    private static JSONObject statusJSON(String url, String state, long bytes, long total, String error) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("type", "download");
+            json.put("url", url);
+            json.put("state", state);
+            json.put("bytes", bytes);
+            json.put("total", total);
+            if (error != null) {
+                json.put("error", error);
+            }
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage());
+        }
+        return json;
+    }
+
+    private static void deleteQuietly(File f) {
+        if (f.exists() && !f.delete()) {
+            Log.w(LOG_TAG, "Could not delete " + f);
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Byte ranges of a download and how much of each has been written.
+     */
+    static class ChunkState {
+        final long total;
+        final long[] starts;
+        final long[] ends;
+        final AtomicLongArray done;
+
+        ChunkState(long total, long[] starts, long[] ends, long[] done) {
+            this.total = total;
+            this.starts = starts;
+            this.ends = ends;
+            this.done = new AtomicLongArray(done);
+        }
+
+        static ChunkState split(long total, int count) {
+            if (total <= 0) {
+                // unknown length, one chunk reading to the end
+                return new ChunkState(total, new long[]{0}, new long[]{-1}, new long[1]);
+            }
+            count = (int) Math.max(1, Math.min(count, total / MIN_CHUNK_SIZE));
+            long[] starts = new long[count];
+            long[] ends = new long[count];
+            long size = total / count;
+            for (int i = 0; i < count; i++) {
+                starts[i] = i * size;
+                ends[i] = i == count - 1 ? total - 1 : (i + 1) * size - 1;
+            }
+            return new ChunkState(total, starts, ends, new long[count]);
+        }
+
+        int count() {
+            return starts.length;
+        }
+
+        long downloaded() {
+            long sum = 0;
+            for (int i = 0; i < done.length(); i++) {
+                sum += done.get(i);
+            }
+            return sum;
+        }
+
+        boolean isChunkComplete(int i) {
+            return ends[i] >= 0 && starts[i] + done.get(i) > ends[i];
+        }
+
+        /**
+         * @return how many bytes starting at position have been written, 0 if position is not downloaded yet
+         */
+        long availableAt(long position) {
+            for (int i = 0; i < starts.length; i++) {
+                if (position >= starts[i] && (ends[i] < 0 || position <= ends[i])) {
+                    return Math.max(0, starts[i] + done.get(i) - position);
+                }
+            }
+            return 0;
+        }
+
+        static ChunkState read(File f) {
+            if (!f.exists()) {
+                return null;
+            }
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+                if (in.readInt() != STATE_VERSION) {
+                    return null;
+                }
+                long total = in.readLong();
+                int count = in.readInt();
+                long[] starts = new long[count];
+                long[] ends = new long[count];
+                long[] done = new long[count];
+                for (int i = 0; i < count; i++) {
+                    starts[i] = in.readLong();
+                    ends[i] = in.readLong();
+                    done[i] = in.readLong();
+                }
+                return new ChunkState(total, starts, ends, done);
+            } catch (IOException e) {
+                return null;
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        void write(File f) throws IOException {
+            File tmp = new File(f.getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(STATE_VERSION);
+                out.writeLong(total);
+                out.writeInt(starts.length);
+                for (int i = 0; i < starts.length; i++) {
+                    out.writeLong(starts[i]);
+                    out.writeLong(ends[i]);
+                    out.writeLong(done.get(i));
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(f)) {
+                throw new IOException("Could not replace " + f);
+            }
+        }
+    }
+
+    public class Download implements Runnable {
+        final String url;
+        final int chunkCount;
+        final File target;
+        final File part;
+        final File stateFile;
+        volatile ChunkState chunkState;
+        volatile String state = STATE_RUNNING;
+        volatile boolean cancelled;
+        Future<?> future;
+        final List<Future<?>> running = new ArrayList<Future<?>>();
+
+        Download(String url, int chunkCount) {
+            this.url = url;
+            this.chunkCount = chunkCount;
+            this.target = targetFor(url);
+            this.part = partFile(target);
+            this.stateFile = stateFile(target);
+        }
+
+        public File getPartFile() {
+            return part;
+        }
+
+        public File getTarget() {
+            return target;
+        }
+
+        public long getTotal() {
+            ChunkState s = chunkState;
+            return s != null ? s.total : -1;
+        }
+
+        /**
+         * @return how many bytes starting at position are already on disk
+         */
+        public long availableAt(long position) {
+            ChunkState s = chunkState;
+            return s != null ? s.availableAt(position) : 0;
+        }
+
+        public boolean isComplete() {
+            return STATE_COMPLETE.equals(state);
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        JSONObject toJSON() {
+            ChunkState s = chunkState;
+            return statusJSON(url, state, s != null ? s.downloaded() : 0, s != null ? s.total : -1, null);
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Could not create " + directory);
+                }
+
+                awaitConnectivity();
+                long total = probeLength();
+
+                ChunkState saved = ChunkState.read(stateFile);
+                if (saved != null && saved.total == total && total > 0 && part.exists()) {
+                    Log.d(LOG_TAG, "Resuming " + url + " at " + saved.downloaded() + "/" + total);
+                    chunkState = saved;
+                } else {
+                    chunkState = ChunkState.split(total, total > 0 ? chunkCount : 1);
+                    deleteQuietly(part);
+                }
+
+                if (total > 0) {
+                    RandomAccessFile file = new RandomAccessFile(part, "rw");
+                    try {
+                        file.setLength(total);
+                    } finally {
+                        file.close();
+                    }
+                }
+
+                final ChunkState s = chunkState;
+                for (int i = 0; i < s.count(); i++) {
+                    if (!s.isChunkComplete(i)) {
+                        final int chunk = i;
+                        running.add(chunks.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                downloadChunk(s, chunk);
+                            }
+                        }));
+                    }
+                }
+
+                // report progress and keep the state file current until all chunks are done
+                long lastSaved = 0;
+                while (!allDone()) {
+                    Thread.sleep(PROGRESS_INTERVAL);
+                    notifyListener(toJSON());
+                    long now = System.currentTimeMillis();
+                    if (now - lastSaved > PROGRESS_INTERVAL * 2) {
+                        s.write(stateFile);
+                        lastSaved = now;
+                    }
+                }
+
+                verifyAndCommit(s);
+                state = STATE_COMPLETE;
+                notifyListener(toJSON());
+            } catch (InterruptedException e) {
+                stopChunks();
+                state = cancelled ? STATE_CANCELLED : STATE_WAITING;
+                if (cancelled) {
+                    deleteQuietly(part);
+                    deleteQuietly(stateFile);
+                } else {
+                    saveState();
+                }
+                notifyListener(toJSON());
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Download of " + url + " failed", e);
+                stopChunks();
+                saveState();
+                state = STATE_FAILED;
+                notifyListener(statusJSON(url, state, chunkState != null ? chunkState.downloaded() : 0, getTotal(), e.getMessage()));
+            } finally {
+                finished(this);
+            }
+        }
+
+        /**
+         * @throws ExecutionException as soon as one chunk has given up
+         */
+        private boolean allDone() throws InterruptedException, ExecutionException {
+            boolean done = true;
+            for (Future<?> f : running) {
+                if (f.isDone()) {
+                    f.get();
+                } else {
+                    done = false;
+                }
+            }
+            return done;
+        }
+
+        private void stopChunks() {
+            for (Future<?> f : running) {
+                f.cancel(true);
+            }
+        }
+
+        private void saveState() {
+            if (chunkState != null && chunkState.total > 0) {
+                try {
+                    chunkState.write(stateFile);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Could not save download state: " + e.getMessage());
+                }
+            }
+        }
+
+        private long probeLength() throws IOException {
+            HttpURLConnection connection = open("bytes=0-0");
+            try {
+                int status = connection.getResponseCode();
+                if (status == HttpURLConnection.HTTP_PARTIAL) {
+                    String contentRange = connection.getHeaderField("Content-Range");
+                    if (contentRange != null && contentRange.lastIndexOf('/') >= 0) {
+                        String size = contentRange.substring(contentRange.lastIndexOf('/') + 1).trim();
+                        if (!size.equals("*")) {
+                            return Long.parseLong(size);
+                        }
+                    }
+                    return -1;
+                } else if (status == HttpURLConnection.HTTP_OK) {
+                    // no range support, the file has to come in one piece
+                    return -1;
+                }
+                throw new IOException("HTTP " + status + " for " + url);
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        private void downloadChunk(ChunkState s, int chunk) {
+            int failures = 0;
+            byte[] buffer = new byte[32 * 1024];
+
+            while (!s.isChunkComplete(chunk) && !Thread.currentThread().isInterrupted()) {
+                HttpURLConnection connection = null;
+                InputStream in = null;
+                RandomAccessFile out = null;
+                try {
+                    awaitConnectivity();
+
+                    long from = s.starts[chunk] + s.done.get(chunk);
+                    connection = open(s.ends[chunk] >= 0 ? "bytes=" + from + "-" + s.ends[chunk] : null);
+                    int status = connection.getResponseCode();
+                    if (status != HttpURLConnection.HTTP_PARTIAL && !(status == HttpURLConnection.HTTP_OK && from == 0)) {
+                        throw new IOException("HTTP " + status + " for chunk " + chunk);
+                    }
+
+                    in = connection.getInputStream();
+                    out = new RandomAccessFile(part, "rw");
+                    if (s.ends[chunk] < 0) {
+                        // unknown length always starts over, drop what an earlier attempt left
+                        out.setLength(0);
+                    }
+                    out.seek(from);
+
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            return;
+                        }
+                        long remaining = s.ends[chunk] >= 0 ? s.ends[chunk] - (s.starts[chunk] + s.done.get(chunk)) + 1 : read;
+                        int count = (int) Math.min(read, remaining);
+                        out.write(buffer, 0, count);
+                        s.done.addAndGet(chunk, count);
+                        failures = 0;
+                        if (count < read) {
+                            break;
+                        }
+                    }
+
+                    if (s.ends[chunk] < 0) {
+                        // unknown length: the end of the body is the end of the file
+                        s.ends[chunk] = s.starts[chunk] + s.done.get(chunk) - 1;
+                    } else if (!s.isChunkComplete(chunk)) {
+                        throw new IOException("Chunk " + chunk + " ended early");
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    if (s.ends[chunk] < 0) {
+                        // without a length there is nothing to resume from
+                        s.done.set(chunk, 0);
+                    }
+                    if (connected && ++failures > MAX_RETRIES) {
+                        throw new RuntimeException(e);
+                    }
+                    Log.d(LOG_TAG, "Chunk " + chunk + " of " + url + " interrupted, retrying: " + e.getMessage());
+                    try {
+                        Thread.sleep(RETRY_DELAY * Math.max(1, failures));
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                } finally {
+                    closeQuietly(in);
+                    closeQuietly(out);
+                    if (connection != null) {
+                        connection.disconnect();
+                    }
+                }
+            }
+        }
+
+        private void verifyAndCommit(ChunkState s) throws IOException {
+            long expected = s.total > 0 ? s.total : s.ends[0] + 1;
+            if (s.downloaded() != expected || part.length() != expected) {
+                throw new IOException("Length mismatch: " + part.length() + " != " + expected);
+            }
+            if (!part.renameTo(target)) {
+                throw new IOException("Could not move " + part + " to " + target);
+            }
+            deleteQuietly(stateFile);
+            target.setReadable(true, false);
+            Log.d(LOG_TAG, "Downloaded " + url + " (" + expected + " bytes)");
+        }
+
+        private HttpURLConnection open(String range) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setInstanceFollowRedirects(true);
+            if (userAgent != null) {
+                connection.setRequestProperty("User-Agent", userAgent);
+            }
+            if (range != null) {
+                connection.setRequestProperty("Range", range);
+            }
+            return connection;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Collects bridge messages for a short window and hands them over as one array,
+ * so a burst of state/progress/error messages costs a single bridge crossing.
+ *
+ * Batches are handed to the sink under the batcher's lock, so flushes from the main thread
+ * (the window running out) and from other threads never overlap or overtake each other.
+ */
+public class EventBatcher {
+
+    public interface Sink {
+        void sendBatch(JSONArray events);
+    }
+
+    private final Sink sink;
+    private final Handler handler;
+    private JSONArray pending = new JSONArray();
+    private long window;
+    private boolean flushScheduled;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public EventBatcher(Sink sink) {
+        this.sink = sink;
+        this.handler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Sets the batching window in milliseconds. A window of 0 turns batching off.
+     */
+    public void setWindow(long window) {
+        this.window = Math.max(0, window);
+        if (this.window == 0) {
+            flush();
+        }
+    }
+
+    public boolean isEnabled() {
+        return window > 0;
+    }
+
+    public void add(JSONObject message, boolean flushNow) {
+        synchronized (this) {
+            pending.put(message);
+            if (!flushNow && !flushScheduled) {
+                flushScheduled = true;
+                handler.postDelayed(flushRunnable, window);
+            }
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    public synchronized void flush() {
+        if (flushScheduled) {
+            handler.removeCallbacks(flushRunnable);
+            flushScheduled = false;
+        }
+        if (pending.length() == 0) {
+            return;
+        }
+        JSONArray events = pending;
+        pending = new JSONArray();
+        sink.sendBatch(events);
+    }
+
+    /**
+     * Flushes, then runs the change before anything else is collected or flushed, e.g. to
+     * point the sink at a new callback once the messages for the old one are out.
+     */
+    public synchronized void flushThen(Runnable change) {
+        flush();
+        change.run();
+    }
+}
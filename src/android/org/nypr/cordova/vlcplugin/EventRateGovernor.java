@@ -0,0 +1,191 @@
+package org.nypr.cordova.vlcplugin;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.videolan.libvlc.MediaPlayer;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides which player events are forwarded to the javascript side.
+ *
+ * Each event type has a policy: always deliver, throttle to a maximum rate, or drop.
+ * Counters for delivered and dropped events are kept per event type.
+ */
+public class EventRateGovernor {
+
+    public enum Policy {
+        DELIVER,
+        THROTTLE,
+        DROP
+    }
+
+    // MediaPlayer.Event types are all in the 0x100 range
+    private static final int TYPE_BASE = MediaPlayer.Event.MediaChanged;
+    private static final int TYPE_COUNT = 32;
+
+    private static final long DEFAULT_THROTTLE_INTERVAL = 1000;
+
+    private final Policy[] policies = new Policy[TYPE_COUNT];
+    private final long[] lastDelivered = new long[TYPE_COUNT];
+    private final AtomicLongArray delivered = new AtomicLongArray(TYPE_COUNT);
+    private final AtomicLongArray dropped = new AtomicLongArray(TYPE_COUNT);
+    private volatile long throttleInterval = DEFAULT_THROTTLE_INTERVAL;
+
+    public EventRateGovernor() {
+        reset();
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            policies[i] = Policy.DELIVER;
+            lastDelivered[i] = Long.MIN_VALUE;
+        }
+        setPolicy(MediaPlayer.Event.TimeChanged, Policy.THROTTLE);
+        setPolicy(MediaPlayer.Event.Buffering, Policy.THROTTLE);
+        // progress is reported from TimeChanged, PositionChanged only duplicates it
+        setPolicy(MediaPlayer.Event.PositionChanged, Policy.DROP);
+        setPolicy(MediaPlayer.Event.Vout, Policy.DROP);
+        setPolicy(MediaPlayer.Event.ESAdded, Policy.DROP);
+        setPolicy(MediaPlayer.Event.ESDeleted, Policy.DROP);
+        throttleInterval = DEFAULT_THROTTLE_INTERVAL;
+    }
+
+    /*
+        {
+            "progressInterval": 1000,
+            "policies": { "Buffering": "drop", "ESSelected": "drop" }
+        }
+     */
+    public synchronized void configure(JSONObject config) throws JSONException {
+        if (config == null) {
+            return;
+        }
+        if (config.has("progressInterval")) {
+            throttleInterval = Math.max(0, config.getLong("progressInterval"));
+        }
+        JSONObject policyConfig = config.optJSONObject("policies");
+        if (policyConfig != null) {
+            Iterator<?> keys = policyConfig.keys();
+            while (keys.hasNext()) {
+                String name = (String) keys.next();
+                int type = AudioEventEncoder.typeOf(name);
+                if (type < 0) {
+                    throw new JSONException("unknown event type " + name);
+                }
+                setPolicy(type, Policy.valueOf(policyConfig.getString(name).toUpperCase()));
+            }
+        }
+    }
+
+    public synchronized void setPolicy(int type, Policy policy) {
+        int i = index(type);
+        if (i >= 0) {
+            policies[i] = policy;
+        }
+    }
+
+    public synchronized Policy getPolicy(int type) {
+        int i = index(type);
+        return i >= 0 ? policies[i] : Policy.DELIVER;
+    }
+
+    public boolean isThrottled(int type) {
+        return getPolicy(type) == Policy.THROTTLE;
+    }
+
+    /**
+     * Returns whether an event of the given type, received at the given time, should be forwarded.
+     */
+    public synchronized boolean shouldDeliver(int type, long now) {
+        int i = index(type);
+        if (i < 0) {
+            return true;
+        }
+
+        boolean deliver;
+        switch (policies[i]) {
+            case DROP:
+                deliver = false;
+                break;
+            case THROTTLE:
+                deliver = lastDelivered[i] == Long.MIN_VALUE || now - lastDelivered[i] >= throttleInterval;
+                break;
+            default:
+                deliver = true;
+                break;
+        }
+
+        if (deliver) {
+            lastDelivered[i] = now;
+            delivered.incrementAndGet(i);
+        } else {
+            dropped.incrementAndGet(i);
+        }
+        return deliver;
+    }
+
+    /**
+     * Counts an event held back for a reason other than its policy, e.g. because another
+     * event reports the same thing.
+     */
+    public void countDropped(int type) {
+        int i = index(type);
+        if (i >= 0) {
+            dropped.incrementAndGet(i);
+        }
+    }
+
+    /**
+     * Lets the next throttled event through regardless of when the last one went out,
+     * used when playback starts or seeks so the first progress update is not held back.
+     */
+    public synchronized void resetThrottle() {
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            lastDelivered[i] = Long.MIN_VALUE;
+        }
+    }
+
+    public long getDeliveredCount() {
+        return sum(delivered);
+    }
+
+    public long getDroppedCount() {
+        return sum(dropped);
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        JSONObject byType = new JSONObject();
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            long d = delivered.get(i);
+            long x = dropped.get(i);
+            if (d > 0 || x > 0) {
+                String name = AudioEventEncoder.describe(TYPE_BASE + i);
+                JSONObject counts = new JSONObject();
+                counts.put("delivered", d);
+                counts.put("dropped", x);
+                byType.put(name != null ? name : String.valueOf(TYPE_BASE + i), counts);
+            }
+        }
+        json.put("delivered", getDeliveredCount());
+        json.put("dropped", getDroppedCount());
+        json.put("progressInterval", throttleInterval);
+        json.put("events", byType);
+        return json;
+    }
+
+    private static int index(int type) {
+        int i = type - TYPE_BASE;
+        return (i >= 0 && i < TYPE_COUNT) ? i : -1;
+    }
+
+    private static long sum(AtomicLongArray counts) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+}
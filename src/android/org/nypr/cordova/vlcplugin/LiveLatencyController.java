@@ -0,0 +1,159 @@
+package org.nypr.cordova.vlcplugin;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps a live stream close to the live edge.
+ *
+ * A live stream joins at (about) the live edge, behind it by the caching asked of LibVLC.
+ * After that, every moment the wall clock moves and the media time does not (a stall, a
+ * pause) puts the listener further behind, and playing faster than real time catches up
+ * again. So the latency is the join delay plus the wall time since joining minus the media
+ * time played since.
+ *
+ * Latency a little over the target is played off at a slightly higher rate; latency past
+ * the maximum is dropped by rejoining the stream at the live edge.
+ */
+public class LiveLatencyController {
+
+    public enum Action {
+        NONE,
+        SPEED_UP,
+        NORMAL_SPEED,
+        REJOIN
+    }
+
+    private static final int DEFAULT_CACHING = 500;
+    private static final long DEFAULT_TARGET = 2000;
+    private static final long DEFAULT_TOLERANCE = 1000;
+    private static final long DEFAULT_MAX = 10000;
+    private static final float DEFAULT_RATE = 1.05f;
+    // rejoining too often would only trade latency for gaps
+    private static final long MIN_REJOIN_INTERVAL = 60 * 1000;
+
+    private boolean enabled;
+    private int caching = DEFAULT_CACHING;
+    private long target = DEFAULT_TARGET;
+    private long tolerance = DEFAULT_TOLERANCE;
+    private long max = DEFAULT_MAX;
+    private float rate = DEFAULT_RATE;
+
+    // current session
+    private boolean active;
+    private long joinDelay;
+    private long anchorWall = -1;
+    private long anchorMedia;
+    private boolean speeding;
+    private long lastRejoin = -1;
+    private int rejoins;
+    private volatile long latency = -1;
+
+    /*
+        { "enabled": false, "caching": 500, "target": 2000, "tolerance": 1000, "max": 10000, "rate": 1.05 }
+
+        caching (ms) is the network and live caching for live streams, target the latency to hold,
+        tolerance how far over the target before speeding up, max the latency that rejoins the
+        live edge (0 never rejoins), rate the catch-up playback rate (1 turns catching up off)
+     */
+    public synchronized void configure(JSONObject config) {
+        if (config == null) {
+            return;
+        }
+        enabled = config.optBoolean("enabled", enabled);
+        caching = Math.max(0, config.optInt("caching", caching));
+        target = Math.max(0, config.optLong("target", target));
+        tolerance = Math.max(0, config.optLong("tolerance", tolerance));
+        max = Math.max(0, config.optLong("max", max));
+        rate = Math.max(1f, Math.min(1.5f, (float) config.optDouble("rate", rate)));
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized int getCaching() {
+        return caching;
+    }
+
+    public synchronized float getRate() {
+        return rate;
+    }
+
+    /**
+     * Starts measuring a newly opened live stream, or a stream reopened at the live edge.
+     */
+    public synchronized void start() {
+        active = true;
+        joinDelay = caching;
+        anchorWall = -1;
+        speeding = false;
+        latency = -1;
+    }
+
+    /**
+     * Stops measuring, for anything but a live stream.
+     */
+    public synchronized void stop() {
+        active = false;
+        anchorWall = -1;
+        speeding = false;
+        latency = -1;
+    }
+
+    public synchronized boolean isActive() {
+        return active;
+    }
+
+    /**
+     * @return the current distance from the live edge in ms, -1 if not measuring
+     */
+    public long getLatency() {
+        return latency;
+    }
+
+    /**
+     * @param mediaTime the media time reported by the player
+     * @return what to do about the latency
+     */
+    public synchronized Action onTimeChanged(long mediaTime, long now) {
+        if (!active) {
+            return Action.NONE;
+        }
+        if (anchorWall < 0) {
+            // the first time update is the moment audio starts
+            anchorWall = now;
+            anchorMedia = mediaTime;
+        }
+        long current = Math.max(0, joinDelay + (now - anchorWall) - (mediaTime - anchorMedia));
+        latency = current;
+
+        if (max > 0 && current > max && (lastRejoin < 0 || now - lastRejoin >= MIN_REJOIN_INTERVAL)) {
+            lastRejoin = now;
+            rejoins++;
+            speeding = false;
+            return Action.REJOIN;
+        }
+        if (!speeding && rate > 1f && current > target + tolerance) {
+            speeding = true;
+            return Action.SPEED_UP;
+        }
+        if (speeding && current <= target) {
+            speeding = false;
+            return Action.NORMAL_SPEED;
+        }
+        return Action.NONE;
+    }
+
+    public synchronized JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("enabled", enabled);
+        json.put("active", active);
+        json.put("latency", latency);
+        json.put("target", target);
+        json.put("max", max);
+        json.put("catchingUp", speeding);
+        json.put("rejoins", rejoins);
+        return json;
+    }
+}
@@ -0,0 +1,200 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-memory index of the music directory (file name to size and modification time), so
+ * checking whether an episode was downloaded does not touch storage.
+ *
+ * Built once in the background and kept current by a FileObserver. Until the first scan is
+ * done, and for files the index does not have, lookups fall back to the filesystem: the
+ * observer misses what happens while the storage is unmounted or the directory is recreated.
+ */
+public class LocalFileIndex {
+
+    protected static final String LOG_TAG = "LocalFileIndex";
+
+    private static final int EVENTS = FileObserver.CREATE | FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+            | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.DELETE_SELF;
+
+    public static class Entry {
+        public final long size;
+        public final long modified;
+
+        Entry(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private final File directory;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private volatile boolean ready;
+    // kept here, a FileObserver that is garbage collected stops watching
+    private FileObserver observer;
+
+    public LocalFileIndex(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public void start() {
+        ExecutorService scan = Executors.newSingleThreadExecutor();
+        scan.execute(new Runnable() {
+            @Override
+            public void run() {
+                // there is nothing to watch until the first download creates it otherwise
+                directory.mkdirs();
+                // watch before scanning, so nothing changed during the scan is missed
+                observer = new FileObserver(directory.getPath(), EVENTS) {
+                    @Override
+                    public void onEvent(int event, String path) {
+                        onFileEvent(event, path);
+                    }
+                };
+                observer.startWatching();
+                scan();
+            }
+        });
+        scan.shutdown();
+    }
+
+    /**
+     * @return true once the first scan is done
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void stop() {
+        if (observer != null) {
+            observer.stopWatching();
+        }
+    }
+
+    /**
+     * @return the local copy of the remote file, or null if it was not downloaded
+     */
+    public File find(String url) {
+        String name = DownloadManager.fileNameFor(url);
+        File f = new File(directory, name);
+        if (ready) {
+            synchronized (this) {
+                if (entries.containsKey(name)) {
+                    return f;
+                }
+            }
+        }
+        return stat(f) != null ? f : null;
+    }
+
+    /**
+     * Checks a batch of remote URLs against the index.
+     */
+    public JSONArray status(JSONArray urls) throws JSONException {
+        JSONArray result = new JSONArray();
+        for (int i = 0; i < urls.length(); i++) {
+            String url = urls.getString(i);
+            String name = DownloadManager.fileNameFor(url);
+            Entry entry;
+            if (ready) {
+                synchronized (this) {
+                    entry = entries.get(name);
+                }
+            } else {
+                entry = stat(new File(directory, name));
+            }
+
+            JSONObject json = new JSONObject();
+            json.put("url", url);
+            json.put("local", entry != null);
+            if (entry != null) {
+                json.put("file", "file://" + new File(directory, name).getAbsolutePath());
+                json.put("size", entry.size);
+                json.put("modified", entry.modified);
+            }
+            result.put(json);
+        }
+        return result;
+    }
+
+    private void scan() {
+        long start = System.currentTimeMillis();
+        File[] files = directory.listFiles();
+        Map<String, Entry> found = new HashMap<String, Entry>();
+        if (files != null) {
+            for (File f : files) {
+                if (indexed(f.getName())) {
+                    Entry entry = stat(f);
+                    if (entry != null) {
+                        found.put(f.getName(), entry);
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            // events that came in during the scan are newer
+            for (Map.Entry<String, Entry> e : found.entrySet()) {
+                if (!entries.containsKey(e.getKey())) {
+                    entries.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+        ready = true;
+        Log.d(LOG_TAG, "Indexed " + found.size() + " files in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void onFileEvent(int event, String name) {
+        if ((event & FileObserver.DELETE_SELF) != 0) {
+            synchronized (this) {
+                entries.clear();
+            }
+            return;
+        }
+        if (name == null || !indexed(name)) {
+            return;
+        }
+        if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+            synchronized (this) {
+                entries.remove(name);
+            }
+        } else {
+            Entry entry = stat(new File(directory, name));
+            synchronized (this) {
+                if (entry != null) {
+                    entries.put(name, entry);
+                } else {
+                    entries.remove(name);
+                }
+            }
+        }
+    }
+
+    private static Entry stat(File f) {
+        if (!f.isFile()) {
+            return null;
+        }
+        // players read it by path, done once here instead of on every play
+        f.setReadable(true, false);
+        return new Entry(f.length(), f.lastModified());
+    }
+
+    private static boolean indexed(String name) {
+        // downloads in progress are not local files yet
+        return !name.endsWith(".part") && !name.endsWith(".state") && !name.endsWith(".tmp");
+    }
+}
@@ -0,0 +1,733 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback HTTP server that remote files can be played through. Range requests from
+ * LibVLC are answered from a SegmentCache, and only missing segments are fetched from
+ * the original server, so replaying or seeking back in an episode does not download
+ * the same bytes again.
+ *
+ * Any app on the device can reach a loopback port, so only urls handed out by proxyUrl are
+ * served: they carry a random token that changes with every start, and only http and https
+ * urls are fetched.
+ */
+public class LocalStreamProxy {
+
+    protected static final String LOG_TAG = "LocalStreamProxy";
+
+    private static final String HOST = "127.0.0.1";
+    private static final String PATH = "/stream?url=";
+    private static final int WORKER_COUNT = 4;
+    private static final int TIMEOUT = 15000;
+    // how long a read at the download frontier waits for the download before going to the network
+    private static final long FRONTIER_WAIT = 2000;
+    private static final long POLL_INTERVAL = 100;
+    // a segment being fetched goes out to the player in pieces this size as they arrive
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final long UNSATISFIABLE = -1;
+    private static final int TOKEN_BYTES = 16;
+
+    private final SegmentCache cache;
+    private final SecureRandom random = new SecureRandom();
+    private ExecutorService workers;
+    private ServerSocket serverSocket;
+    // "/<token>/stream?url=", what every request must start with
+    private String prefix;
+    private Thread acceptThread;
+    private volatile String userAgent;
+    private volatile DownloadManager downloads;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong bytesFetched = new AtomicLong();
+    private final AtomicLong bytesFromDownloads = new AtomicLong();
+
+    public LocalStreamProxy(File cacheDir, long maxBytes) {
+        this.cache = new SegmentCache(cacheDir, maxBytes);
+    }
+
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+        serverSocket = new ServerSocket(0, 8, InetAddress.getByName(HOST));
+        final ServerSocket socket = serverSocket;
+        prefix = "/" + newToken() + PATH;
+        final String expected = prefix;
+        // a pool of its own for every start, the last stop shut the old one down
+        final ExecutorService pool = Executors.newFixedThreadPool(WORKER_COUNT);
+        workers = pool;
+
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cache.init();
+                while (!socket.isClosed()) {
+                    try {
+                        final Socket client = socket.accept();
+                        pool.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                handle(client, expected);
+                            }
+                        });
+                    } catch (IOException e) {
+                        if (!socket.isClosed()) {
+                            Log.e(LOG_TAG, "Accept failed: " + e.getMessage());
+                        }
+                    }
+                }
+            }
+        }, "LocalStreamProxy");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+
+        Log.d(LOG_TAG, "Listening on port " + serverSocket.getLocalPort());
+    }
+
+    public synchronized void stop() {
+        closeQuietly(serverSocket);
+        serverSocket = null;
+        prefix = null;
+        acceptThread = null;
+        if (workers != null) {
+            workers.shutdownNow();
+            workers = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return serverSocket != null;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        cache.setMaxBytes(maxBytes);
+    }
+
+    public void setUserAgent(String userAgent) {
+        this.userAgent = userAgent;
+    }
+
+    /**
+     * Urls that are being downloaded are served from the partly written file, so playing an
+     * episode while it downloads does not fetch the same bytes twice. Urls downloaded before
+     * are served from the finished file.
+     */
+    public void setDownloadManager(DownloadManager downloads) {
+        this.downloads = downloads;
+    }
+
+    public synchronized String proxyUrl(String url) {
+        if (serverSocket == null) {
+            return url;
+        }
+        try {
+            return "http://" + HOST + ":" + serverSocket.getLocalPort() + prefix + URLEncoder.encode(url, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return url;
+        }
+    }
+
+    /**
+     * Returns the original url of a proxied url, or the url itself if it does not go through a proxy.
+     */
+    public static String originalUrl(String url) {
+        if (url == null || !url.startsWith("http://" + HOST + ":")) {
+            return url;
+        }
+        int i = url.indexOf(PATH);
+        if (i < 0) {
+            return url;
+        }
+        try {
+            return URLDecoder.decode(url.substring(i + PATH.length()), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return url;
+        }
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("requests", requests.get());
+        json.put("hits", hits.get());
+        json.put("misses", misses.get());
+        json.put("bytesSaved", bytesSaved.get());
+        json.put("bytesFetched", bytesFetched.get());
+        json.put("bytesFromDownloads", bytesFromDownloads.get());
+        json.put("cachedBytes", cache.getTotalBytes());
+        return json;
+    }
+
+    /**
+     * @param expected the path prefix, with this start's token, a request must have
+     */
+    private void handle(Socket client, String expected) {
+        Upstream upstream = null;
+        try {
+            client.setSoTimeout(TIMEOUT);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), "ISO-8859-1"));
+            OutputStream out = client.getOutputStream();
+
+            String requestLine = reader.readLine();
+            if (requestLine == null) {
+                return;
+            }
+            String[] parts = requestLine.split(" ");
+            String range = null;
+            String line;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                if (line.toLowerCase().startsWith("range:")) {
+                    range = line.substring(6).trim();
+                }
+            }
+
+            if (parts.length < 2 || !hasPrefix(parts[1], expected)) {
+                writeStatus(out, "403 Forbidden", 0, null);
+                return;
+            }
+            boolean head = parts[0].equals("HEAD");
+            String url = decodeHttpUrl(parts[1].substring(expected.length()));
+            if (url == null) {
+                writeStatus(out, "400 Bad Request", 0, null);
+                return;
+            }
+            requests.incrementAndGet();
+
+            long start = 0;
+            long end = Long.MAX_VALUE;
+            if (range != null && !range.startsWith("bytes=")) {
+                // not a unit we know, serve the whole thing
+                range = null;
+            }
+            if (range != null) {
+                long[] bounds = parseRange(range);
+                if (bounds == null) {
+                    writeStatus(out, "416 Requested Range Not Satisfiable", 0, null);
+                    return;
+                }
+                start = bounds[0];
+                end = bounds[1];
+            }
+
+            DownloadManager manager = downloads;
+            DownloadManager.Download download = manager != null ? manager.get(url) : null;
+            // until the download knows the length this request goes to the network; waiting for
+            // it would hold one of the few workers, and live streams need them
+            if (download != null && download.getTotal() > 0) {
+                upstream = serveDownload(download, url, range, start, end, out, head);
+                return;
+            }
+            // downloaded earlier, only finished files have the target name
+            File downloaded = manager != null ? manager.targetFor(url) : null;
+            if (downloaded != null && downloaded.isFile()) {
+                serveFile(downloaded, range, start, end, out, head);
+                return;
+            }
+
+            String key = SegmentCache.keyFor(url);
+            long length = cache.getLength(key);
+            String contentType = "application/octet-stream";
+            if (length < 0) {
+                // a suffix range is only known once the length is, start at the beginning for now
+                upstream = Upstream.open(url, start >= 0 ? alignDown(start) : 0, userAgent);
+                length = upstream.totalLength;
+                if (upstream.contentType != null) {
+                    contentType = upstream.contentType;
+                }
+                if (length < 0) {
+                    // no length, no segments; hand the body over as it comes
+                    passThrough(upstream, out, head);
+                    return;
+                }
+                cache.putLength(key, length);
+            }
+
+            start = firstByte(start, length);
+            if (start == UNSATISFIABLE) {
+                writeStatus(out, "416 Requested Range Not Satisfiable", 0, "Content-Range: bytes */" + length + "\r\n");
+                return;
+            }
+            end = Math.min(end, length - 1);
+
+            StringBuilder headers = new StringBuilder();
+            headers.append("Content-Type: ").append(contentType).append("\r\n");
+            headers.append("Accept-Ranges: bytes\r\n");
+            if (range != null) {
+                headers.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(length).append("\r\n");
+            }
+            writeStatus(out, range != null ? "206 Partial Content" : "200 OK", end - start + 1, headers.toString());
+            if (head) {
+                return;
+            }
+
+            byte[] buffer = new byte[SegmentCache.SEGMENT_SIZE];
+            long position = start;
+            while (position <= end) {
+                long index = position / SegmentCache.SEGMENT_SIZE;
+                long segmentStart = index * SegmentCache.SEGMENT_SIZE;
+                int segmentLength = (int) Math.min(SegmentCache.SEGMENT_SIZE, length - segmentStart);
+                int offset = (int) (position - segmentStart);
+                int count = (int) (Math.min(segmentStart + segmentLength - 1, end) - position + 1);
+
+                File segment = cache.getSegment(key, index);
+                if (segment != null && segment.length() == segmentLength) {
+                    hits.incrementAndGet();
+                    // the upstream connection no longer lines up with what is needed next
+                    closeQuietly(upstream);
+                    upstream = null;
+
+                    RandomAccessFile in = new RandomAccessFile(segment, "r");
+                    try {
+                        in.seek(offset);
+                        in.readFully(buffer, 0, count);
+                    } finally {
+                        closeQuietly(in);
+                    }
+                    out.write(buffer, 0, count);
+                    bytesSaved.addAndGet(count);
+                } else {
+                    misses.incrementAndGet();
+                    if (upstream == null || upstream.position != segmentStart) {
+                        closeQuietly(upstream);
+                        upstream = Upstream.open(url, segmentStart, userAgent);
+                    }
+                    // the whole segment is fetched for the cache, but what the player asked
+                    // for goes out as it arrives
+                    int filled = 0;
+                    while (filled < segmentLength) {
+                        int n = upstream.read(buffer, filled, Math.min(CHUNK_SIZE, segmentLength - filled));
+                        int from = Math.max(filled, offset);
+                        int to = Math.min(filled + n, offset + count);
+                        if (to > from) {
+                            out.write(buffer, from, to - from);
+                            out.flush();
+                        }
+                        filled += n;
+                    }
+                    bytesFetched.addAndGet(segmentLength);
+                    cache.putSegment(key, index, buffer, segmentLength);
+                }
+                position += count;
+            }
+            out.flush();
+        } catch (SocketException e) {
+            // player closed the connection, usually because it seeked
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Request failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            // shutting down
+        } finally {
+            closeQuietly(upstream);
+            closeQuietly(client);
+        }
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Compares in constant time, so the token cannot be guessed a character at a time.
+     */
+    private static boolean hasPrefix(String path, String prefix) throws UnsupportedEncodingException {
+        return path.length() >= prefix.length()
+                && MessageDigest.isEqual(path.substring(0, prefix.length()).getBytes("UTF-8"), prefix.getBytes("UTF-8"));
+    }
+
+    /**
+     * @return the decoded url, or null if it is malformed or not an http or https url
+     */
+    private static String decodeHttpUrl(String encoded) {
+        try {
+            String url = URLDecoder.decode(encoded, "UTF-8");
+            String protocol = new URL(url).getProtocol();
+            return protocol.equals("http") || protocol.equals("https") ? url : null;
+        } catch (IOException e) {
+            // malformed, or an unknown protocol
+            return null;
+        } catch (IllegalArgumentException e) {
+            // a broken % escape
+            return null;
+        }
+    }
+
+    /**
+     * Serves a range from a download in progress. Bytes already on disk are read from the
+     * file; at the download frontier the read waits a little for the download to catch up
+     * and then fetches the missing piece from the original server.
+     *
+     * @return the upstream connection left open, if any, for the caller to close
+     */
+    private Upstream serveDownload(DownloadManager.Download download, String url, String range, long start, long end,
+                                   OutputStream out, boolean head) throws IOException, InterruptedException {
+        long length = download.getTotal();
+        start = firstByte(start, length);
+        if (start == UNSATISFIABLE) {
+            writeStatus(out, "416 Requested Range Not Satisfiable", 0, "Content-Range: bytes */" + length + "\r\n");
+            return null;
+        }
+        end = Math.min(end, length - 1);
+
+        StringBuilder headers = new StringBuilder();
+        headers.append("Content-Type: application/octet-stream\r\n");
+        headers.append("Accept-Ranges: bytes\r\n");
+        if (range != null) {
+            headers.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(length).append("\r\n");
+        }
+        writeStatus(out, range != null ? "206 Partial Content" : "200 OK", end - start + 1, headers.toString());
+        if (head) {
+            return null;
+        }
+
+        Upstream upstream = null;
+        byte[] buffer = new byte[SegmentCache.SEGMENT_SIZE];
+        long position = start;
+        while (position <= end) {
+            int wanted = (int) Math.min(buffer.length, end - position + 1);
+            // while already reading from the network, only switch back if the bytes are there now
+            long available = upstream != null && upstream.position == position
+                    ? download.availableAt(position) : awaitAvailable(download, position);
+            if (available > 0) {
+                closeQuietly(upstream);
+                upstream = null;
+
+                int count = (int) Math.min(wanted, available);
+                readDownloaded(download, position, buffer, count);
+                out.write(buffer, 0, count);
+                bytesFromDownloads.addAndGet(count);
+                position += count;
+            } else {
+                // playback is ahead of the download, read just the next piece from the network
+                if (upstream == null || upstream.position != position) {
+                    closeQuietly(upstream);
+                    upstream = Upstream.open(url, position, userAgent);
+                }
+                int count = (int) Math.min(wanted, SegmentCache.SEGMENT_SIZE - position % SegmentCache.SEGMENT_SIZE);
+                upstream.readFully(buffer, count);
+                bytesFetched.addAndGet(count);
+                out.write(buffer, 0, count);
+                position += count;
+            }
+        }
+        out.flush();
+        return upstream;
+    }
+
+    /**
+     * Serves a range from a finished download, without going to the network.
+     */
+    private void serveFile(File file, String range, long start, long end, OutputStream out, boolean head) throws IOException {
+        long length = file.length();
+        start = firstByte(start, length);
+        if (start == UNSATISFIABLE) {
+            writeStatus(out, "416 Requested Range Not Satisfiable", 0, "Content-Range: bytes */" + length + "\r\n");
+            return;
+        }
+        end = Math.min(end, length - 1);
+
+        StringBuilder headers = new StringBuilder();
+        headers.append("Content-Type: application/octet-stream\r\n");
+        headers.append("Accept-Ranges: bytes\r\n");
+        if (range != null) {
+            headers.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(length).append("\r\n");
+        }
+        writeStatus(out, range != null ? "206 Partial Content" : "200 OK", end - start + 1, headers.toString());
+        if (head) {
+            return;
+        }
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(start);
+            byte[] buffer = new byte[CHUNK_SIZE];
+            long remaining = end - start + 1;
+            while (remaining > 0) {
+                int count = (int) Math.min(buffer.length, remaining);
+                in.readFully(buffer, 0, count);
+                out.write(buffer, 0, count);
+                bytesFromDownloads.addAndGet(count);
+                remaining -= count;
+            }
+        } finally {
+            closeQuietly(in);
+        }
+        out.flush();
+    }
+
+    private static long awaitAvailable(DownloadManager.Download download, long position) throws InterruptedException {
+        long available = download.availableAt(position);
+        long waited = 0;
+        while (available <= 0 && isActive(download) && waited < FRONTIER_WAIT) {
+            Thread.sleep(POLL_INTERVAL);
+            waited += POLL_INTERVAL;
+            available = download.availableAt(position);
+        }
+        return available;
+    }
+
+    private static boolean isActive(DownloadManager.Download download) {
+        return DownloadManager.STATE_RUNNING.equals(download.getState());
+    }
+
+    private static void readDownloaded(DownloadManager.Download download, long position, byte[] buffer, int count) throws IOException {
+        RandomAccessFile in;
+        try {
+            in = new RandomAccessFile(download.isComplete() ? download.getTarget() : download.getPartFile(), "r");
+        } catch (FileNotFoundException e) {
+            // finished and renamed between the check and the open
+            in = new RandomAccessFile(download.getTarget(), "r");
+        }
+        try {
+            in.seek(position);
+            in.readFully(buffer, 0, count);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void passThrough(Upstream upstream, OutputStream out, boolean head) throws IOException {
+        String headers = upstream.contentType != null ? "Content-Type: " + upstream.contentType + "\r\n" : "";
+        writeStatus(out, "200 OK", -1, headers);
+        if (head) {
+            return;
+        }
+        byte[] buffer = new byte[16 * 1024];
+        int read;
+        while ((read = upstream.in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            bytesFetched.addAndGet(read);
+        }
+        out.flush();
+    }
+
+    private static void writeStatus(OutputStream out, String status, long contentLength, String headers) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 ").append(status).append("\r\n");
+        if (contentLength >= 0) {
+            sb.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        if (headers != null) {
+            sb.append(headers);
+        }
+        sb.append("Connection: close\r\n\r\n");
+        out.write(sb.toString().getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    /**
+     * Parses a single "bytes=" range. A suffix range (bytes=-500, the last 500 bytes) comes
+     * back with a negative start, see firstByte().
+     *
+     * @return the first and last byte, the last Long.MAX_VALUE if open ended; null if the
+     * range is malformed or asks for several ranges
+     */
+    static long[] parseRange(String range) {
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0 || spec.indexOf(',') >= 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.length() == 0) {
+                long suffix = Long.parseLong(last);
+                return suffix > 0 ? new long[]{-suffix, Long.MAX_VALUE} : null;
+            }
+            long start = Long.parseLong(first);
+            long end = last.length() > 0 ? Long.parseLong(last) : Long.MAX_VALUE;
+            return start >= 0 && end >= start ? new long[]{start, end} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the first byte to serve of content of the given length, UNSATISFIABLE if there
+     * is none
+     */
+    private static long firstByte(long start, long length) {
+        if (start < 0) {
+            // suffix range, longer than the content means all of it
+            return length > 0 ? Math.max(0, length + start) : UNSATISFIABLE;
+        }
+        return start < length ? start : UNSATISFIABLE;
+    }
+
+    private static long alignDown(long position) {
+        return (position / SegmentCache.SEGMENT_SIZE) * SegmentCache.SEGMENT_SIZE;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket s) {
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static void closeQuietly(ServerSocket s) {
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Connection to the original server, reading sequentially from a byte offset.
+     */
+    private static class Upstream implements Closeable {
+        final HttpURLConnection connection;
+        final InputStream in;
+        final long totalLength;
+        final String contentType;
+        long position;
+
+        private Upstream(HttpURLConnection connection, InputStream in, long totalLength, String contentType, long position) {
+            this.connection = connection;
+            this.in = in;
+            this.totalLength = totalLength;
+            this.contentType = contentType;
+            this.position = position;
+        }
+
+        static Upstream open(String url, long from, String userAgent) throws IOException {
+            URLConnection opened = new URL(url).openConnection();
+            if (!(opened instanceof HttpURLConnection)) {
+                throw new IOException("Not an http url: " + url);
+            }
+            HttpURLConnection connection = (HttpURLConnection) opened;
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setInstanceFollowRedirects(true);
+            if (userAgent != null) {
+                connection.setRequestProperty("User-Agent", userAgent);
+            }
+            connection.setRequestProperty("Range", "bytes=" + from + "-");
+
+            int status = connection.getResponseCode();
+            long total = -1;
+            InputStream in;
+            if (status == HttpURLConnection.HTTP_PARTIAL) {
+                in = connection.getInputStream();
+                String contentRange = connection.getHeaderField("Content-Range");
+                if (contentRange != null && contentRange.lastIndexOf('/') >= 0) {
+                    String size = contentRange.substring(contentRange.lastIndexOf('/') + 1).trim();
+                    if (!size.equals("*")) {
+                        total = Long.parseLong(size);
+                    }
+                }
+            } else if (status == HttpURLConnection.HTTP_OK) {
+                // server ignored the range; skip ahead to where we wanted to start
+                in = connection.getInputStream();
+                total = parseLength(connection.getHeaderField("Content-Length"));
+                long skipped = 0;
+                while (skipped < from) {
+                    long n = in.skip(from - skipped);
+                    if (n <= 0) {
+                        connection.disconnect();
+                        throw new IOException("Could not skip to " + from);
+                    }
+                    skipped += n;
+                }
+            } else {
+                connection.disconnect();
+                throw new IOException("HTTP " + status + " for " + url);
+            }
+            return new Upstream(connection, in, total, connection.getContentType(), from);
+        }
+
+        /**
+         * @return the number of bytes read, at least one
+         */
+        int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = in.read(buffer, offset, length);
+            if (n < 0) {
+                throw new IOException("Upstream ended early at " + position);
+            }
+            position += n;
+            return n;
+        }
+
+        void readFully(byte[] buffer, int length) throws IOException {
+            int read = 0;
+            while (read < length) {
+                int n = in.read(buffer, read, length - read);
+                if (n < 0) {
+                    throw new IOException("Upstream ended early at " + (position + read));
+                }
+                read += n;
+            }
+            position += length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        private static long parseLength(String value) {
+            try {
+                return value != null ? Long.parseLong(value.trim()) : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Bounded LRU cache of parsed media metadata keyed by URI, persisted to app storage
+ * so durations are known before LibVLC has parsed the media again.
+ */
+public class MediaMetadataCache {
+
+    protected static final String LOG_TAG = "MediaMetadataCache";
+
+    // 2: seekable may be unknown; version 1 files could claim seekable for media never opened
+    private static final int FILE_VERSION = 2;
+    private static final byte SEEKABLE_UNKNOWN = -1;
+    private static final int DEFAULT_MAX_ENTRIES = 200;
+
+    public static class Entry {
+        public final long duration;
+        public final String codec;
+        public final int bitrate;
+        // null until a player has opened the media, parsing alone does not tell
+        public final Boolean seekable;
+
+        public Entry(long duration, String codec, int bitrate, Boolean seekable) {
+            this.duration = duration;
+            this.codec = codec != null ? codec : "";
+            this.bitrate = bitrate;
+            this.seekable = seekable;
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("duration", duration);
+            json.put("codec", codec);
+            json.put("bitrate", bitrate);
+            if (seekable != null) {
+                json.put("seekable", seekable.booleanValue());
+            }
+            return json;
+        }
+    }
+
+    private final File file;
+    private final int maxEntries;
+    private final Map<String, Entry> entries;
+    private final ExecutorService io = Executors.newSingleThreadExecutor();
+    private boolean saveScheduled;
+
+    public MediaMetadataCache(File file) {
+        this(file, DEFAULT_MAX_ENTRIES);
+    }
+
+    public MediaMetadataCache(File file, final int maxEntries) {
+        this.file = file;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MediaMetadataCache.this.maxEntries;
+            }
+        };
+    }
+
+    public void loadAsync() {
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    public synchronized Entry get(String uri) {
+        return uri != null ? entries.get(uri) : null;
+    }
+
+    /**
+     * @return the cached duration in ms, or 0 if unknown
+     */
+    public long getDuration(String uri) {
+        Entry entry = get(uri);
+        return entry != null ? entry.duration : 0;
+    }
+
+    public void put(String uri, Entry entry) {
+        if (uri == null || entry.duration <= 0) {
+            // live streams have no duration, nothing worth keeping
+            return;
+        }
+        synchronized (this) {
+            Entry old = entries.get(uri);
+            if (old != null && entry.seekable == null && old.seekable != null) {
+                // parsed again, what a player found out still holds
+                entry = new Entry(entry.duration, entry.codec, entry.bitrate, old.seekable);
+            }
+            if (old != null && old.duration == entry.duration && old.bitrate == entry.bitrate
+                    && equal(old.seekable, entry.seekable) && old.codec.equals(entry.codec)) {
+                return;
+            }
+            entries.put(uri, entry);
+            if (saveScheduled) {
+                return;
+            }
+            saveScheduled = true;
+        }
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    public void shutdown() {
+        io.shutdown();
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    String uri = in.readUTF();
+                    long duration = in.readLong();
+                    String codec = in.readUTF();
+                    int bitrate = in.readInt();
+                    byte seekable = in.readByte();
+                    Entry entry = new Entry(duration, codec, bitrate, seekable == SEEKABLE_UNKNOWN ? null : seekable != 0);
+                    // entries put while loading are newer, keep them
+                    if (!entries.containsKey(uri)) {
+                        entries.put(uri, entry);
+                    }
+                }
+            }
+            Log.d(LOG_TAG, "Loaded " + count + " entries");
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not load metadata cache: " + e.getMessage());
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void save() {
+        List<Map.Entry<String, Entry>> snapshot;
+        synchronized (this) {
+            saveScheduled = false;
+            snapshot = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> e : snapshot) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.duration);
+                out.writeUTF(entry.codec);
+                out.writeInt(entry.bitrate);
+                out.writeByte(entry.seekable == null ? SEEKABLE_UNKNOWN : entry.seekable ? 1 : 0);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.e(LOG_TAG, "Could not replace " + file);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not save metadata cache: " + e.getMessage());
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static boolean equal(Boolean a, Boolean b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
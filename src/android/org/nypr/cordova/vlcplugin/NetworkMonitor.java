@@ -0,0 +1,176 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The current network, shared by the plugin and the service.
+ *
+ * ConnectivityManager is only asked when the system reports a change (default network
+ * callbacks where available, the connectivity broadcast before that). The result is
+ * published as an immutable Snapshot, so checking for a network on the play path is a field
+ * read and not a call into the system.
+ */
+public class NetworkMonitor {
+
+    protected static final String LOG_TAG = "NetworkMonitor";
+
+    public interface Listener {
+        /**
+         * Called on the thread the system reported the change on.
+         */
+        void onNetworkChanged(Snapshot previous, Snapshot current);
+    }
+
+    // rough downstream kbps for each BufferingController connection type, used when the
+    // system has no estimate
+    private static final int[] ESTIMATED_KBPS = {0, 20000, 10000, 384, 1000};
+
+    public static class Snapshot {
+        public final boolean connected;
+        // one of the BufferingController connection types
+        public final int connection;
+        public final boolean metered;
+        public final int bandwidthKbps;
+        public final long since;
+
+        Snapshot(boolean connected, int connection, boolean metered, int bandwidthKbps, long since) {
+            this.connected = connected;
+            this.connection = connection;
+            this.metered = metered;
+            this.bandwidthKbps = bandwidthKbps;
+            this.since = since;
+        }
+
+        boolean sameAs(Snapshot other) {
+            return other != null && connected == other.connected && connection == other.connection
+                    && metered == other.metered && bandwidthKbps == other.bandwidthKbps;
+        }
+
+        public String getTransport() {
+            return BufferingController.connectionName(connection);
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("connected", connected);
+            json.put("transport", getTransport());
+            json.put("metered", metered);
+            json.put("bandwidth", bandwidthKbps);
+            json.put("since", since);
+            return json;
+        }
+    }
+
+    private static final Snapshot NONE = new Snapshot(false, BufferingController.CONNECTION_NONE, false, 0, 0);
+
+    private final ConnectivityManager connectivity;
+    private final Context context;
+    private final Listener listener;
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(NONE);
+    private ConnectivityManager.NetworkCallback callback;
+    private BroadcastReceiver receiver;
+
+    public NetworkMonitor(Context context, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        this.listener = listener;
+    }
+
+    public void start() {
+        refresh();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            callback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    refresh();
+                }
+
+                @Override
+                public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                    refresh();
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    // the default network is gone until the next onAvailable
+                    publish(new Snapshot(false, BufferingController.CONNECTION_NONE, false, 0, SystemClock.elapsedRealtime()));
+                }
+            };
+            connectivity.registerDefaultNetworkCallback(callback);
+        } else {
+            receiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    refresh();
+                }
+            };
+            context.registerReceiver(receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+    }
+
+    public void stop() {
+        if (callback != null) {
+            connectivity.unregisterNetworkCallback(callback);
+            callback = null;
+        }
+        if (receiver != null) {
+            context.unregisterReceiver(receiver);
+            receiver = null;
+        }
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    public boolean isConnected() {
+        return snapshot.get().connected;
+    }
+
+    private synchronized void refresh() {
+        NetworkInfo info = connectivity.getActiveNetworkInfo();
+        if (info == null || !info.isConnected()) {
+            publish(new Snapshot(false, BufferingController.CONNECTION_NONE, false, 0, SystemClock.elapsedRealtime()));
+            return;
+        }
+
+        int connection = BufferingController.classify(info.getType(), info.getSubtype());
+        int bandwidth = 0;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            NetworkCapabilities capabilities = connectivity.getNetworkCapabilities(connectivity.getActiveNetwork());
+            if (capabilities != null) {
+                bandwidth = capabilities.getLinkDownstreamBandwidthKbps();
+            }
+        }
+        if (bandwidth <= 0) {
+            bandwidth = ESTIMATED_KBPS[connection];
+        }
+        publish(new Snapshot(true, connection, connectivity.isActiveNetworkMetered(), bandwidth, SystemClock.elapsedRealtime()));
+    }
+
+    private synchronized void publish(Snapshot current) {
+        Snapshot previous = snapshot.get();
+        if (current.sameAs(previous)) {
+            return;
+        }
+        snapshot.set(current);
+        Log.d(LOG_TAG, "Network " + (current.connected ? current.getTransport() + ", " + current.bandwidthKbps + "kbps"
+                + (current.metered ? ", metered" : "") : "lost"));
+        listener.onNetworkChanged(previous, current);
+    }
+}
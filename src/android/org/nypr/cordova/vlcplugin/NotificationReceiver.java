@@ -9,8 +9,11 @@ public class NotificationReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        Log.d("NotificationReceiver", "Broadcast received, closing service");
-        context.stopService(new Intent(context, VLCPlayerService.class));
+        Log.d("NotificationReceiver", "Broadcast received, closing player");
+        // handled by the service's state machine, in order with everything else the player is doing
+        Intent close = new Intent(context, VLCPlayerService.class);
+        close.setAction(VLCPlayerService.ACTION_CLOSE);
+        context.startService(close);
     }
 
 }
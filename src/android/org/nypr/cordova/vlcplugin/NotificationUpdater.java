@@ -0,0 +1,192 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+import android.widget.RemoteViews;
+
+import org.wqxr.android.R;
+
+/**
+ * The player's foreground notification.
+ *
+ * One builder and one set of PendingIntents are kept for the life of the service. Each update
+ * only sets the fields that changed on the RemoteViews, and nothing is posted when nothing
+ * did. Artwork is shown from the ArtworkCache once it has loaded, if it still belongs to the
+ * item shown.
+ *
+ * Call from the player thread.
+ */
+public class NotificationUpdater {
+
+    protected static final String LOG_TAG = "NotificationUpdater";
+
+    // RemoteViews keeps every action (and bitmap) it was given; start over before it piles up
+    private static final int MAX_ACTIONS = 32;
+
+    private final Service service;
+    private final int notificationId;
+    private final ArtworkCache artworkCache;
+    private final ArtworkCache.Callback artworkCallback;
+    private final NotificationManager notificationManager;
+    private NotificationCompat.Builder builder;
+    private RemoteViews remoteViews;
+    private PendingIntent closeIntent;
+    private int actions;
+    private Class<?> activityClass;
+
+    private String title;
+    private String artist;
+    private String artworkUrl;
+    private Bitmap artwork;
+    private boolean changed;
+    private volatile boolean foreground;
+
+    /**
+     * @param artworkLoaded runs artwork that finished loading back on the player thread
+     */
+    public NotificationUpdater(Service service, int notificationId, ArtworkCache artworkCache, ArtworkCache.Callback artworkLoaded) {
+        this.service = service;
+        this.notificationId = notificationId;
+        this.artworkCache = artworkCache;
+        this.artworkCallback = artworkLoaded;
+        this.notificationManager = (NotificationManager) service.getSystemService(Context.NOTIFICATION_SERVICE);
+    }
+
+    /**
+     * Shows the item, putting the service in the foreground if it is not already.
+     */
+    public void update(Class<?> activityClass, String title, String artist, String artworkUrl) {
+        if (builder == null || activityClass != this.activityClass) {
+            createBuilder(activityClass);
+        }
+
+        if (!equal(title, this.title)) {
+            this.title = title;
+            remoteViews.setTextViewText(R.id.zzz_ph_notification_title, title);
+            actions++;
+            changed = true;
+        }
+        if (!equal(artist, this.artist)) {
+            this.artist = artist;
+            remoteViews.setTextViewText(R.id.zzz_ph_notification_text, artist);
+            actions++;
+            changed = true;
+        }
+        if (!equal(artworkUrl, this.artworkUrl)) {
+            this.artworkUrl = artworkUrl;
+            Bitmap bitmap = artworkCache.peek(artworkUrl);
+            setArtworkBitmap(bitmap);
+            if (bitmap == null && artworkUrl != null) {
+                artworkCache.load(artworkUrl, artworkCallback);
+            }
+        }
+
+        post();
+    }
+
+    /**
+     * Shows artwork that finished loading, if the item it was loaded for is still shown.
+     */
+    public void onArtworkLoaded(String url, Bitmap bitmap) {
+        if (!equal(url, artworkUrl) || bitmap == artwork) {
+            return;
+        }
+        setArtworkBitmap(bitmap);
+        if (foreground) {
+            post();
+        }
+    }
+
+    /**
+     * Call after the service left the foreground, so the next update posts again.
+     */
+    public void onRemoved() {
+        foreground = false;
+    }
+
+    private void setArtworkBitmap(Bitmap bitmap) {
+        if (bitmap == artwork) {
+            return;
+        }
+        artwork = bitmap;
+        if (bitmap != null) {
+            remoteViews.setImageViewBitmap(R.id.zzz_ph_notification_image, bitmap);
+            // the artwork view sits on top of the default icon, hidden until there is artwork
+            remoteViews.setInt(R.id.zzz_ph_notification_image, "setAlpha", 255);
+            actions += 2;
+        } else {
+            remoteViews.setInt(R.id.zzz_ph_notification_image, "setAlpha", 0);
+            actions++;
+        }
+        changed = true;
+    }
+
+    private void post() {
+        if (foreground && !changed) {
+            Log.d(LOG_TAG, "Notification unchanged, not posted");
+            return;
+        }
+        if (actions > MAX_ACTIONS) {
+            rebuildViews();
+        }
+        Notification notification = builder.build();
+        if (foreground) {
+            notificationManager.notify(notificationId, notification);
+        } else {
+            service.startForeground(notificationId, notification);
+            foreground = true;
+        }
+        changed = false;
+    }
+
+    private void createBuilder(Class<?> activityClass) {
+        Log.d(LOG_TAG, "Creating notification for " + activityClass);
+        this.activityClass = activityClass;
+
+        PendingIntent contentIntent = PendingIntent.getActivity(service, 0, new Intent(service, activityClass), PendingIntent.FLAG_UPDATE_CURRENT);
+        if (remoteViews == null) {
+            rebuildViews();
+        }
+        builder = new NotificationCompat
+                .Builder(service)
+                .setSmallIcon(R.drawable.zzz_ph_ic_notification)
+                .setContent(remoteViews)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setContentIntent(contentIntent);
+        changed = true;
+    }
+
+    /**
+     * Starts over with a fresh RemoteViews holding only the current state.
+     */
+    private void rebuildViews() {
+        remoteViews = new RemoteViews(service.getPackageName(), R.layout.nypr_ph_hc_notification);
+        if (closeIntent == null) {
+            closeIntent = PendingIntent.getBroadcast(service, 1, new Intent(service, NotificationReceiver.class), 0);
+        }
+        remoteViews.setOnClickPendingIntent(R.id.zzz_ph_stop_button, closeIntent);
+        remoteViews.setTextViewText(R.id.zzz_ph_notification_title, title);
+        remoteViews.setTextViewText(R.id.zzz_ph_notification_text, artist);
+        if (artwork != null) {
+            remoteViews.setImageViewBitmap(R.id.zzz_ph_notification_image, artwork);
+            remoteViews.setInt(R.id.zzz_ph_notification_image, "setAlpha", 255);
+        }
+        actions = 0;
+        if (builder != null) {
+            builder.setContent(remoteViews);
+        }
+        changed = true;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -1,11 +1,17 @@
 package org.nypr.cordova.vlcplugin;
 
-import org.videolan.libvlc.MediaPlayer;
+import org.json.JSONObject;
 
 public interface OnAudioStateUpdatedListenerVLC {
-    void onAudioStateUpdated(MediaPlayer.Event event);
+    /**
+     * @param type a MediaPlayer.Event type
+     * @param time the new time in ms for TimeChanged, otherwise -1
+     */
+    void onAudioStateUpdated(int type, long time);
 
     void onAudioProgressUpdated(int progress, int duration);
 
     void onAudioStreamingError(int reason);
+
+    void onPlayerEvent(JSONObject event);
 }
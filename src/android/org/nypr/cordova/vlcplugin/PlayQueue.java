@@ -0,0 +1,113 @@
+package org.nypr.cordova.vlcplugin;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Items waiting to be played after the current one, in play order.
+ */
+public class PlayQueue {
+
+    public static class Item {
+        public final int id;
+        public final String file;
+        public final String title;
+        public final String artist;
+        public final String imageUrl;
+        public final JSONObject audioJson;
+        public final boolean isStream;
+
+        public Item(int id, String file, String title, String artist, String imageUrl, JSONObject audioJson, boolean isStream) {
+            this.id = id;
+            this.file = file;
+            this.title = title;
+            this.artist = artist;
+            this.imageUrl = imageUrl;
+            this.audioJson = audioJson != null ? audioJson : new JSONObject();
+            this.isStream = isStream;
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("file", file);
+            json.put("title", title);
+            json.put("artist", artist);
+            json.put("audio", audioJson);
+            return json;
+        }
+    }
+
+    private final List<Item> items = new ArrayList<Item>();
+    private int nextId = 1;
+
+    public synchronized Item add(String file, String title, String artist, String imageUrl, JSONObject audioJson, boolean isStream, int index) {
+        Item item = new Item(nextId++, file, title, artist, imageUrl, audioJson, isStream);
+        if (index < 0 || index > items.size()) {
+            items.add(item);
+        } else {
+            items.add(index, item);
+        }
+        return item;
+    }
+
+    public synchronized boolean remove(int id) {
+        int i = indexOf(id);
+        if (i < 0) {
+            return false;
+        }
+        items.remove(i);
+        return true;
+    }
+
+    public synchronized boolean move(int id, int toIndex) {
+        int i = indexOf(id);
+        if (i < 0) {
+            return false;
+        }
+        Item item = items.remove(i);
+        items.add(Math.max(0, Math.min(toIndex, items.size())), item);
+        return true;
+    }
+
+    public synchronized Item peek() {
+        return items.isEmpty() ? null : items.get(0);
+    }
+
+    public synchronized Item poll() {
+        return items.isEmpty() ? null : items.remove(0);
+    }
+
+    public synchronized void clear() {
+        items.clear();
+    }
+
+    public synchronized int size() {
+        return items.size();
+    }
+
+    public synchronized List<Item> snapshot() {
+        return new ArrayList<Item>(items);
+    }
+
+    public synchronized JSONArray toJSON() throws JSONException {
+        JSONArray json = new JSONArray();
+        for (Item item : items) {
+            json.put(item.toJSON());
+        }
+        return json;
+    }
+
+    private int indexOf(int id) {
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).id == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,270 @@
+package org.nypr.cordova.vlcplugin;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Quality of experience numbers for each play (session) and across all of them since the
+ * service started: time to first audio, stalls and time spent stalled, rebuffer ratio, seek
+ * latency, reconnects and bytes read.
+ *
+ * Distributions go into histograms with fixed buckets, so recording a sample never allocates.
+ * Percentiles are the upper bound of the bucket they fall in.
+ */
+public class PlaybackMetrics {
+
+    // ms
+    private static final long[] TIME_BUCKETS = {
+            10, 25, 50, 100, 250, 500, 750, 1000, 1500, 2000, 3000, 5000, 7500, 10000, 15000, 20000, 30000, 60000
+    };
+    // per mille of the session spent stalled
+    private static final long[] RATIO_BUCKETS = {0, 1, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+    public static class Histogram {
+        private final long[] bounds;
+        // the last slot counts everything above the highest bound
+        private final long[] counts;
+        private long count;
+        private long sum;
+        private long max;
+
+        public Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.counts = new long[bounds.length + 1];
+        }
+
+        public void record(long value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            counts[i]++;
+            count++;
+            sum += value;
+            if (value > max) {
+                max = value;
+            }
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the given percentile, the largest value
+         * seen for samples above the last bucket, or -1 without samples
+         */
+        public long percentile(double p) {
+            if (count == 0) {
+                return -1;
+            }
+            long rank = (long) Math.ceil(p / 100.0 * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return i < bounds.length ? Math.min(bounds[i], max) : max;
+                }
+            }
+            return max;
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("count", count);
+            json.put("mean", count > 0 ? sum / count : -1);
+            json.put("p50", percentile(50));
+            json.put("p90", percentile(90));
+            json.put("p99", percentile(99));
+            json.put("max", count > 0 ? max : -1);
+            return json;
+        }
+    }
+
+    private final Histogram timeToFirstAudio = new Histogram(TIME_BUCKETS);
+    private final Histogram stallDuration = new Histogram(TIME_BUCKETS);
+    private final Histogram seekLatency = new Histogram(TIME_BUCKETS);
+    private final Histogram rebufferRatio = new Histogram(RATIO_BUCKETS);
+
+    private long sessions;
+    private long totalStalls;
+    private long totalStallTime;
+    private long totalPlayTime;
+    private long totalReconnects;
+    private long totalBytes;
+
+    // current session
+    private boolean active;
+    private boolean stream;
+    private long startedAt;
+    private long firstAudio = -1;
+    private int stalls;
+    private long stallTime;
+    private long stalledSince = -1;
+    private long playTime;
+    private long playingSince = -1;
+    private int seeks;
+    private int reconnects;
+    private long bytes;
+    private long mediaBytes;
+
+    /**
+     * Starts a new session, closing out the one before it.
+     */
+    public synchronized void onPlayRequested(boolean isStream, long now) {
+        endSession(now);
+        active = true;
+        stream = isStream;
+        startedAt = now;
+    }
+
+    public synchronized void onPlaying(long now) {
+        if (!active) {
+            return;
+        }
+        if (firstAudio < 0) {
+            firstAudio = now - startedAt;
+            timeToFirstAudio.record(firstAudio);
+        }
+        endStall(now);
+        if (playingSince < 0) {
+            playingSince = now;
+        }
+    }
+
+    /**
+     * @param newStall the buffering controller counted this as the start of a stall
+     */
+    public synchronized void onBuffering(float percent, boolean newStall, long now) {
+        if (!active) {
+            return;
+        }
+        if (percent >= 100f) {
+            if (stalledSince >= 0) {
+                endStall(now);
+                // LibVLC stays in Playing through a stall, there is no new Playing event
+                if (playingSince < 0) {
+                    playingSince = now;
+                }
+            }
+        } else if (newStall && stalledSince < 0) {
+            stalls++;
+            totalStalls++;
+            stalledSince = now;
+            // stalled time is not play time
+            pausePlayTime(now);
+        }
+    }
+
+    public synchronized void onPaused(long now) {
+        endStall(now);
+        pausePlayTime(now);
+    }
+
+    public synchronized void onSeekCompleted(long latency) {
+        if (latency >= 0) {
+            seeks++;
+            seekLatency.record(latency);
+        }
+    }
+
+    public synchronized void onReconnected() {
+        reconnects++;
+        totalReconnects++;
+    }
+
+    /**
+     * @param mediaBytes bytes read for the current media so far; a reconnect opens a new media
+     *                   that counts from 0 again
+     */
+    public synchronized void setMediaBytes(long mediaBytes) {
+        if (!active) {
+            return;
+        }
+        long read = mediaBytes >= this.mediaBytes ? mediaBytes - this.mediaBytes : mediaBytes;
+        this.mediaBytes = mediaBytes;
+        bytes += read;
+        totalBytes += read;
+    }
+
+    public synchronized JSONObject toJSON(long now) throws JSONException {
+        JSONObject json = new JSONObject();
+        if (active) {
+            long played = playTime + (playingSince >= 0 ? now - playingSince : 0);
+            long stalled = stallTime + (stalledSince >= 0 ? now - stalledSince : 0);
+            JSONObject session = new JSONObject();
+            session.put("isStream", stream);
+            session.put("duration", now - startedAt);
+            session.put("timeToFirstAudio", firstAudio);
+            session.put("stalls", stalls);
+            session.put("stallTime", stalled);
+            session.put("rebufferRatio", ratio(stalled, played));
+            session.put("playTime", played);
+            session.put("seeks", seeks);
+            session.put("reconnects", reconnects);
+            session.put("bytes", bytes);
+            json.put("session", session);
+        }
+
+        JSONObject totals = new JSONObject();
+        totals.put("sessions", sessions + (active ? 1 : 0));
+        totals.put("stalls", totalStalls);
+        totals.put("stallTime", totalStallTime);
+        totals.put("playTime", totalPlayTime);
+        totals.put("reconnects", totalReconnects);
+        totals.put("bytes", totalBytes);
+        json.put("totals", totals);
+
+        json.put("timeToFirstAudio", timeToFirstAudio.toJSON());
+        json.put("stallDuration", stallDuration.toJSON());
+        json.put("seekLatency", seekLatency.toJSON());
+        // per mille
+        json.put("rebufferRatio", rebufferRatio.toJSON());
+        return json;
+    }
+
+    private void endStall(long now) {
+        if (stalledSince >= 0) {
+            long duration = now - stalledSince;
+            stallTime += duration;
+            totalStallTime += duration;
+            stallDuration.record(duration);
+            stalledSince = -1;
+        }
+    }
+
+    private void pausePlayTime(long now) {
+        if (playingSince >= 0) {
+            long duration = now - playingSince;
+            playTime += duration;
+            totalPlayTime += duration;
+            playingSince = -1;
+        }
+    }
+
+    private void endSession(long now) {
+        if (!active) {
+            return;
+        }
+        endStall(now);
+        pausePlayTime(now);
+        if (firstAudio >= 0) {
+            // sessions that never played say nothing about rebuffering
+            rebufferRatio.record(Math.round(ratio(stallTime, playTime) * 1000));
+        }
+        sessions++;
+        active = false;
+        firstAudio = -1;
+        stalls = 0;
+        stallTime = 0;
+        playTime = 0;
+        seeks = 0;
+        reconnects = 0;
+        bytes = 0;
+        mediaBytes = 0;
+    }
+
+    private static double ratio(long stalled, long played) {
+        return stalled + played > 0 ? stalled / (double) (stalled + played) : 0;
+    }
+}
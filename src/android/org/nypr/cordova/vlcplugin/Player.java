@@ -0,0 +1,93 @@
+package org.nypr.cordova.vlcplugin;
+
+/**
+ * What the service needs from a media player: transport control, position, and a stream of
+ * events. VlcPlayer is the LibVLC implementation.
+ *
+ * Events are passed as plain values rather than LibVLC event objects, so everything that
+ * handles them (the service, the event governor, the plugin and its encoder) can be driven
+ * without a native player. Event types are the MediaPlayer.Event constants.
+ */
+public interface Player {
+
+    interface Listener {
+        /**
+         * @param time      the new time in ms for TimeChanged, otherwise -1
+         * @param buffering the buffer fill in percent for Buffering, otherwise 0
+         */
+        void onEvent(int type, long time, float buffering);
+    }
+
+    /**
+     * Makes players sharing one underlying engine, for VLC one LibVLC instance built from a
+     * profile's options. Media made by one of its players plays on any of them.
+     */
+    interface Engine {
+        Player newPlayer();
+
+        void setUserAgent(String name, String userAgent);
+
+        void release();
+    }
+
+    void setListener(Listener listener);
+
+    /**
+     * Creates media this player can play.
+     *
+     * @param location a URL, or a file:// URL for local files
+     */
+    PlayerMedia newMedia(String location);
+
+    /**
+     * The player takes the media over: the media it replaces is released, so it must not be
+     * used after this.
+     *
+     * @param media made by newMedia of this player (or of one sharing its LibVLC instance)
+     */
+    void setMedia(PlayerMedia media);
+
+    /**
+     * @return the media last set, or null
+     */
+    PlayerMedia getMedia();
+
+    void play();
+
+    void pause();
+
+    void stop();
+
+    boolean isPlaying();
+
+    boolean isSeekable();
+
+    /**
+     * @return the time in ms
+     */
+    long getTime();
+
+    void setTime(long time);
+
+    /**
+     * @return the length in ms, or 0 or less if unknown (live)
+     */
+    long getLength();
+
+    /**
+     * @param delay in microseconds, as LibVLC takes it
+     */
+    void setAudioDelay(long delay);
+
+    /**
+     * @param rate 1 for normal speed
+     */
+    void setRate(float rate);
+
+    /**
+     * @param volume 0 to 100
+     */
+    void setVolume(int volume);
+
+    void release();
+}
@@ -0,0 +1,184 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.util.Log;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs player commands one at a time, in the order they were received, off the Cordova
+ * bridge so blocking LibVLC calls never hold it up. Once the service is connected the
+ * commands run on the player thread; until then on a thread of their own.
+ */
+public class PlayerCommandExecutor {
+
+    protected static final String LOG_TAG = "PlayerCommandExecutor";
+
+    public interface Command {
+        /**
+         * @return false if the command could not be carried out
+         */
+        boolean run() throws Exception;
+    }
+
+    private static class CommandStats {
+        long count;
+        long failures;
+        long totalNanos;
+        long maxNanos;
+        long lastNanos;
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "VLCPlayerCommands");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Map<String, CommandStats> stats = new LinkedHashMap<String, CommandStats>();
+    private volatile boolean ackOnComplete;
+    private volatile Executor target;
+
+    /**
+     * When true, the callback is acknowledged after the command has run instead of when it is queued.
+     */
+    public void setAckOnComplete(boolean ackOnComplete) {
+        this.ackOnComplete = ackOnComplete;
+    }
+
+    /**
+     * Where commands run from now on, e.g. the service's PlayerScheduler; null for the executor's own thread.
+     */
+    public void setTarget(Executor target) {
+        this.target = target;
+    }
+
+    public void submit(final String name, final Command command, final CallbackContext callbackContext) {
+        final long queued = System.nanoTime();
+        final boolean ackWhenDone = ackOnComplete;
+
+        if (!ackWhenDone) {
+            sendOk(callbackContext);
+        }
+
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                long started = System.nanoTime();
+                boolean ok;
+                String error = null;
+                try {
+                    ok = command.run();
+                    if (!ok) {
+                        error = name + " failed";
+                    }
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Command " + name + " failed", e);
+                    ok = false;
+                    error = e.getMessage();
+                }
+                long finished = System.nanoTime();
+                record(name, finished - started, ok);
+
+                if (finished - queued > 1000000000L) {
+                    Log.w(LOG_TAG, "Slow command " + name + ": " + ((finished - queued) / 1000000) + "ms");
+                }
+
+                if (ok) {
+                    if (ackWhenDone) {
+                        sendOk(callbackContext);
+                    }
+                } else {
+                    PluginResult result = new PluginResult(PluginResult.Status.ERROR, VLCPlugin.LOG_TAG + " error: " + error);
+                    result.setKeepCallback(true);
+                    callbackContext.sendPluginResult(result);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a command that has no callback of its own, in order with the other commands.
+     */
+    public void post(final String name, final Command command) {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                long started = System.nanoTime();
+                boolean ok;
+                try {
+                    ok = command.run();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Command " + name + " failed", e);
+                    ok = false;
+                }
+                record(name, System.nanoTime() - started, ok);
+            }
+        });
+    }
+
+    private void dispatch(Runnable runnable) {
+        Executor t = target;
+        if (t != null) {
+            t.execute(runnable);
+        } else {
+            executor.execute(runnable);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        synchronized (stats) {
+            for (Map.Entry<String, CommandStats> entry : stats.entrySet()) {
+                CommandStats s = entry.getValue();
+                JSONObject o = new JSONObject();
+                o.put("count", s.count);
+                o.put("failures", s.failures);
+                o.put("averageMs", s.count > 0 ? (s.totalNanos / s.count) / 1000000.0 : 0);
+                o.put("maxMs", s.maxNanos / 1000000.0);
+                o.put("lastMs", s.lastNanos / 1000000.0);
+                json.put(entry.getKey(), o);
+            }
+        }
+        return json;
+    }
+
+    private void record(String name, long nanos, boolean ok) {
+        synchronized (stats) {
+            CommandStats s = stats.get(name);
+            if (s == null) {
+                s = new CommandStats();
+                stats.put(name, s);
+            }
+            s.count++;
+            if (!ok) {
+                s.failures++;
+            }
+            s.totalNanos += nanos;
+            s.lastNanos = nanos;
+            s.maxNanos = Math.max(s.maxNanos, nanos);
+        }
+    }
+
+    private static void sendOk(CallbackContext callbackContext) {
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK);
+        pluginResult.setKeepCallback(true);
+        callbackContext.sendPluginResult(pluginResult);
+    }
+}
@@ -0,0 +1,59 @@
+package org.nypr.cordova.vlcplugin;
+
+/**
+ * Media made by a Player and only meaningful to the player that made it. Everything read
+ * from it is a plain value, so the service depends on neither LibVLC's Media nor Android's Uri.
+ */
+public interface PlayerMedia {
+
+    interface ParseListener {
+        /**
+         * Called on a thread of the player's choosing once tracks and duration are known.
+         */
+        void onParsed();
+    }
+
+    /**
+     * @return the location the media was made for, as passed to Player.newMedia
+     */
+    String getLocation();
+
+    /**
+     * @param option a LibVLC option such as ":network-caching=1000", read when the media is opened
+     */
+    void addOption(String option);
+
+    /**
+     * @return the duration in ms, or 0 or less if not known (yet)
+     */
+    long getDuration();
+
+    /**
+     * @return the codec of the first audio track, or null if not known (yet)
+     */
+    String getAudioCodec();
+
+    /**
+     * @return the bitrate of the first audio track, or 0 if not known
+     */
+    int getAudioBitrate();
+
+    /**
+     * @return how many bytes the media took in so far, or -1 if not known
+     */
+    long getReadBytes();
+
+    /**
+     * @return the player's state code for the media, only passed on for diagnostics
+     */
+    int getState();
+
+    /**
+     * Opens and parses the media ahead of playing it, over the network as well.
+     */
+    void parseAsync(ParseListener listener);
+
+    boolean isReleased();
+
+    void release();
+}
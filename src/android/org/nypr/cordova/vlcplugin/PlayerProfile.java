@@ -0,0 +1,177 @@
+package org.nypr.cordova.vlcplugin;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+
+/**
+ * LibVLC performance settings applied when LibVLC is created.
+ *
+ * Options correspond to the VLC Commandline Options...
+ *     List: https://wiki.videolan.org/VLC_command-line_help/
+ */
+public class PlayerProfile {
+
+    public static final String DEFAULT = "default";
+    public static final String RADIO = "radio";
+    public static final String PODCAST = "podcast";
+    public static final String LOW_LATENCY = "lowlatency";
+
+    private static final int UNSET = -1;
+    // microseconds (4ms), as MediaPlayer.setAudioDelay takes it
+    private static final long DEFAULT_AUDIO_DELAY = 4000;
+
+    private String name = DEFAULT;
+    private int networkCaching = UNSET;
+    private int fileCaching = UNSET;
+    private int liveCaching = UNSET;
+    private boolean audioOnly;
+    private String resampler;
+    private int resamplerQuality = UNSET;
+    private int decoderThreads = UNSET;
+    private long audioDelay = DEFAULT_AUDIO_DELAY;
+
+    /**
+     * Returns one of the named profiles. Unknown names get the default profile, which passes no
+     * options and leaves LibVLC on its own defaults.
+     */
+    public static PlayerProfile named(String name) {
+        PlayerProfile profile = new PlayerProfile();
+
+        if (RADIO.equalsIgnoreCase(name)) {
+            profile.name = RADIO;
+            profile.networkCaching = 3000;
+            profile.liveCaching = 3000;
+            profile.audioOnly = true;
+            profile.resamplerQuality = 1;
+            profile.decoderThreads = 1;
+        } else if (PODCAST.equalsIgnoreCase(name)) {
+            profile.name = PODCAST;
+            profile.networkCaching = 5000;
+            profile.fileCaching = 1000;
+            profile.audioOnly = true;
+            profile.resamplerQuality = 2;
+            profile.decoderThreads = 1;
+        } else if (LOW_LATENCY.equalsIgnoreCase(name)) {
+            profile.name = LOW_LATENCY;
+            profile.networkCaching = 1000;
+            profile.liveCaching = 500;
+            profile.audioOnly = true;
+            profile.resamplerQuality = 0;
+            profile.decoderThreads = 1;
+        }
+
+        return profile;
+    }
+
+    /*
+        "radio"
+        or
+        { "name": "radio", "networkCaching": 2000, "fileCaching": 300, "liveCaching": 1000,
+          "audioOnly": true, "resampler": "soxr", "resamplerQuality": 1, "decoderThreads": 1, "audioDelay": 0 }
+
+        caching values are in ms, audioDelay in microseconds
+     */
+    public static PlayerProfile fromJSON(Object json) throws JSONException {
+        if (json instanceof String) {
+            return named((String) json);
+        }
+        if (!(json instanceof JSONObject)) {
+            throw new JSONException("profile must be a name or an object");
+        }
+
+        JSONObject o = (JSONObject) json;
+        PlayerProfile profile = named(o.optString("name", DEFAULT));
+        if (!o.has("name")) {
+            profile.name = "custom";
+        }
+        profile.networkCaching = o.optInt("networkCaching", profile.networkCaching);
+        profile.fileCaching = o.optInt("fileCaching", profile.fileCaching);
+        profile.liveCaching = o.optInt("liveCaching", profile.liveCaching);
+        profile.audioOnly = o.optBoolean("audioOnly", profile.audioOnly);
+        profile.resampler = o.has("resampler") ? o.getString("resampler") : profile.resampler;
+        profile.resamplerQuality = o.optInt("resamplerQuality", profile.resamplerQuality);
+        profile.decoderThreads = o.optInt("decoderThreads", profile.decoderThreads);
+        profile.audioDelay = o.optLong("audioDelay", profile.audioDelay);
+        return profile;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getNetworkCaching() {
+        return networkCaching;
+    }
+
+    public int getLiveCaching() {
+        return liveCaching;
+    }
+
+    public boolean isAudioOnly() {
+        return audioOnly;
+    }
+
+    /**
+     * @return the audio delay in microseconds
+     */
+    public long getAudioDelay() {
+        return audioDelay;
+    }
+
+    public ArrayList<String> toOptions() {
+        ArrayList<String> options = new ArrayList<String>();
+        if (networkCaching != UNSET) {
+            options.add("--network-caching=" + networkCaching);
+        }
+        if (fileCaching != UNSET) {
+            options.add("--file-caching=" + fileCaching);
+        }
+        if (liveCaching != UNSET) {
+            options.add("--live-caching=" + liveCaching);
+        }
+        if (audioOnly) {
+            options.add("--no-video");
+            options.add("--no-spu");
+            options.add("--no-osd");
+        }
+        if (resampler != null) {
+            options.add("--audio-resampler=" + resampler);
+        }
+        if (resamplerQuality != UNSET) {
+            options.add("--soxr-resampler-quality=" + resamplerQuality);
+        }
+        if (decoderThreads != UNSET) {
+            options.add("--avcodec-threads=" + decoderThreads);
+        }
+
+        // If youd like to turn on advanced logging, uncomment below.
+        // options.add("--log-verbose=2");
+        // options.add("-vvv");
+        return options;
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("name", name);
+        json.put("options", new JSONArray(toOptions()));
+        json.put("audioDelay", audioDelay);
+        return json;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof PlayerProfile)) {
+            return false;
+        }
+        PlayerProfile other = (PlayerProfile) o;
+        return toOptions().equals(other.toOptions()) && audioDelay == other.audioDelay;
+    }
+
+    @Override
+    public int hashCode() {
+        return toOptions().hashCode() * 31 + (int) audioDelay;
+    }
+}
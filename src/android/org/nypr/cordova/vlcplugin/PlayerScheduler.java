@@ -0,0 +1,209 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The player's own thread. Player commands, LibVLC events and all delayed or periodic
+ * player work (buffer flush, reconnect retries, sampling, idle release) run here one at a
+ * time, so none of them race each other over the MediaPlayer.
+ */
+public class PlayerScheduler implements Executor {
+
+    protected static final String LOG_TAG = "PlayerScheduler";
+
+    /**
+     * The thread the work runs on. A Handler thread on a device; benchmarks and tests on a
+     * plain JVM bring their own.
+     */
+    interface Loop {
+        /**
+         * @return false if the loop has quit and the runnable will never run
+         */
+        boolean post(Runnable runnable, long delay);
+
+        void remove(Runnable runnable);
+
+        void removeAll();
+
+        boolean isLoopThread();
+
+        void quit();
+    }
+
+    /**
+     * A scheduled piece of work that can be cancelled until it has run. Periodic tasks stay
+     * pending until they are cancelled.
+     */
+    public class Task implements Runnable {
+        private final String name;
+        private final Runnable runnable;
+        private final long period;
+        private volatile boolean cancelled;
+
+        private Task(String name, Runnable runnable, long period) {
+            this.name = name;
+            this.runnable = runnable;
+            this.period = period;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void cancel() {
+            cancelled = true;
+            loop.remove(this);
+            if (removePending(this)) {
+                cancelledCount.incrementAndGet();
+            }
+        }
+
+        public boolean isPending() {
+            return !cancelled && isPendingTask(this);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            if (period > 0) {
+                loop.post(this, period);
+            } else {
+                removePending(this);
+            }
+            ran.incrementAndGet();
+            try {
+                runnable.run();
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Task " + name + " failed", e);
+            }
+        }
+    }
+
+    private final Loop loop;
+    private final Set<Task> pending = new HashSet<Task>();
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong ran = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+
+    public PlayerScheduler(String name) {
+        this(new HandlerLoop(name));
+    }
+
+    PlayerScheduler(Loop loop) {
+        this.loop = loop;
+    }
+
+    /**
+     * Runs the runnable on the player thread as soon as possible, after what is already queued.
+     */
+    @Override
+    public void execute(Runnable runnable) {
+        if (!loop.post(runnable, 0)) {
+            Log.w(LOG_TAG, "Player thread is gone, dropping work");
+        }
+    }
+
+    public Task schedule(String name, Runnable runnable, long delay) {
+        Task task = new Task(name, runnable, 0);
+        addPending(task);
+        loop.post(task, Math.max(0, delay));
+        return task;
+    }
+
+    public Task scheduleAtFixedRate(String name, Runnable runnable, long initialDelay, long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        Task task = new Task(name, runnable, period);
+        addPending(task);
+        loop.post(task, Math.max(0, initialDelay));
+        return task;
+    }
+
+    public boolean isPlayerThread() {
+        return loop.isLoopThread();
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public void quit() {
+        synchronized (this) {
+            pending.clear();
+        }
+        loop.removeAll();
+        loop.quit();
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("pending", getPendingCount());
+        json.put("scheduled", scheduled.get());
+        json.put("ran", ran.get());
+        json.put("cancelled", cancelledCount.get());
+        return json;
+    }
+
+    private synchronized void addPending(Task task) {
+        pending.add(task);
+        scheduled.incrementAndGet();
+    }
+
+    private synchronized boolean removePending(Task task) {
+        return pending.remove(task);
+    }
+
+    private synchronized boolean isPendingTask(Task task) {
+        return pending.contains(task);
+    }
+
+    private static class HandlerLoop implements Loop {
+        private final HandlerThread thread;
+        private final Handler handler;
+
+        HandlerLoop(String name) {
+            thread = new HandlerThread(name);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+
+        @Override
+        public boolean post(Runnable runnable, long delay) {
+            return delay > 0 ? handler.postDelayed(runnable, delay) : handler.post(runnable);
+        }
+
+        @Override
+        public void remove(Runnable runnable) {
+            handler.removeCallbacks(runnable);
+        }
+
+        @Override
+        public void removeAll() {
+            handler.removeCallbacksAndMessages(null);
+        }
+
+        @Override
+        public boolean isLoopThread() {
+            return Looper.myLooper() == thread.getLooper();
+        }
+
+        @Override
+        public void quit() {
+            thread.quitSafely();
+        }
+    }
+}
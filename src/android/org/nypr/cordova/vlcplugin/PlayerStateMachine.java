@@ -0,0 +1,357 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.nypr.cordova.vlcplugin.OnAudioInterruptListener.INTERRUPT_TYPE;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Single place where the signals that decide whether audio should play meet: commands
+ * from the plugin, phone calls, audio focus, connectivity, the notification and the
+ * player's own events.
+ *
+ * Every signal is a Message handled one at a time on the player thread. transition() is a
+ * pure function from the current Snapshot and a Message to the next Snapshot and the
+ * Effects to carry out, so it can be reasoned about (and tested) without a player. The
+ * current Snapshot is immutable and can be read from any thread without locking.
+ */
+public class PlayerStateMachine {
+
+    protected static final String LOG_TAG = "PlayerStateMachine";
+
+    public enum Phase {
+        IDLE,
+        PLAYING,
+        PAUSED,
+        STOPPED,
+        // paused by a phone call or similar, resumes when it is over
+        INTERRUPTED,
+        // waiting for the network to come back
+        RECONNECTING
+    }
+
+    public enum Signal {
+        PLAY,
+        PAUSE,
+        STOP,
+        INTERRUPT_BEGIN,
+        INTERRUPT_END,
+        FOCUS_LOSS,
+        FOCUS_LOSS_TRANSIENT,
+        NETWORK_LOST,
+        NETWORK_AVAILABLE,
+        CLOSE,
+        RECONNECT_STARTED,
+        RECONNECT_ENDED,
+        PLAYER_PLAYING,
+        PLAYER_PAUSED,
+        PLAYER_STOPPED,
+        PLAYER_ERROR
+    }
+
+    public enum Effect {
+        PAUSE,
+        STOP,
+        RESUME,
+        BEGIN_RECONNECT,
+        RECONNECT_NOW,
+        SUSPEND_RECONNECT,
+        CANCEL_RECONNECT,
+        ABANDON_FOCUS,
+        CLOSE
+    }
+
+    public interface Effects {
+        void perform(Effect effect);
+    }
+
+    public static final class Message {
+        public final Signal signal;
+        public final INTERRUPT_TYPE interrupt;
+        // INTERRUPT_BEGIN: track the interrupt; INTERRUPT_END: restart afterwards;
+        // NETWORK_LOST: the current media is remote; RECONNECT_ENDED: reconnected
+        public final boolean flag;
+
+        private Message(Signal signal, INTERRUPT_TYPE interrupt, boolean flag) {
+            this.signal = signal;
+            this.interrupt = interrupt;
+            this.flag = flag;
+        }
+
+        public static Message of(Signal signal) {
+            return new Message(signal, null, false);
+        }
+
+        public static Message of(Signal signal, boolean flag) {
+            return new Message(signal, null, flag);
+        }
+
+        public static Message interruptBegan(INTERRUPT_TYPE type, boolean trackInterrupt) {
+            return new Message(Signal.INTERRUPT_BEGIN, type, trackInterrupt);
+        }
+
+        public static Message interruptEnded(INTERRUPT_TYPE type, boolean restart) {
+            return new Message(Signal.INTERRUPT_END, type, restart);
+        }
+
+        @Override
+        public String toString() {
+            return signal + (interrupt != null ? "(" + interrupt + ", " + flag + ")" : flag ? "(true)" : "");
+        }
+    }
+
+    public static final class Snapshot {
+        public final Phase phase;
+        public final Set<INTERRUPT_TYPE> interrupts;
+        public final boolean connected;
+        // audio was playing when it got interrupted or lost the network and should come back
+        public final boolean resumePending;
+        public final long version;
+
+        Snapshot(Phase phase, Set<INTERRUPT_TYPE> interrupts, boolean connected, boolean resumePending, long version) {
+            this.phase = phase;
+            this.interrupts = interrupts;
+            this.connected = connected;
+            this.resumePending = resumePending;
+            this.version = version;
+        }
+
+        public boolean isInterrupted() {
+            return !interrupts.isEmpty();
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("phase", phase.name());
+            JSONArray list = new JSONArray();
+            for (INTERRUPT_TYPE type : interrupts) {
+                list.put(type.name());
+            }
+            json.put("interrupts", list);
+            json.put("connected", connected);
+            json.put("resumePending", resumePending);
+            json.put("version", version);
+            return json;
+        }
+    }
+
+    public static final class Transition {
+        public final Snapshot next;
+        public final List<Effect> effects;
+
+        Transition(Snapshot next, List<Effect> effects) {
+            this.next = next;
+            this.effects = effects;
+        }
+    }
+
+    static final Snapshot INITIAL = new Snapshot(Phase.IDLE, Collections.<INTERRUPT_TYPE>emptySet(), true, false, 0);
+
+    private final Executor loop;
+    private final Effects effects;
+    private volatile Snapshot snapshot = INITIAL;
+
+    public PlayerStateMachine(Executor loop, Effects effects) {
+        this.loop = loop;
+        this.effects = effects;
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Queues a message for the player thread. Messages are handled in the order they are sent.
+     */
+    public void send(final Message message) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                handle(message);
+            }
+        });
+    }
+
+    private void handle(Message message) {
+        Transition t = transition(snapshot, message);
+        if (t.next != snapshot) {
+            Log.d(LOG_TAG, message + ": " + snapshot.phase + " -> " + t.next.phase + " " + t.effects);
+        }
+        snapshot = t.next;
+        for (Effect effect : t.effects) {
+            effects.perform(effect);
+        }
+    }
+
+    public static Transition transition(Snapshot s, Message m) {
+        Phase phase = s.phase;
+        EnumSet<INTERRUPT_TYPE> interrupts = s.interrupts.isEmpty()
+                ? EnumSet.noneOf(INTERRUPT_TYPE.class) : EnumSet.copyOf(s.interrupts);
+        boolean connected = s.connected;
+        boolean resumePending = s.resumePending;
+        List<Effect> out = new ArrayList<Effect>(2);
+
+        switch (m.signal) {
+            case PLAY:
+                // starting while interrupted waits for the interrupt to end
+                resumePending = !interrupts.isEmpty();
+                if (resumePending) {
+                    phase = Phase.INTERRUPTED;
+                }
+                break;
+
+            case PAUSE:
+            case STOP:
+                if (phase == Phase.RECONNECTING) {
+                    out.add(Effect.CANCEL_RECONNECT);
+                }
+                resumePending = false;
+                phase = m.signal == Signal.PAUSE ? Phase.PAUSED : Phase.STOPPED;
+                if (m.signal == Signal.STOP) {
+                    // an explicit stop also forgets interrupts, as it always has
+                    interrupts.clear();
+                }
+                break;
+
+            case INTERRUPT_BEGIN:
+                if (!m.flag) {
+                    // untracked: stop, nothing to come back to
+                    if (phase == Phase.PLAYING) {
+                        out.add(Effect.STOP);
+                    }
+                    break;
+                }
+                interrupts.add(m.interrupt);
+                if (phase == Phase.PLAYING) {
+                    out.add(Effect.PAUSE);
+                    resumePending = true;
+                    phase = Phase.INTERRUPTED;
+                } else if (phase == Phase.RECONNECTING) {
+                    // no reconnecting during a call; the end of the call picks it up again
+                    out.add(Effect.SUSPEND_RECONNECT);
+                    resumePending = true;
+                    phase = Phase.INTERRUPTED;
+                }
+                break;
+
+            case INTERRUPT_END:
+                if (!interrupts.remove(m.interrupt) || !interrupts.isEmpty()) {
+                    break;
+                }
+                if (phase == Phase.INTERRUPTED) {
+                    if (resumePending && m.flag) {
+                        if (connected) {
+                            out.add(Effect.RESUME);
+                            phase = Phase.PLAYING;
+                        } else {
+                            out.add(Effect.BEGIN_RECONNECT);
+                            phase = Phase.RECONNECTING;
+                        }
+                    } else {
+                        phase = Phase.PAUSED;
+                    }
+                    resumePending = false;
+                }
+                break;
+
+            case FOCUS_LOSS:
+            case FOCUS_LOSS_TRANSIENT:
+                if (phase == Phase.PLAYING) {
+                    out.add(Effect.PAUSE);
+                    phase = Phase.PAUSED;
+                }
+                if (m.signal == Signal.FOCUS_LOSS) {
+                    out.add(Effect.ABANDON_FOCUS);
+                }
+                break;
+
+            case NETWORK_LOST:
+                connected = false;
+                if (!m.flag) {
+                    // local media does not care
+                    break;
+                }
+                if (phase == Phase.PLAYING) {
+                    out.add(Effect.PAUSE);
+                    out.add(Effect.BEGIN_RECONNECT);
+                    phase = Phase.RECONNECTING;
+                } else if (phase == Phase.RECONNECTING) {
+                    out.add(Effect.SUSPEND_RECONNECT);
+                } else if (phase == Phase.PAUSED) {
+                    out.add(Effect.STOP);
+                }
+                break;
+
+            case NETWORK_AVAILABLE:
+                connected = true;
+                // while interrupted, the end of the interrupt decides
+                if (phase == Phase.RECONNECTING && interrupts.isEmpty()) {
+                    out.add(Effect.RECONNECT_NOW);
+                }
+                break;
+
+            case CLOSE:
+                if (phase == Phase.RECONNECTING) {
+                    out.add(Effect.CANCEL_RECONNECT);
+                }
+                out.add(Effect.CLOSE);
+                resumePending = false;
+                interrupts.clear();
+                phase = Phase.STOPPED;
+                break;
+
+            case RECONNECT_STARTED:
+                if (phase != Phase.INTERRUPTED) {
+                    phase = Phase.RECONNECTING;
+                }
+                break;
+
+            case RECONNECT_ENDED:
+                if (phase == Phase.RECONNECTING) {
+                    phase = m.flag ? Phase.PLAYING : Phase.STOPPED;
+                }
+                break;
+
+            case PLAYER_PLAYING:
+                if (!interrupts.isEmpty()) {
+                    // started behind our back during a call, e.g. a late reconnect
+                    out.add(Effect.PAUSE);
+                    resumePending = true;
+                    phase = Phase.INTERRUPTED;
+                } else if (phase != Phase.RECONNECTING) {
+                    phase = Phase.PLAYING;
+                }
+                break;
+
+            case PLAYER_PAUSED:
+                if (phase == Phase.PLAYING) {
+                    phase = Phase.PAUSED;
+                }
+                break;
+
+            case PLAYER_STOPPED:
+            case PLAYER_ERROR:
+                if (phase == Phase.PLAYING || phase == Phase.PAUSED || phase == Phase.IDLE) {
+                    phase = Phase.STOPPED;
+                }
+                break;
+        }
+
+        if (phase == s.phase && connected == s.connected && resumePending == s.resumePending
+                && interrupts.equals(s.interrupts)) {
+            return new Transition(s, out);
+        }
+        Set<INTERRUPT_TYPE> frozen = interrupts.isEmpty()
+                ? Collections.<INTERRUPT_TYPE>emptySet() : Collections.unmodifiableSet(interrupts);
+        return new Transition(new Snapshot(phase, frozen, connected, resumePending, s.version + 1), out);
+    }
+}
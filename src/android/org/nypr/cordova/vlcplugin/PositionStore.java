@@ -0,0 +1,550 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers where playback was in each on demand URI, and what was playing last (item,
+ * position and queue), across process restarts.
+ *
+ * Updates go to memory right away and are appended to a log file in the background, at most
+ * once per write interval unless flushed (on pause, stop, end). The log is rewritten with only
+ * the latest records once it has grown well past them. A record cut short by the process
+ * dying is dropped on the next load.
+ */
+public class PositionStore {
+
+    protected static final String LOG_TAG = "PositionStore";
+
+    private static final int FILE_VERSION = 1;
+    private static final byte RECORD_POSITION = 1;
+    private static final byte RECORD_FORGET = 2;
+    private static final byte RECORD_SESSION = 3;
+
+    private static final int DEFAULT_MAX_ENTRIES = 500;
+    private static final long DEFAULT_WRITE_INTERVAL = 5000;
+    private static final int MIN_RECORDS_TO_COMPACT = 64;
+    // how long a caller waits for the initial load before going on without it
+    private static final long LOAD_WAIT = 50;
+
+    public static class Session {
+        public final PlayQueue.Item item;
+        public final long position;
+        public final List<PlayQueue.Item> queue;
+        public final long savedAt;
+
+        Session(PlayQueue.Item item, long position, List<PlayQueue.Item> queue, long savedAt) {
+            this.item = item;
+            this.position = position;
+            this.queue = queue;
+            this.savedAt = savedAt;
+        }
+
+        Session withPosition(long position, long savedAt) {
+            return new Session(item, position, queue, savedAt);
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("file", item.file);
+            json.put("title", item.title);
+            json.put("artist", item.artist);
+            json.put("imageUrl", item.imageUrl);
+            json.put("audio", item.audioJson);
+            json.put("isStream", item.isStream);
+            json.put("position", position);
+            json.put("savedAt", savedAt);
+            JSONArray list = new JSONArray();
+            for (PlayQueue.Item queued : queue) {
+                list.put(queued.toJSON());
+            }
+            json.put("queue", list);
+            return json;
+        }
+    }
+
+    private final File file;
+    private final ScheduledExecutorService io = Executors.newSingleThreadScheduledExecutor();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private final Map<String, Long> positions;
+
+    private boolean enabled = true;
+    private boolean resume;
+    private long writeInterval = DEFAULT_WRITE_INTERVAL;
+    private Session session;
+
+    // not yet written; a negative position forgets the URI
+    private final Map<String, Long> dirtyPositions = new LinkedHashMap<String, Long>();
+    private boolean sessionDirty;
+    private boolean writeScheduled;
+
+    // touched on the io thread only
+    private int logRecords;
+    private long appends;
+    private long compactions;
+
+    public PositionStore(File file) {
+        this(file, DEFAULT_MAX_ENTRIES);
+    }
+
+    public PositionStore(File file, final int maxEntries) {
+        this.file = file;
+        this.positions = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /*
+        { "enabled": true, "resume": false, "writeInterval": 5000 }
+
+        "resume" starts on demand audio played from position 0 where it was left instead
+     */
+    public synchronized void configure(JSONObject config) {
+        if (config == null) {
+            return;
+        }
+        enabled = config.optBoolean("enabled", enabled);
+        resume = config.optBoolean("resume", resume);
+        writeInterval = Math.max(0, config.optLong("writeInterval", writeInterval));
+    }
+
+    public synchronized boolean isResumeEnabled() {
+        return enabled && resume;
+    }
+
+    public void loadAsync() {
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load();
+                } finally {
+                    loaded.countDown();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the saved position in ms, or 0 if there is none
+     */
+    public long getPosition(String uri) {
+        awaitLoaded();
+        synchronized (this) {
+            Long position = uri != null ? positions.get(uri) : null;
+            return position != null ? position : 0;
+        }
+    }
+
+    /**
+     * Never waits for the initial load, see whenLoaded().
+     *
+     * @return what was playing last, or null (also if the file is not loaded yet)
+     */
+    public synchronized Session getSession() {
+        return session;
+    }
+
+    /**
+     * Runs the task on the store's own thread once the initial load has finished.
+     */
+    public void whenLoaded(Runnable task) {
+        try {
+            // the load is queued first and the thread takes tasks in order
+            io.execute(task);
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Dropping task: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records the position in an on demand URI, and in the session if it is the one playing.
+     */
+    public void record(String uri, long position) {
+        if (uri == null || position < 0) {
+            return;
+        }
+        synchronized (this) {
+            if (!enabled) {
+                return;
+            }
+            Long old = positions.put(uri, position);
+            if (old != null && old == position) {
+                return;
+            }
+            dirtyPositions.put(uri, position);
+            if (session != null && uri.equals(session.item.file)) {
+                session = session.withPosition(position, System.currentTimeMillis());
+                sessionDirty = true;
+            }
+        }
+        scheduleWrite(false);
+    }
+
+    /**
+     * Drops the position of a URI, e.g. once it has been played to the end.
+     */
+    public void forget(String uri) {
+        if (uri == null) {
+            return;
+        }
+        synchronized (this) {
+            if (!enabled) {
+                return;
+            }
+            // before the load finishes the URI may still be on its way in
+            if (positions.remove(uri) == null && loaded.getCount() == 0) {
+                return;
+            }
+            dirtyPositions.put(uri, -1L);
+            if (session != null && uri.equals(session.item.file)) {
+                session = session.withPosition(0, System.currentTimeMillis());
+                sessionDirty = true;
+            }
+        }
+        scheduleWrite(false);
+    }
+
+    /**
+     * Records what is playing now and what is queued after it.
+     */
+    public void setSession(PlayQueue.Item item, long position, List<PlayQueue.Item> queue) {
+        synchronized (this) {
+            if (!enabled) {
+                return;
+            }
+            session = new Session(item, position, Collections.unmodifiableList(new ArrayList<PlayQueue.Item>(queue)),
+                    System.currentTimeMillis());
+            sessionDirty = true;
+        }
+        scheduleWrite(false);
+    }
+
+    public void setQueue(List<PlayQueue.Item> queue) {
+        synchronized (this) {
+            if (!enabled || session == null) {
+                return;
+            }
+            session = new Session(session.item, session.position,
+                    Collections.unmodifiableList(new ArrayList<PlayQueue.Item>(queue)), System.currentTimeMillis());
+            sessionDirty = true;
+        }
+        scheduleWrite(false);
+    }
+
+    /**
+     * Writes pending updates now instead of at the end of the write interval.
+     */
+    public void flush() {
+        scheduleWrite(true);
+    }
+
+    public void shutdown() {
+        flush();
+        io.shutdown();
+    }
+
+    public synchronized JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("enabled", enabled);
+        json.put("entries", positions.size());
+        json.put("pending", dirtyPositions.size() + (sessionDirty ? 1 : 0));
+        json.put("appends", appends);
+        json.put("compactions", compactions);
+        return json;
+    }
+
+    private void scheduleWrite(boolean now) {
+        synchronized (this) {
+            if (writeScheduled && !now) {
+                return;
+            }
+            writeScheduled = true;
+        }
+        Runnable write = new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        };
+        try {
+            if (now) {
+                io.execute(write);
+            } else {
+                io.schedule(write, writeInterval, TimeUnit.MILLISECONDS);
+            }
+        } catch (RuntimeException e) {
+            // shut down, the last flush already went out
+            Log.w(LOG_TAG, "Dropping write: " + e.getMessage());
+        }
+    }
+
+    private void awaitLoaded() {
+        try {
+            if (!loaded.await(LOAD_WAIT, TimeUnit.MILLISECONDS)) {
+                Log.w(LOG_TAG, "Positions not loaded yet");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        long start = System.nanoTime();
+        DataInputStream in = null;
+        int records = 0;
+        boolean truncated = false;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION) {
+                Log.d(LOG_TAG, "Unknown file version, starting over");
+                truncated = true;
+                return;
+            }
+            Map<String, Long> read = new LinkedHashMap<String, Long>();
+            Session readSession = null;
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                try {
+                    if (type == RECORD_POSITION) {
+                        String uri = in.readUTF();
+                        read.remove(uri);
+                        read.put(uri, in.readLong());
+                    } else if (type == RECORD_FORGET) {
+                        read.remove(in.readUTF());
+                    } else if (type == RECORD_SESSION) {
+                        readSession = readSession(in);
+                    } else {
+                        throw new IOException("Unknown record " + type);
+                    }
+                } catch (IOException e) {
+                    // a write cut short, everything before it is good
+                    Log.d(LOG_TAG, "Dropping damaged tail after " + records + " records: " + e.getMessage());
+                    truncated = true;
+                    break;
+                }
+                records++;
+            }
+            synchronized (this) {
+                // updates made while loading are newer, keep them
+                for (Map.Entry<String, Long> e : read.entrySet()) {
+                    if (!dirtyPositions.containsKey(e.getKey())) {
+                        positions.put(e.getKey(), e.getValue());
+                    }
+                }
+                if (session == null) {
+                    session = readSession;
+                }
+            }
+            Log.d(LOG_TAG, "Loaded " + read.size() + " positions from " + records + " records in "
+                    + (System.nanoTime() - start) / 1000 + "us");
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not load positions: " + e.getMessage());
+            truncated = true;
+        } finally {
+            closeQuietly(in);
+            logRecords = records;
+            if (truncated) {
+                // never append after a damaged record
+                compact();
+            }
+        }
+    }
+
+    private void write() {
+        Map<String, Long> pending;
+        Session pendingSession;
+        synchronized (this) {
+            writeScheduled = false;
+            if (dirtyPositions.isEmpty() && !sessionDirty) {
+                return;
+            }
+            pending = new LinkedHashMap<String, Long>(dirtyPositions);
+            dirtyPositions.clear();
+            pendingSession = sessionDirty ? session : null;
+            sessionDirty = false;
+        }
+
+        if (!file.exists() || logRecords >= Math.max(MIN_RECORDS_TO_COMPACT, 2 * (currentSize() + 1))) {
+            compact();
+            return;
+        }
+
+        // one buffer, one write: a crash leaves at most the last record short
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        FileOutputStream fos = null;
+        try {
+            for (Map.Entry<String, Long> e : pending.entrySet()) {
+                writePosition(out, e.getKey(), e.getValue());
+            }
+            if (pendingSession != null) {
+                writeSession(out, pendingSession);
+            }
+            out.flush();
+            fos = new FileOutputStream(file, true);
+            fos.write(bytes.toByteArray());
+            fos.close();
+            fos = null;
+            logRecords += pending.size() + (pendingSession != null ? 1 : 0);
+            appends++;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not append positions: " + e.getMessage());
+        } finally {
+            closeQuietly(fos);
+        }
+    }
+
+    private void compact() {
+        List<Map.Entry<String, Long>> snapshot;
+        Session current;
+        synchronized (this) {
+            snapshot = new ArrayList<Map.Entry<String, Long>>(positions.entrySet());
+            current = session;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FILE_VERSION);
+            for (Map.Entry<String, Long> e : snapshot) {
+                writePosition(out, e.getKey(), e.getValue());
+            }
+            if (current != null) {
+                writeSession(out, current);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.e(LOG_TAG, "Could not replace " + file);
+                return;
+            }
+            logRecords = snapshot.size() + (current != null ? 1 : 0);
+            compactions++;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not compact positions: " + e.getMessage());
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private synchronized int currentSize() {
+        return positions.size();
+    }
+
+    private static void writePosition(DataOutputStream out, String uri, long position) throws IOException {
+        if (position < 0) {
+            out.writeByte(RECORD_FORGET);
+            out.writeUTF(uri);
+        } else {
+            out.writeByte(RECORD_POSITION);
+            out.writeUTF(uri);
+            out.writeLong(position);
+        }
+    }
+
+    private static void writeSession(DataOutputStream out, Session session) throws IOException {
+        out.writeByte(RECORD_SESSION);
+        out.writeLong(session.position);
+        out.writeLong(session.savedAt);
+        writeItem(out, session.item);
+        out.writeInt(session.queue.size());
+        for (PlayQueue.Item item : session.queue) {
+            writeItem(out, item);
+        }
+    }
+
+    private static Session readSession(DataInputStream in) throws IOException {
+        long position = in.readLong();
+        long savedAt = in.readLong();
+        PlayQueue.Item item = readItem(in);
+        int count = in.readInt();
+        if (count < 0 || count > 10000) {
+            throw new IOException("Bad queue length " + count);
+        }
+        List<PlayQueue.Item> queue = new ArrayList<PlayQueue.Item>(count);
+        for (int i = 0; i < count; i++) {
+            queue.add(readItem(in));
+        }
+        return new Session(item, position, Collections.unmodifiableList(queue), savedAt);
+    }
+
+    private static void writeItem(DataOutputStream out, PlayQueue.Item item) throws IOException {
+        writeString(out, item.file);
+        writeString(out, item.title);
+        writeString(out, item.artist);
+        writeString(out, item.imageUrl);
+        writeString(out, item.audioJson.toString());
+        out.writeBoolean(item.isStream);
+    }
+
+    private static PlayQueue.Item readItem(DataInputStream in) throws IOException {
+        String file = readString(in);
+        String title = readString(in);
+        String artist = readString(in);
+        String imageUrl = readString(in);
+        String audio = readString(in);
+        boolean isStream = in.readBoolean();
+        JSONObject audioJson;
+        try {
+            audioJson = audio != null ? new JSONObject(audio) : null;
+        } catch (JSONException e) {
+            audioJson = null;
+        }
+        return new PlayQueue.Item(0, file, title, artist, imageUrl, audioJson, isStream);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.nypr.cordova.vlcplugin;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Random;
+
+/**
+ * Keeps track of a reconnect after the network dropped: where to resume, how many attempts
+ * were made, and how long to wait before the next one (exponential backoff with jitter, so
+ * a lot of clients losing the same cell do not all come back at the same moment).
+ */
+public class ReconnectEngine {
+
+    private static final long DEFAULT_BASE_DELAY = 1000;
+    private static final long DEFAULT_MAX_DELAY = 30000;
+    private static final int DEFAULT_MAX_ATTEMPTS = 10;
+    private static final long DEFAULT_ATTEMPT_TIMEOUT = 15000;
+
+    private final Random random = new Random();
+
+    private boolean enabled = true;
+    private long baseDelay = DEFAULT_BASE_DELAY;
+    private long maxDelay = DEFAULT_MAX_DELAY;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long attemptTimeout = DEFAULT_ATTEMPT_TIMEOUT;
+
+    private boolean active;
+    private int attempt;
+    private long startedAt;
+    private long resumeTime;
+    private boolean live;
+
+    private long reconnects;
+    private long failures;
+    private long totalDuration;
+
+    /*
+        { "enabled": true, "baseDelay": 1000, "maxDelay": 30000, "maxAttempts": 10, "attemptTimeout": 15000 }
+     */
+    public synchronized void configure(JSONObject config) {
+        if (config == null) {
+            return;
+        }
+        enabled = config.optBoolean("enabled", enabled);
+        baseDelay = Math.max(0, config.optLong("baseDelay", baseDelay));
+        maxDelay = Math.max(baseDelay, config.optLong("maxDelay", maxDelay));
+        maxAttempts = Math.max(1, config.optInt("maxAttempts", maxAttempts));
+        attemptTimeout = Math.max(1000, config.optLong("attemptTimeout", attemptTimeout));
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Starts a reconnect. If one is already running it carries on, keeping its start time and
+     * resume point.
+     *
+     * @param resumeTime where playback was in ms, ignored for live streams
+     * @return false if reconnecting is turned off
+     */
+    public synchronized boolean begin(long resumeTime, boolean live, long now) {
+        if (!enabled) {
+            return false;
+        }
+        if (!active) {
+            active = true;
+            attempt = 0;
+            startedAt = now;
+            this.resumeTime = resumeTime;
+            this.live = live;
+        }
+        return true;
+    }
+
+    /**
+     * Counts an attempt.
+     *
+     * @return how long to wait before making it, or -1 if there are no attempts left
+     */
+    public synchronized long nextDelay() {
+        if (!active || attempt >= maxAttempts) {
+            return -1;
+        }
+        attempt++;
+        if (attempt == 1) {
+            // the first try goes right away, most drops are short
+            return 0;
+        }
+        long delay = Math.min(maxDelay, baseDelay << Math.min(attempt - 2, 20));
+        // "equal jitter": half fixed, half random
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * Called when playback is back.
+     *
+     * @return how long playback was gone, in ms
+     */
+    public synchronized long succeeded(long now) {
+        long duration = now - startedAt;
+        active = false;
+        reconnects++;
+        totalDuration += duration;
+        return duration;
+    }
+
+    /**
+     * Called when the attempts ran out.
+     *
+     * @return how long reconnecting went on, in ms
+     */
+    public synchronized long failed(long now) {
+        active = false;
+        failures++;
+        return now - startedAt;
+    }
+
+    public synchronized void cancel() {
+        active = false;
+    }
+
+    public synchronized int getAttempt() {
+        return attempt;
+    }
+
+    public synchronized long getResumeTime() {
+        return resumeTime;
+    }
+
+    public synchronized boolean isLive() {
+        return live;
+    }
+
+    public synchronized long getAttemptTimeout() {
+        return attemptTimeout;
+    }
+
+    public synchronized JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("enabled", enabled);
+        json.put("active", active);
+        json.put("attempt", attempt);
+        json.put("reconnects", reconnects);
+        json.put("failures", failures);
+        json.put("totalDuration", totalDuration);
+        return json;
+    }
+}
@@ -0,0 +1,128 @@
+package org.nypr.cordova.vlcplugin;
+
+/**
+ * Folds bursts of seek requests into a single pending seek, so only the last target
+ * is applied to the player, and measures how long an applied seek takes to show up
+ * as a TimeChanged event.
+ */
+public class SeekCoalescer {
+
+    /** how close (ms) a reported time must be to the applied target to count as the seek landing */
+    public static final long TOLERANCE = 1000;
+
+    public static class Request {
+        /** absolute target in ms, or -1 to seek relative to the current time */
+        public final long target;
+        /** offset in ms added to the target (or to the current time) */
+        public final long offset;
+        public final long requestedAt;
+
+        Request(long target, long offset, long requestedAt) {
+            this.target = target;
+            this.offset = offset;
+            this.requestedAt = requestedAt;
+        }
+
+        public long resolve(long currentTime) {
+            return (target >= 0 ? target : currentTime) + offset;
+        }
+    }
+
+    private boolean pending;
+    private long target = -1;
+    private long offset;
+    private long requestedAt;
+    private long appliedAt = -1;
+    private long appliedTarget = -1;
+
+    private long requested;
+    private long applied;
+    private long lastLatency = -1;
+
+    /**
+     * @return true if no seek was pending, meaning the caller must schedule one
+     */
+    public synchronized boolean offerAbsolute(long position, long now) {
+        target = position;
+        offset = 0;
+        return offer(now);
+    }
+
+    /**
+     * @return true if no seek was pending, meaning the caller must schedule one
+     */
+    public synchronized boolean offerRelative(long interval, long now) {
+        offset += interval;
+        return offer(now);
+    }
+
+    /**
+     * Takes the pending seek, or returns null when it was already taken.
+     */
+    public synchronized Request take() {
+        if (!pending) {
+            return null;
+        }
+        Request request = new Request(target, offset, requestedAt);
+        pending = false;
+        target = -1;
+        offset = 0;
+        return request;
+    }
+
+    /**
+     * @param position the position in ms the request was resolved to and handed to the player
+     */
+    public synchronized void markApplied(Request request, long position) {
+        appliedAt = request.requestedAt;
+        appliedTarget = position;
+        applied++;
+    }
+
+    /**
+     * Called for each TimeChanged event. Events still reporting the time from before
+     * the seek leave it waiting.
+     *
+     * @return the latency of the seek this event completes, or -1 if no seek was waiting
+     * or the time has not reached the target yet
+     */
+    public synchronized long onTimeChanged(long time, long now) {
+        if (appliedAt < 0 || Math.abs(time - appliedTarget) > TOLERANCE) {
+            return -1;
+        }
+        lastLatency = now - appliedAt;
+        appliedAt = -1;
+        appliedTarget = -1;
+        return lastLatency;
+    }
+
+    public synchronized void cancel() {
+        pending = false;
+        target = -1;
+        offset = 0;
+        appliedAt = -1;
+        appliedTarget = -1;
+    }
+
+    public synchronized long getRequestedCount() {
+        return requested;
+    }
+
+    public synchronized long getAppliedCount() {
+        return applied;
+    }
+
+    public synchronized long getLastLatency() {
+        return lastLatency;
+    }
+
+    private boolean offer(long now) {
+        requested++;
+        if (pending) {
+            return false;
+        }
+        pending = true;
+        requestedAt = now;
+        return true;
+    }
+}
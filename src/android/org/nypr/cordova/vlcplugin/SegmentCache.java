@@ -0,0 +1,238 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disk cache of remote files split into fixed size segments, evicted least recently used
+ * first once the total size goes over the limit.
+ *
+ * Layout: one directory per URL (named after a hash of the URL) holding a "length" file
+ * with the total content length and one file per cached segment, named after its index.
+ */
+public class SegmentCache {
+
+    protected static final String LOG_TAG = "SegmentCache";
+
+    public static final int SEGMENT_SIZE = 256 * 1024;
+
+    private static final String LENGTH_FILE = "length";
+
+    private final File root;
+    private volatile long maxBytes;
+    private long totalBytes;
+    // segment file -> size, in access order
+    private final LinkedHashMap<File, Long> segments = new LinkedHashMap<File, Long>(64, 0.75f, true);
+
+    public SegmentCache(File root, long maxBytes) {
+        this.root = root;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Rebuilds the index from what is on disk. Call once, off the main thread.
+     */
+    public void init() {
+        List<File> found = new ArrayList<File>();
+        File[] dirs = root.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                File[] files = dir.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File f : files) {
+                    if (f.getName().endsWith(".tmp")) {
+                        // left over from a write that did not finish
+                        f.delete();
+                    } else if (!f.getName().equals(LENGTH_FILE)) {
+                        found.add(f);
+                    }
+                }
+            }
+        }
+
+        Collections.sort(found, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+
+        synchronized (this) {
+            for (File f : found) {
+                if (!segments.containsKey(f)) {
+                    segments.put(f, f.length());
+                    totalBytes += f.length();
+                }
+            }
+            evict();
+        }
+        Log.d(LOG_TAG, "Cache holds " + found.size() + " segments, " + totalBytes + " bytes");
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        synchronized (this) {
+            evict();
+        }
+    }
+
+    public static String keyFor(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the content length stored for the key, or -1 if unknown
+     */
+    public long getLength(String key) {
+        File f = new File(new File(root, key), LENGTH_FILE);
+        if (!f.exists()) {
+            return -1;
+        }
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(f, "r");
+            return in.readLong();
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    public void putLength(String key, long length) {
+        File dir = new File(root, key);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(new File(dir, LENGTH_FILE), "rw");
+            out.writeLong(length);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not store length: " + e.getMessage());
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * @return the segment file if it is cached, or null
+     */
+    public File getSegment(String key, long index) {
+        File f = segmentFile(key, index);
+        synchronized (this) {
+            if (segments.get(f) == null) {
+                return null;
+            }
+        }
+        return f.exists() ? f : null;
+    }
+
+    public void putSegment(String key, long index, byte[] data, int length) {
+        if (maxBytes <= 0) {
+            return;
+        }
+        File dir = new File(root, key);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+        File f = segmentFile(key, index);
+        File tmp = null;
+        FileOutputStream out = null;
+        try {
+            // two requests can miss the same segment at once, each writes a file of its own
+            tmp = File.createTempFile("segment" + index + "-", ".tmp", dir);
+            out = new FileOutputStream(tmp);
+            out.write(data, 0, length);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(f)) {
+                tmp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not store segment: " + e.getMessage());
+            if (tmp != null) {
+                tmp.delete();
+            }
+            return;
+        } finally {
+            closeQuietly(out);
+        }
+
+        synchronized (this) {
+            Long old = segments.put(f, (long) length);
+            if (old != null) {
+                totalBytes -= old;
+            }
+            totalBytes += length;
+            evict();
+        }
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private File segmentFile(String key, long index) {
+        return new File(new File(root, key), String.valueOf(index));
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<File, Long>> it = segments.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<File, Long> eldest = it.next();
+            File f = eldest.getKey();
+            totalBytes -= eldest.getValue();
+            it.remove();
+            f.delete();
+
+            String[] left = f.getParentFile().list();
+            if (left != null && left.length == 1 && left[0].equals(LENGTH_FILE)) {
+                new File(f.getParentFile(), LENGTH_FILE).delete();
+                f.getParentFile().delete();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Turns a station URL into the URL of the stream itself before it is handed to LibVLC.
+ *
+ * Redirects are followed and M3U and PLS wrappers are read for the stream they point to.
+ * HLS playlists, master or media, are left as they are once redirects are followed: LibVLC
+ * switches between the variants of a master playlist itself, which it cannot do once a
+ * variant is pinned. This happens in the background, and results are cached for a while so switching
+ * back to a station does not go through it again. Stations that could not be resolved are
+ * remembered for a shorter while and played from their own URL, letting LibVLC try.
+ */
+public class StreamResolver {
+
+    protected static final String LOG_TAG = "StreamResolver";
+
+    public interface Callback {
+        /**
+         * Called on a resolver thread.
+         *
+         * @param resolved the stream URL, or the URL itself if it could not be resolved
+         */
+        void onResolved(String url, String resolved);
+    }
+
+    private static final long DEFAULT_TTL = 10 * 60 * 1000;
+    private static final long DEFAULT_NEGATIVE_TTL = 60 * 1000;
+    private static final int MAX_ENTRIES = 64;
+    private static final int MAX_REDIRECTS = 5;
+    // a playlist pointing at a playlist pointing at ...
+    private static final int MAX_DEPTH = 3;
+    private static final int MAX_PLAYLIST_BYTES = 64 * 1024;
+    private static final int TIMEOUT = 5000;
+
+    private static class Entry {
+        final String resolved;
+        final long expires;
+
+        Entry(String resolved, long expires) {
+            this.resolved = resolved;
+            this.expires = expires;
+        }
+    }
+
+    private static class Fetched {
+        final String url;
+        // null unless the response is a playlist
+        final String body;
+
+        Fetched(String url, String body) {
+            this.url = url;
+            this.body = body;
+        }
+    }
+
+    private boolean enabled = true;
+    private long ttl = DEFAULT_TTL;
+    private long negativeTtl = DEFAULT_NEGATIVE_TTL;
+
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final Map<String, List<Callback>> pending = new HashMap<String, List<Callback>>();
+    private final ExecutorService io = Executors.newFixedThreadPool(2);
+    private volatile String userAgent;
+
+    private long hits;
+    private long misses;
+    private long failures;
+
+    /*
+        { "enabled": true, "ttl": 600000, "negativeTtl": 60000 }
+     */
+    public synchronized void configure(JSONObject config) {
+        if (config == null) {
+            return;
+        }
+        enabled = config.optBoolean("enabled", enabled);
+        ttl = Math.max(0, config.optLong("ttl", ttl));
+        negativeTtl = Math.max(0, config.optLong("negativeTtl", negativeTtl));
+    }
+
+    public void setUserAgent(String userAgent) {
+        this.userAgent = userAgent;
+    }
+
+    /**
+     * @return the URL to play: the resolved stream, the URL itself if it is not resolved (or
+     * could not be); never blocks
+     */
+    public synchronized String lookup(String url) {
+        Entry entry = fresh(url);
+        return entry != null ? entry.resolved : url;
+    }
+
+    /**
+     * @return true if a lookup would not have to wait for the network
+     */
+    public synchronized boolean isResolved(String url) {
+        return !enabled || !isHttp(url) || fresh(url) != null;
+    }
+
+    /**
+     * Resolves the URL in the background, unless the cache has it, and hands the result to
+     * the callback. A resolution already running for the URL is not started again.
+     */
+    public void resolve(final String url, Callback callback) {
+        String cached = null;
+        synchronized (this) {
+            if (isResolved(url)) {
+                hits++;
+                cached = lookup(url);
+            }
+        }
+        if (cached != null) {
+            callback.onResolved(url, cached);
+            return;
+        }
+
+        synchronized (this) {
+            List<Callback> waiting = pending.get(url);
+            if (waiting != null) {
+                waiting.add(callback);
+                return;
+            }
+            waiting = new ArrayList<Callback>();
+            waiting.add(callback);
+            pending.put(url, waiting);
+            misses++;
+        }
+
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                String resolved;
+                boolean failed = false;
+                try {
+                    resolved = resolveNow(url);
+                    Log.d(LOG_TAG, "Resolved " + url + " to " + resolved + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Could not resolve " + url + ": " + e.getMessage());
+                    resolved = url;
+                    failed = true;
+                }
+
+                List<Callback> waiting;
+                synchronized (StreamResolver.this) {
+                    long now = SystemClock.elapsedRealtime();
+                    if (failed) {
+                        failures++;
+                    }
+                    cache.put(url, new Entry(resolved, now + (failed ? negativeTtl : ttl)));
+                    waiting = pending.remove(url);
+                }
+                if (waiting != null) {
+                    for (Callback c : waiting) {
+                        c.onResolved(url, resolved);
+                    }
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        io.shutdownNow();
+    }
+
+    public synchronized JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("enabled", enabled);
+        json.put("entries", cache.size());
+        json.put("hits", hits);
+        json.put("misses", misses);
+        json.put("failures", failures);
+        return json;
+    }
+
+    private Entry fresh(String url) {
+        Entry entry = cache.get(url);
+        if (entry != null && entry.expires <= SystemClock.elapsedRealtime()) {
+            cache.remove(url);
+            return null;
+        }
+        return entry;
+    }
+
+    private String resolveNow(String url) throws IOException {
+        String current = url;
+        for (int depth = 0; depth < MAX_DEPTH; depth++) {
+            Fetched fetched = fetch(current);
+            if (fetched.body == null) {
+                return fetched.url;
+            }
+            String next = parsePlaylist(fetched.url, fetched.body);
+            if (next == null) {
+                throw new IOException("Empty playlist");
+            }
+            if (next.equals(fetched.url) || !isHttp(next)) {
+                return next;
+            }
+            current = next;
+        }
+        return current;
+    }
+
+    /**
+     * Follows redirects by hand (HttpURLConnection will not go from http to https) and reads
+     * the body if it is a playlist.
+     */
+    private Fetched fetch(String url) throws IOException {
+        String location = url;
+        for (int i = 0; i <= MAX_REDIRECTS; i++) {
+            HttpURLConnection connection = (HttpURLConnection) new URL(location).openConnection();
+            InputStream in = null;
+            try {
+                connection.setConnectTimeout(TIMEOUT);
+                connection.setReadTimeout(TIMEOUT);
+                connection.setInstanceFollowRedirects(false);
+                if (userAgent != null) {
+                    connection.setRequestProperty("User-Agent", userAgent);
+                }
+                int status = connection.getResponseCode();
+                if (status >= 300 && status < 400 && status != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    String redirect = connection.getHeaderField("Location");
+                    if (redirect == null) {
+                        throw new IOException("HTTP " + status + " without a location");
+                    }
+                    location = new URL(new URL(location), redirect).toString();
+                    continue;
+                }
+                if (status != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("HTTP " + status);
+                }
+                if (!isPlaylist(location, connection.getContentType())) {
+                    // the stream itself, do not read any of it
+                    return new Fetched(location, null);
+                }
+                in = connection.getInputStream();
+                return new Fetched(location, readText(in));
+            } finally {
+                closeQuietly(in);
+                connection.disconnect();
+            }
+        }
+        throw new IOException("Too many redirects");
+    }
+
+    private String parsePlaylist(String base, String body) throws IOException {
+        String[] lines = body.split("\r?\n");
+
+        if (body.toLowerCase(Locale.US).contains("[playlist]")) {
+            // PLS: File1=..., File2=...; the first one
+            for (String line : lines) {
+                String trimmed = line.trim();
+                int eq = trimmed.indexOf('=');
+                if (eq > 0 && trimmed.substring(0, eq).toLowerCase(Locale.US).startsWith("file")) {
+                    return absolute(base, trimmed.substring(eq + 1).trim());
+                }
+            }
+            return null;
+        }
+
+        if (body.contains("#EXT-X-STREAM-INF") || body.contains("#EXT-X-TARGETDURATION")
+                || body.contains("#EXT-X-MEDIA-SEQUENCE")) {
+            // HLS, master or media playlist: what LibVLC should open
+            return base;
+        }
+
+        // M3U: the first entry
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.length() > 0 && !trimmed.startsWith("#")) {
+                return absolute(base, trimmed);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isPlaylist(String url, String contentType) {
+        if (contentType != null) {
+            String type = contentType.toLowerCase(Locale.US);
+            if (type.contains("mpegurl") || type.contains("scpls") || type.contains("x-pls")) {
+                return true;
+            }
+            if (type.startsWith("audio/") || type.startsWith("video/") || type.startsWith("application/ogg")) {
+                return false;
+            }
+        }
+        // servers that send text/plain or nothing at all
+        String path = url;
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        path = path.toLowerCase(Locale.US);
+        return path.endsWith(".m3u") || path.endsWith(".m3u8") || path.endsWith(".pls");
+    }
+
+    private static boolean isHttp(String url) {
+        return url.startsWith("http://") || url.startsWith("https://");
+    }
+
+    private static String absolute(String base, String entry) throws IOException {
+        return new URL(new URL(base), entry).toString();
+    }
+
+    private static String readText(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while (out.size() < MAX_PLAYLIST_BYTES && (n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recent history of what the player did, for bug reports, cheap enough for the progress path.
+ *
+ * Records are typed (a record type and two numbers, plus optionally a reference to an object
+ * that already exists, such as an action name) and go into preallocated arrays used as a
+ * ring, so recording neither formats strings nor allocates. Nothing is turned into text until
+ * the trace is dumped. Echoing to logcat is off unless turned on.
+ */
+public final class Trace {
+
+    protected static final String LOG_TAG = "Trace";
+
+    public static final int LEVEL_OFF = 0;
+    public static final int LEVEL_BASIC = 1;
+    public static final int LEVEL_VERBOSE = 2;
+    private static final String[] LEVEL_NAMES = {"off", "basic", "verbose"};
+
+    // record types
+    public static final int COMMAND = 0;
+    public static final int PLAY = 1;
+    public static final int PLAYER_EVENT = 2;
+    public static final int PROGRESS = 3;
+    public static final int SEEK = 4;
+    public static final int STALL = 5;
+    public static final int RECONNECT = 6;
+    public static final int ERROR = 7;
+    public static final int LIVE = 8;
+    private static final String[] TYPE_NAMES = {"command", "play", "playerEvent", "progress", "seek", "stall", "reconnect", "error", "live"};
+
+    private static final int CAPACITY = 2048;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final long[] times = new long[CAPACITY];
+    private static final int[] types = new int[CAPACITY];
+    private static final long[] firsts = new long[CAPACITY];
+    private static final long[] seconds = new long[CAPACITY];
+    private static final Object[] refs = new Object[CAPACITY];
+    private static final AtomicLong next = new AtomicLong();
+
+    private static volatile int level = LEVEL_BASIC;
+    private static volatile boolean logcat;
+
+    private Trace() {
+    }
+
+    /*
+        { "level": "basic", "logcat": false }
+
+        "verbose" adds every player event and progress update
+     */
+    public static void configure(JSONObject config) {
+        if (config == null) {
+            return;
+        }
+        String name = config.optString("level", null);
+        if (name != null) {
+            for (int i = 0; i < LEVEL_NAMES.length; i++) {
+                if (LEVEL_NAMES[i].equalsIgnoreCase(name)) {
+                    level = i;
+                }
+            }
+        }
+        logcat = config.optBoolean("logcat", logcat);
+    }
+
+    public static boolean isEnabled(int atLevel) {
+        return atLevel <= level;
+    }
+
+    public static void record(int atLevel, int type, long first, long second) {
+        record(atLevel, type, first, second, null);
+    }
+
+    /**
+     * @param ref an object that already exists, kept as is and only turned into text on dump
+     */
+    public static void record(int atLevel, int type, long first, long second, Object ref) {
+        if (atLevel > level) {
+            return;
+        }
+        int slot = (int) (next.getAndIncrement() & MASK);
+        times[slot] = SystemClock.elapsedRealtime();
+        types[slot] = type;
+        firsts[slot] = first;
+        seconds[slot] = second;
+        refs[slot] = ref;
+        if (logcat) {
+            Log.d(LOG_TAG, TYPE_NAMES[type] + " " + first + " " + second + (ref != null ? " " + ref : ""));
+        }
+    }
+
+    /**
+     * @param max the most recent records to include, 0 for all that are kept
+     */
+    public static JSONObject dump(int max) throws JSONException {
+        long end = next.get();
+        long kept = Math.min(end, CAPACITY);
+        long count = max > 0 ? Math.min(kept, max) : kept;
+        long now = SystemClock.elapsedRealtime();
+
+        JSONArray records = new JSONArray();
+        for (long i = end - count; i < end; i++) {
+            int slot = (int) (i & MASK);
+            JSONObject record = new JSONObject();
+            record.put("t", times[slot]);
+            record.put("age", now - times[slot]);
+            record.put("type", TYPE_NAMES[types[slot]]);
+            record.put("a", firsts[slot]);
+            record.put("b", seconds[slot]);
+            Object ref = refs[slot];
+            if (ref != null) {
+                record.put("ref", String.valueOf(ref));
+            }
+            records.put(record);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("level", LEVEL_NAMES[level]);
+        json.put("recorded", end);
+        json.put("dropped", end - kept);
+        json.put("records", records);
+        return json;
+    }
+}
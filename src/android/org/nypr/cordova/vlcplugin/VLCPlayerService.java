@@ -2,46 +2,39 @@ package org.nypr.cordova.vlcplugin;
 
 import android.app.Activity;
 import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.graphics.Bitmap;
 import android.media.AudioManager;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.IBinder;
-import android.support.v4.app.NotificationCompat;
+import android.os.SystemClock;
 import android.util.Log;
-import android.widget.RemoteViews;
 
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.wqxr.android.R;
-import org.videolan.libvlc.LibVLC;
-import org.videolan.libvlc.Media;
 import org.videolan.libvlc.MediaPlayer;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
 
 import 	java.io.File;
-import java.util.Timer;
-import java.util.TimerTask;
 
 
-public class VLCPlayerService extends Service implements MediaPlayer.EventListener, AudioManager.OnAudioFocusChangeListener {
+public class VLCPlayerService extends Service implements Player.Listener, AudioManager.OnAudioFocusChangeListener {
 
     private static final String LOG_TAG = "VLCPlayerService";
     private static final int NOTIFICATION_ID = 100;
+    public static final String ACTION_CLOSE = "org.nypr.cordova.vlcplugin.CLOSE";
 
-    private Timer flushBufferTimer;
+    private PlayerScheduler.Task flushBufferTask;
     private static final int FLUSH_BUFFER_TIMEOUT = 1000 * 30;
+    private static final int IDLE_RELEASE_TIMEOUT = 1000 * 60 * 5;
+    private static final long BYTES_SAMPLE_INTERVAL = 5000;
+    private static final long DEFAULT_PROXY_CACHE_BYTES = 200L * 1024 * 1024;
 
     private AudioManager audioManager;
 
@@ -53,53 +46,33 @@ public class VLCPlayerService extends Service implements MediaPlayer.EventListen
 
     private LocalBinder binder = new LocalBinder();
 
-    private BroadcastReceiver receiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
+    private void onNetworkChanged(NetworkMonitor.Snapshot previous, NetworkMonitor.Snapshot current) {
+        downloadManager.onConnectivityChanged(current.connected);
+        bufferingController.setConnection(current.connection);
 
-            ConnectivityManager conn = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
-            NetworkInfo networkInfo = conn.getActiveNetworkInfo();
-
-            if (networkInfo != null && (networkInfo.getType() == ConnectivityManager.TYPE_MOBILE ||
-                    networkInfo.getType() == ConnectivityManager.TYPE_WIFI)) {
-
-                // network connection obtained - restart audio if necessary
-                if (lastConnectionType == -1 && !mediaPlayer.isPlaying() && restartAudioWhenConnected) {
-                    mediaPlayer.setMedia(currentlyPlaying);
-                    getAudioPlayerGetFocusAndPlay();
-                    mediaPlayer.setPosition(lastPosition);
-                }
-                lastConnectionType = networkInfo.getType();
-            } else {
-
-                boolean isLocalFile = false;
-                if (mediaPlayer.getMedia() != null &&
-                    mediaPlayer.getMedia().getUri() != null) {
-
-                    // check if audio is local
-                    File file = new File(mediaPlayer.getMedia().getUri().getPath());
-                    isLocalFile = file.exists();
-                }
+        if (current.connected) {
+            // network connection obtained
+            if (!previous.connected) {
+                stateMachine.send(PlayerStateMachine.Message.of(PlayerStateMachine.Signal.NETWORK_AVAILABLE));
+            }
+        } else if (previous.connected) {
+            // loss of network connection only matters for remote audio, told apart by the
+            // scheme rather than by looking for the file
+            PlayerMedia media = player.getMedia();
+            boolean isLocalFile = media != null && media.getLocation().startsWith("file:");
+            stateMachine.send(PlayerStateMachine.Message.of(PlayerStateMachine.Signal.NETWORK_LOST, !isLocalFile));
+        }
 
-                // handle loss of network connection for remote audio
-                if (!isLocalFile) {
-                    // Save the position for when we get network connection back
-                    lastPosition = mediaPlayer.getPosition();
-
-                    if (mediaPlayer.isPlaying()) {
-                        mediaPlayer.pause();
-                        restartAudioWhenConnected = true;
-                    } else {
-                        mediaPlayer.stop();
-                        restartAudioWhenConnected = false;
-                    }
-                } else {
-                    restartAudioWhenConnected = false;
-                }
-                lastConnectionType = -1;
+        if (mListener != null) {
+            try {
+                JSONObject json = current.toJSON();
+                json.put("type", "network");
+                mListener.onPlayerEvent(json);
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, e.getMessage());
             }
         }
-    };
+    }
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -113,7 +86,10 @@ public class VLCPlayerService extends Service implements MediaPlayer.EventListen
 
         if (intent == null) {
             stopForeground(true);
+            notificationUpdater.onRemoved();
             this.stopSelf();
+        } else if (ACTION_CLOSE.equals(intent.getAction())) {
+            stateMachine.send(PlayerStateMachine.Message.of(PlayerStateMachine.Signal.CLOSE));
         }
         return i;
     }
@@ -126,28 +102,169 @@ public class VLCPlayerService extends Service implements MediaPlayer.EventListen
 
         audioManager = (AudioManager) getApplicationContext().getSystemService(Context.AUDIO_SERVICE);
 
-        mPendingInterrupts = new HashSet<OnAudioInterruptListener.INTERRUPT_TYPE>();
+        String directory = VLCPlugin.getDirectory(this);
+        setUp(new PlayerScheduler("VLCPlayer"), getFilesDir(), directory != null ? new File(directory) : VLCPlugin.getInternalDirectory(this));
 
-        ArrayList<String> options = new ArrayList<String>();
-        // Options correspond to the VLC Commandline Options...
-        //     List: https://wiki.videolan.org/VLC_command-line_help/
+        Log.d(LOG_TAG, "Started NYPR Audio Player");
 
-        // If youd like to turn on advanced logging, uncomment below.
-        // options.add("--log-verbose=2");
-        // options.add("-vvv");
-        libVLC = new LibVLC(this, options);
-        mediaPlayer = new MediaPlayer(libVLC);
-        mediaPlayer.setEventListener(this);
+        // artwork is shown 64dp square
+        int artworkSize = (int) (64 * getResources().getDisplayMetrics().density);
+        artworkCache = new ArtworkCache(new File(getCacheDir(), "vlc_artwork"), artworkSize);
+        notificationUpdater = new NotificationUpdater(this, NOTIFICATION_ID, artworkCache, new ArtworkCache.Callback() {
+            @Override
+            public void onArtworkLoaded(final String url, final Bitmap bitmap) {
+                scheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        notificationUpdater.onArtworkLoaded(url, bitmap);
+                    }
+                });
+            }
+        });
 
-        Log.d(LOG_TAG, "Started NYPR Audio Player");
+        networkMonitor = new NetworkMonitor(this, new NetworkMonitor.Listener() {
+            @Override
+            public void onNetworkChanged(final NetworkMonitor.Snapshot previous, final NetworkMonitor.Snapshot current) {
+                scheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        VLCPlayerService.this.onNetworkChanged(previous, current);
+                    }
+                });
+            }
+        });
+        networkMonitor.start();
+    }
+
+    /**
+     * Everything but the Android services (audio focus, notification, network monitor), so
+     * benchmarks and tests can run the player on a plain JVM with their own scheduler and engine.
+     */
+    void setUp(PlayerScheduler scheduler, File filesDir, File downloadDirectory) {
+        this.scheduler = scheduler;
+        crossfader = new Crossfader(scheduler);
+        stateMachine = new PlayerStateMachine(scheduler, new PlayerStateMachine.Effects() {
+            @Override
+            public void perform(PlayerStateMachine.Effect effect) {
+                performEffect(effect);
+            }
+        });
+
+        downloadManager = new DownloadManager(downloadDirectory,
+                new DownloadManager.Listener() {
+                    @Override
+                    public void onDownloadUpdated(JSONObject status) {
+                        if (mListener != null) {
+                            mListener.onPlayerEvent(status);
+                        }
+                    }
+                });
+
+        metadataCache = new MediaMetadataCache(new File(filesDir, "vlc_media_metadata"));
+        metadataCache.loadAsync();
+
+        positionStore = new PositionStore(new File(filesDir, "vlc_positions"));
+        positionStore.loadAsync();
+
+        createPlayer(profile);
+    }
+
+    private void createPlayer(PlayerProfile profile) {
+        engine = createEngine(profile);
+        if (userAgent != null) {
+            engine.setUserAgent(userAgent[0], userAgent[1]);
+        }
+        player = engine.newPlayer();
+        player.setListener(this);
+        player.setAudioDelay(profile.getAudioDelay());
+        bufferingController.setBase(profile.getNetworkCaching());
+    }
+
+    protected Player.Engine createEngine(PlayerProfile profile) {
+        ArrayList<String> options = profile.toOptions();
+        Log.d(LOG_TAG, "Creating LibVLC with profile " + profile.getName() + " " + options);
+        return new VlcPlayer.Engine(this, options);
+    }
+
+    /**
+     * Switches to a new profile. LibVLC only reads its options when it is created, so it is
+     * rebuilt; if audio is playing, or paused and can be resumed, that waits until the next
+     * item is started.
+     */
+    public void setProfile(PlayerProfile newProfile) {
+        if (newProfile.equals(profile)) {
+            pendingProfile = null;
+            fireProfileUpdated(profile, false);
+            return;
+        }
 
-        remoteViews = new RemoteViews(getPackageName(), R.layout.nypr_ph_hc_notification);
+        pendingProfile = newProfile;
+        if (hasResumableMedia()) {
+            Log.d(LOG_TAG, "Media loaded, profile " + newProfile.getName() + " applied with next item");
+            fireProfileUpdated(newProfile, true);
+        } else {
+            applyPendingProfile();
+        }
+    }
 
-        IntentFilter filter = new IntentFilter();
-        filter.addAction("android.net.conn.CONNECTIVITY_CHANGE");
-        registerReceiver(receiver, filter);
+    /**
+     * @return true if rebuilding the player now would lose media the user can still resume
+     */
+    private boolean hasResumableMedia() {
+        if (player.isPlaying()) {
+            return true;
+        }
+        switch (stateMachine.getSnapshot().phase) {
+            case PAUSED:
+            case INTERRUPTED:
+            case RECONNECTING:
+                return currentlyPlaying != null;
+            default:
+                return false;
+        }
+    }
 
-        mediaPlayer.setAudioDelay(4000);
+    public PlayerProfile getProfile() {
+        return profile;
+    }
+
+    private void applyPendingProfile() {
+        if (pendingProfile == null) {
+            return;
+        }
+
+        String currentLocation = currentlyPlaying != null ? currentlyPlaying.getLocation() : null;
+
+        cancelCrossfade();
+        player.setListener(null);
+        player.stop();
+        player.release();
+        engine.release();
+
+        // preloaded media belongs to the old LibVLC as well
+        releasePreload();
+
+        profile = pendingProfile;
+        pendingProfile = null;
+        createPlayer(profile);
+
+        // media belongs to the LibVLC instance it was created with
+        currentlyPlaying = currentLocation != null ? player.newMedia(currentLocation) : null;
+
+        fireProfileUpdated(profile, false);
+    }
+
+    private void fireProfileUpdated(PlayerProfile profile, boolean pending) {
+        if (mListener != null) {
+            try {
+                JSONObject json = profile.toJSON();
+                json.put("type", "profile");
+                json.put("pending", pending);
+                mListener.onPlayerEvent(json);
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, e.getMessage());
+            }
+        }
     }
 
     @Override
@@ -160,32 +277,85 @@ public class VLCPlayerService extends Service implements MediaPlayer.EventListen
 
     @Override
     public void onDestroy() {
-        mediaPlayer.stop();
-        libVLC.release();
-
-        unregisterReceiver(receiver);
-
-        audioManager.abandonAudioFocus(this);
+        artworkCache.shutdown();
+        networkMonitor.stop();
+        tearDown();
+        abandonAudioFocus();
 
         super.onDestroy();
         Log.d(LOG_TAG, "Service Destroyed");
     }
 
-    protected HashSet<OnAudioInterruptListener.INTERRUPT_TYPE> mPendingInterrupts;
+    /**
+     * Undoes setUp.
+     */
+    void tearDown() {
+        cancelReconnect();
+        downloadManager.shutdown();
+        metadataCache.shutdown();
+        positionStore.shutdown();
+        streamResolver.shutdown();
+        if (streamProxy != null) {
+            streamProxy.stop();
+        }
+        releasePreload();
+        cancelCrossfade();
+        player.stop();
+        engine.release();
+
+        scheduler.quit();
+    }
+
+    private PlayerStateMachine stateMachine;
     protected OnAudioStateUpdatedListenerVLC mListener;
     //protected STATE mLastStateFired;
-    private LibVLC libVLC;
-    private MediaPlayer mediaPlayer;
-    private Media currentlyPlaying;
-    private MediaPlayer.Event previousEvent;
-    private RemoteViews remoteViews;
+    private Player.Engine engine;
+    private Player player;
+    private PlayerMedia currentlyPlaying;
+    // last state delivered to the listener, -1 before the first
+    private int previousEventType = -1;
+    private long previousEventTime = -1;
+    private ArtworkCache artworkCache;
+    private NotificationUpdater notificationUpdater;
     public Activity cordovaActivity;
     NotificationManager mNotificationManager;
-    private float lastPosition;
-    private int lastConnectionType;
-    private boolean restartAudioWhenConnected;
+    private NetworkMonitor networkMonitor;
+    private PlayerProfile profile = PlayerProfile.named(PlayerProfile.DEFAULT);
+    private PlayerProfile pendingProfile;
+    private String[] userAgent;
+    private boolean currentIsStream;
+    private long lastTime;
 
     private int currentStateType;
+    private final EventRateGovernor eventGovernor = new EventRateGovernor();
+    private final SeekCoalescer seekCoalescer = new SeekCoalescer();
+    private final PlayQueue playQueue = new PlayQueue();
+    private PlayQueue.Item preloadedItem;
+    private PlayerMedia preloadedMedia;
+    // the next item, started on a second player ahead of a crossfade
+    private PlayQueue.Item incomingItem;
+    private Player incomingPlayer;
+    private Crossfader crossfader;
+    private MediaMetadataCache metadataCache;
+    private PositionStore positionStore;
+    // what startPlaying was last called with, for the position store
+    private PlayQueue.Item currentItem;
+    private LocalStreamProxy streamProxy;
+    private DownloadManager downloadManager;
+    private boolean proxyCaching;
+    private final ReconnectEngine reconnectEngine = new ReconnectEngine();
+    private final BufferingController bufferingController = new BufferingController();
+    private final LiveLatencyController liveLatency = new LiveLatencyController();
+    private final StreamResolver streamResolver = new StreamResolver();
+    // a stream waiting on the resolver only starts if nothing was asked of the player since
+    private int resolveRequest;
+    private PlayerScheduler scheduler;
+    private PlayerScheduler.Task reconnectTask;
+    private PlayerScheduler.Task reconnectTimeoutTask;
+    private PlayerScheduler.Task idleReleaseTask;
+    private PlayerScheduler.Task metricsTask;
+    private final PlaybackMetrics metrics = new PlaybackMetrics();
+    private long lastBytesSample;
 
     // AudioPlayer states
     /*
@@ -204,23 +374,86 @@ public class VLCPlayerService extends Service implements MediaPlayer.EventListen
         Log.d(LOG_TAG, "Set Audio State Listener " + mListener);
     }
 
+    public EventRateGovernor getEventGovernor() {
+        return eventGovernor;
+    }
+
     public JSONObject checkForExistingAudio() throws JSONException {
         Log.d(LOG_TAG, "On startup, checking service for pre-existing audio...");
         JSONObject json = null;
 
 
-        if (mediaPlayer.isPlaying()) {
-            Media media = mediaPlayer.getMedia();
+        if (player.isPlaying()) {
+            PlayerMedia media = player.getMedia();
             if (media != null) {
                 json = new JSONObject();
-                json.put("duration", media.getDuration());
+                json.put("duration", getDuration());
                 json.put("state", media.getState());
-                json.put("uri", media.getUri());
+                json.put("uri", media.getLocation());
+                json.put("position", lastTime);
             }
         }
         return json;
     }
 
+    public interface SessionCallback {
+        /**
+         * Called on the player thread.
+         *
+         * @param session the restored session, or null if there is none
+         */
+        void onSessionRestored(JSONObject session);
+    }
+
+    /**
+     * Looks up the last session saved by an earlier run of the service, once the position
+     * store has loaded, and restores it on the player thread if nothing is playing by then.
+     * Its queue is put back into the (empty) play queue, so JS only has to start the item.
+     */
+    public void restoreSession(final SessionCallback callback) {
+        positionStore.whenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                scheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        JSONObject session = null;
+                        try {
+                            session = restoreSessionNow();
+                        } catch (JSONException e) {
+                            Log.e(LOG_TAG, "Could not restore session: " + e.getMessage());
+                        }
+                        callback.onSessionRestored(session);
+                    }
+                });
+            }
+        });
+    }
+
+    private JSONObject restoreSessionNow() throws JSONException {
+        if (player.isPlaying()) {
+            return null;
+        }
+        PositionStore.Session session = positionStore.getSession();
+        if (session == null) {
+            return null;
+        }
+        if (playQueue.size() == 0 && !session.queue.isEmpty()) {
+            for (PlayQueue.Item item : session.queue) {
+                playQueue.add(item.file, item.title, item.artist, item.imageUrl, item.audioJson, item.isStream, -1);
+            }
+            Log.d(LOG_TAG, "Restored " + session.queue.size() + " queued items");
+            queueChanged();
+        }
+        JSONObject json = session.toJSON();
+        json.put("queue", playQueue.toJSON());
+        return json;
+    }
+
+    public PositionStore getPositionStore() {
+        return positionStore;
+    }
+
     /*
     public void onAudioStreamingError(int reason) {
         mListener.onAudioStreamingError(reason);
@@ -228,7 +461,7 @@ public class VLCPlayerService extends Service implements MediaPlayer.EventListen
     */
 
     public boolean isPlaying() {
-        return mediaPlayer != null && mediaPlayer.isPlaying();
+        return player != null && player.isPlaying();
     }
 
     /*
@@ -247,7 +480,7 @@ public class VLCPlayerService extends Service implements MediaPlayer.EventListen
     */
     /*
     public void refreshAudioInfo() {
-        if (mediaPlayer != null) {
+        if (player != null) {
             //Log.d(LOG_TAG, "NOT REFRESHING AUDIO INFO");
             /*
             mHater.setTitle(mPlaying.getTitle());
@@ -264,21 +497,17 @@ public class VLCPlayerService extends Service implements MediaPlayer.EventListen
     */
 
     public void startPlaying(String file, String title, String artist, String url, int position, JSONObject audioJson, boolean isStream) throws IOException {
-        Log.d(LOG_TAG, "Starting Audio--" + file);
-
-        /*
-        // handle m3u file
-        if (file.toUpperCase().endsWith("M3U")) {
-            Log.d(LOG_TAG, "M3U found, parsing...");
-            String parsed = "";//ParserM3UToURL.parse(file);
-            if (parsed != null) {
-                file = parsed;
-                Log.d(LOG_TAG, "Using parsed url--" + file);
-            } else {
-                Log.d(LOG_TAG, "No stream found in M3U");
-            }
-        }
-        */
+        startPlaying(file, title, artist, url, position, audioJson, isStream, null);
+    }
+
+    /**
+     * @param preloaded media already created (and parsed) for this file, or null to create it here
+     */
+    protected void startPlaying(String file, String title, String artist, String url, int position, JSONObject audioJson, boolean isStream, PlayerMedia preloaded) throws IOException {
+        Trace.record(Trace.LEVEL_BASIC, Trace.PLAY, position, isStream ? 1 : 0, file);
+        // a stream still waiting on the resolver is no longer wanted
+        resolveRequest++;
+
         // create a Uri object for audio
         Uri uri = Uri.parse(file);
 
@@ -301,66 +530,396 @@ public class VLCPlayerService extends Service implements MediaPlayer.EventListen
         extra.putBoolean("isStream", isStream);
         bundle.putBundle("extra", extra);
 
-        // create the Song object
-        // Song song = Songs.fromBundle(bundle);
-        Media media = new Media(libVLC, uri);
-
-        int estimatedDuration = 0;
-        try {
-            estimatedDuration = audioJson.getInt("estimated_duration");
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage());
+        cancelReconnect();
+        cancelCrossfade();
+        // a seek asked for or still landing on the previous item means nothing for this one
+        seekCoalescer.cancel();
+        stateMachine.send(PlayerStateMachine.Message.of(PlayerStateMachine.Signal.PLAY));
+        // the last bytes of the media before this one still count for its session
+        sampleBytes();
+        metrics.onPlayRequested(isStream, SystemClock.elapsedRealtime());
+        currentIsStream = isStream;
+        lastTime = 0;
+
+        // handed over by a crossfade, it is playing already and stays where it is
+        boolean started = preloaded != null && preloaded == player.getMedia();
+        if (!isStream && position <= 0 && !started && positionStore.isResumeEnabled()) {
+            position = (int) positionStore.getPosition(file);
+            if (position > 0) {
+                Log.d(LOG_TAG, "Resuming at saved position " + position + "ms");
+                if (preloaded != null) {
+                    // opened ahead from the start, resuming takes media loaded for it
+                    preloaded.release();
+                    preloaded = null;
+                }
+            }
         }
-        float pct = position / (float) estimatedDuration;
+        currentItem = new PlayQueue.Item(0, file, title, artist, url, audioJson, isStream);
+        positionStore.setSession(currentItem, Math.max(0, position), playQueue.snapshot());
 
-        remoteViews.setTextViewText(R.id.zzz_ph_notification_title, title);
-        remoteViews.setTextViewText(R.id.zzz_ph_notification_text, artist);
-
-        PendingIntent closeAppIntent = PendingIntent.getBroadcast(this, 1, new Intent(this, NotificationReceiver.class), 0);
+        // a profile change waiting for playback to stop takes effect with the next item
+        if (pendingProfile != null) {
+            applyPendingProfile();
+            preloaded = null;
+        }
 
-        remoteViews.setOnClickPendingIntent(R.id.zzz_ph_stop_button, closeAppIntent);
+        // create the Song object
+        // Song song = Songs.fromBundle(bundle);
+        PlayerMedia media;
+        if (preloaded != null) {
+            media = preloaded;
+            bufferingController.startSession(SystemClock.elapsedRealtime());
+        } else {
+            media = player.newMedia(playbackLocation(file, isStream));
+            applyNetworkCaching(media, bufferingController.choose(SystemClock.elapsedRealtime()));
+        }
 
-        PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, new Intent(this, cordovaActivity.getClass()), PendingIntent.FLAG_UPDATE_CURRENT);
+        // live mode keeps streams close to the live edge: small caching, no added audio delay
+        boolean live = isStream && liveLatency.isEnabled();
+        if (live) {
+            applyLiveCaching(media);
+            liveLatency.start();
+        } else {
+            liveLatency.stop();
+        }
+        player.setRate(1f);
+        player.setAudioDelay(live ? 0 : profile.getAudioDelay());
 
-        NotificationCompat.Builder mBuilder = new NotificationCompat
-                .Builder(this)
-                .setSmallIcon(R.drawable.zzz_ph_ic_notification)
-                .setContent(remoteViews)
-                .setOngoing(true)
-                .setContentIntent(pendingIntent);
+        if (position > 0 && !started) {
+            // a time rather than a fraction of the duration, which is often not known yet;
+            // LibVLC seeks there as it opens the media
+            media.addOption(":start-time=" + (position / 1000.0));
+        }
 
-        startForeground(NOTIFICATION_ID, mBuilder.build());
+        showNotification(title, artist, url);
 
         // play the Song
-        startPlaying(media, pct);
+        startPlaying(media);
     }
 
-    protected void startPlaying(Media media, float position) throws IOException {
+    /**
+     * Starts a stream once the resolver has found the stream behind the station URL
+     * (redirects, playlist wrappers); straight away if it already knows. Anything else asked
+     * of the player in the meantime wins over the stream.
+     */
+    public void playStream(final String file, final String title, final String artist, final String url, final JSONObject audioJson) throws IOException {
+        if (streamResolver.isResolved(file)) {
+            startPlaying(file, title, artist, url, -1, audioJson, true);
+            return;
+        }
+
+        final int request = ++resolveRequest;
+        streamResolver.resolve(file, new StreamResolver.Callback() {
+            @Override
+            public void onResolved(String original, String resolved) {
+                scheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (request != resolveRequest) {
+                            Log.d(LOG_TAG, "Resolved " + file + " no longer wanted");
+                            return;
+                        }
+                        try {
+                            startPlaying(file, title, artist, url, -1, audioJson, true);
+                        } catch (IOException e) {
+                            Log.e(LOG_TAG, "Could not play " + file + ": " + e.getMessage());
+                        }
+                    }
+                });
+            }
+        });
+    }
 
-        Log.d(LOG_TAG, "Starting Stream from Song--" + media.getUri().toString());
+    protected void startPlaying(PlayerMedia media) throws IOException {
 
-        if (mPendingInterrupts.size() == 0) {
+        if (stateMachine.getSnapshot().isInterrupted()) {
             // if stream is started when an audio interrupt(s) exists,
             // don't play, store new stream for when interrupt(s) go away
-            // stream will be (re)started by resumeAudio
+            // stream will be (re)started when the state machine resumes
+            currentlyPlaying = media;
+        } else {
 
-            Media currentMedia = mediaPlayer.getMedia();
+            PlayerMedia currentMedia = player.getMedia();
 
-            if (currentMedia == null || !currentMedia.getUri().toString().equals(media.getUri().toString())) {
-                mediaPlayer.setMedia(media);
+            if (currentMedia == null || !currentMedia.getLocation().equals(media.getLocation())) {
+                player.setMedia(media);
                 getAudioPlayerGetFocusAndPlay();
-                mediaPlayer.setPosition(position);
                 currentlyPlaying = media;
             } else {
+                if (media != currentMedia) {
+                    // already playing this location, the new media is not needed
+                    media.release();
+                    currentlyPlaying = currentMedia;
+                }
                 getAudioPlayerGetFocusAndPlay();
             }
         }
     }
 
+    public PlayQueue getPlayQueue() {
+        return playQueue;
+    }
+
+    /**
+     * Call after changing the queue, so the preloaded item (and one started for a crossfade)
+     * follows the new head of the queue.
+     */
+    public void queueChanged() {
+        if (preloadedItem != null && preloadedItem != playQueue.peek()) {
+            releasePreload();
+        }
+        if (incomingItem != null && incomingItem != playQueue.peek()) {
+            releaseIncoming();
+        }
+        if (player.isPlaying()) {
+            preloadNext();
+        }
+        positionStore.setQueue(playQueue.snapshot());
+        fireQueueUpdated("changed", null, null);
+    }
+
+    /**
+     * Stops the current item and starts the next one in the queue.
+     *
+     * @return false if the queue is empty
+     */
+    public boolean skipToNext() throws IOException {
+        return advanceQueue(null);
+    }
+
+    /**
+     * @param ended the item that played to its end, reported with the advance; null if it was
+     *              skipped
+     */
+    private boolean advanceQueue(PlayQueue.Item ended) throws IOException {
+        if (incomingPlayer != null && incomingItem == playQueue.peek() && pendingProfile == null) {
+            // already started for a crossfade that did not get to play yet, take it as it is
+            handOverCrossfade(false, ended);
+            return true;
+        }
+
+        PlayQueue.Item next = playQueue.poll();
+        if (next == null) {
+            return false;
+        }
+
+        PlayerMedia media = null;
+        if (next == preloadedItem) {
+            media = preloadedMedia;
+            preloadedItem = null;
+            preloadedMedia = null;
+        } else {
+            releasePreload();
+        }
+
+        Log.d(LOG_TAG, "Advancing queue to " + next.file);
+        startPlaying(next.file, next.title, next.artist, next.imageUrl, 0, next.audioJson, next.isStream, media);
+        fireQueueUpdated("advance", next, ended);
+        return true;
+    }
+
+    private void preloadNext() {
+        PlayQueue.Item next = playQueue.peek();
+        if (next == null || next == preloadedItem) {
+            return;
+        }
+        releasePreload();
+
+        Log.d(LOG_TAG, "Preloading " + next.file);
+        preloadedItem = next;
+        preloadedMedia = player.newMedia(playbackLocation(next.file, next.isStream));
+        applyNetworkCaching(preloadedMedia, bufferingController.peek());
+        if (!next.isStream) {
+            final PlayerMedia media = preloadedMedia;
+            // open and parse ahead of time so the hand over does not wait on it
+            media.parseAsync(new PlayerMedia.ParseListener() {
+                @Override
+                public void onParsed() {
+                    // not opened by a player yet, so whether it can seek is not known
+                    cacheMetadata(media, null);
+                }
+            });
+        }
+    }
+
+    private void releasePreload() {
+        if (preloadedMedia != null) {
+            preloadedMedia.release();
+        }
+        preloadedMedia = null;
+        preloadedItem = null;
+    }
+
+    /**
+     * Starts the next item on a second player at volume 0 once the current one is within
+     * the crossfade duration of its end. It takes over when it plays.
+     */
+    private void prepareCrossfade(long time) {
+        if (incomingPlayer != null || crossfader.isFading() || !crossfader.isEnabled() || currentIsStream
+                || pendingProfile != null || reconnectEngine.isActive() || stateMachine.getSnapshot().isInterrupted()) {
+            return;
+        }
+        PlayQueue.Item next = playQueue.peek();
+        long length = player.getLength();
+        if (next == null || length <= 0 || length - time > crossfader.getDuration()) {
+            return;
+        }
+
+        PlayerMedia media;
+        if (next == preloadedItem) {
+            media = preloadedMedia;
+            preloadedItem = null;
+            preloadedMedia = null;
+        } else {
+            releasePreload();
+            media = player.newMedia(playbackLocation(next.file, next.isStream));
+            applyNetworkCaching(media, bufferingController.peek());
+        }
+
+        Log.d(LOG_TAG, "Starting " + next.file + " for a crossfade");
+        final Player incoming = engine.newPlayer();
+        incoming.setListener(new Player.Listener() {
+            @Override
+            public void onEvent(final int type, final long time, final float buffering) {
+                scheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (incoming == incomingPlayer) {
+                            onIncomingEvent(type);
+                        } else if (incoming == player) {
+                            // posted before the hand over
+                            handleEvent(type, time, buffering);
+                        }
+                    }
+                });
+            }
+        });
+        incoming.setAudioDelay(profile.getAudioDelay());
+        incoming.setVolume(0);
+        incoming.setMedia(media);
+        incoming.play();
+        incomingItem = next;
+        incomingPlayer = incoming;
+    }
+
+    private void onIncomingEvent(int type) {
+        if (type == MediaPlayer.Event.Playing) {
+            try {
+                handOverCrossfade(true, currentItem);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Crossfade failed: " + e.getMessage());
+            }
+        } else if (type == MediaPlayer.Event.EncounteredError) {
+            // the queue advances the usual way when the current item ends
+            Log.d(LOG_TAG, "Next item failed to start, no crossfade");
+            releaseIncoming();
+        }
+    }
+
+    /**
+     * Makes the incoming player the current one and advances the queue to its item.
+     *
+     * @param fade  the incoming player is playing, fade over to it; otherwise the current item
+     *              has ended and it simply takes over
+     * @param ended the item that ended (or is fading out), null if it was skipped
+     */
+    private void handOverCrossfade(boolean fade, PlayQueue.Item ended) throws IOException {
+        PlayQueue.Item next = incomingItem;
+        Player incoming = incomingPlayer;
+        if (next != playQueue.peek() || pendingProfile != null) {
+            // the queue changed since, or the player is about to be rebuilt
+            releaseIncoming();
+            return;
+        }
+        incomingItem = null;
+        incomingPlayer = null;
+        playQueue.poll();
+
+        Player outgoing = player;
+        long remaining = outgoing.getLength() - outgoing.getTime();
+        outgoing.setListener(null);
+        if (!currentIsStream && currentItem != null) {
+            // played to the end, the EndReached that would say so is not coming
+            positionStore.forget(currentItem.file);
+        }
+        player = incoming;
+        currentlyPlaying = incoming.getMedia();
+        incoming.setListener(this);
+
+        Log.d(LOG_TAG, "Advancing queue to " + next.file + (fade ? " with a crossfade" : ""));
+        // the media is already set on the player, this only does the bookkeeping
+        startPlaying(next.file, next.title, next.artist, next.imageUrl, 0, next.audioJson, next.isStream, incoming.getMedia());
+        fireQueueUpdated("advance", next, ended);
+
+        if (fade) {
+            crossfader.fade(outgoing, incoming, remaining);
+            // the incoming player's Playing went to the crossfade rather than through here
+            handleEvent(MediaPlayer.Event.Playing, -1, 0);
+        } else {
+            outgoing.stop();
+            outgoing.release();
+            incoming.setVolume(100);
+        }
+    }
+
+    private void releaseIncoming() {
+        if (incomingPlayer != null) {
+            PlayerMedia media = incomingPlayer.getMedia();
+            incomingPlayer.setListener(null);
+            incomingPlayer.stop();
+            incomingPlayer.release();
+            if (media != null) {
+                media.release();
+            }
+        }
+        incomingPlayer = null;
+        incomingItem = null;
+    }
+
+    /**
+     * Drops a crossfade in preparation and finishes one that is running, for anything that
+     * takes over the player.
+     */
+    private void cancelCrossfade() {
+        releaseIncoming();
+        crossfader.finish();
+    }
+
+    /**
+     * @param ended for an advance, the item that played to its end; JS gets no EndReached for it
+     */
+    private void fireQueueUpdated(String reason, PlayQueue.Item item, PlayQueue.Item ended) {
+        if (mListener != null) {
+            try {
+                JSONObject json = new JSONObject();
+                json.put("type", "queue");
+                json.put("event", reason);
+                if (item != null) {
+                    json.put("item", item.toJSON());
+                }
+                if (ended != null) {
+                    json.put("ended", ended.toJSON());
+                }
+                json.put("items", playQueue.toJSON());
+                mListener.onPlayerEvent(json);
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, e.getMessage());
+            }
+        }
+    }
+
     public void pausePlaying() {
+        resolveRequest++;
+        cancelReconnect();
+        stateMachine.send(PlayerStateMachine.Message.of(PlayerStateMachine.Signal.PAUSE));
+        pauseMedia();
+    }
+
+    private void pauseMedia() {
+        cancelCrossfade();
         // make sure audio is playing
-        if (mediaPlayer.isPlaying()) {
-            mediaPlayer.pause();
+        if (player.isPlaying()) {
+            player.pause();
             startFlushBufferTimer();
         }
     }
@@ -372,105 +931,252 @@ public class VLCPlayerService extends Service implements MediaPlayer.EventListen
     }
     */
 
-    public void seekAudio(int interval) {
-        Log.d(LOG_TAG, "Seek Audio. Interval: " + interval);
-        if (mediaPlayer.getLength() > 0) {
-            if (isPlaying()) {
-                float currentPosition = mediaPlayer.getPosition(); // this is a percentage
-                int newPosition = (int) ((currentPosition * mediaPlayer.getLength()) + interval);
-                Log.d(LOG_TAG, "New Position: " + newPosition);
-                if (mediaPlayer.isSeekable()) {
-                    long duration = mediaPlayer.getMedia().getDuration();
-                    float percentage = newPosition / (float) duration;
-                    mediaPlayer.setPosition(percentage);
-                }
-            } else {
-                Log.d(LOG_TAG, "Not currently playing, so not seeking");
-            }
-        } else {
-            Log.d(LOG_TAG, "Seek not available.");
-        }
+    /**
+     * Queues a seek relative to the current time.
+     *
+     * @return true if the caller must schedule applyPendingSeek(), false if the seek was folded into a pending one
+     */
+    public boolean seekAudio(int interval) {
+        return seekCoalescer.offerRelative(interval, SystemClock.elapsedRealtime());
     }
 
-    public void seekToAudio(int pos) {
-        Log.d(LOG_TAG, "Seek Audio. Position: " + pos);
-        if (mediaPlayer.getMedia().getDuration() > 0) {
-            if (isPlaying() && mediaPlayer.isSeekable()) {
-                float duration = (float) getDuration();
-                float pct = pos / duration;
-                Log.d(LOG_TAG, "PCT = " + pos + " / " + duration + " = " + pct);
+    /**
+     * Queues a seek to an absolute position in ms.
+     *
+     * @return true if the caller must schedule applyPendingSeek(), false if the seek was folded into a pending one
+     */
+    public boolean seekToAudio(int pos) {
+        return seekCoalescer.offerAbsolute(pos, SystemClock.elapsedRealtime());
+    }
 
-                mediaPlayer.setPosition(pct);
+    public void applyPendingSeek() {
+        SeekCoalescer.Request request = seekCoalescer.take();
+        if (request == null) {
+            return;
+        }
+
+        // a seek during a crossfade is meant for the item coming in, let it have the player alone
+        cancelCrossfade();
+        long length = player.getLength();
+        if (length > 0) {
+            if (isPlaying() && player.isSeekable()) {
+                long newPosition = Math.max(0, Math.min(request.resolve(player.getTime()), length));
+                Trace.record(Trace.LEVEL_BASIC, Trace.SEEK, newPosition, length);
+                player.setTime(newPosition);
+                bufferingController.onSeek();
+                seekCoalescer.markApplied(request, newPosition);
+                eventGovernor.resetThrottle();
             } else {
-                Log.d(LOG_TAG, "Not currently playing, so not seeking");
+                // not playing, not seeking
+                Trace.record(Trace.LEVEL_BASIC, Trace.SEEK, -1, length);
             }
         } else {
-            Log.d(LOG_TAG, "Seek not available.");
+            // not seekable
+            Trace.record(Trace.LEVEL_BASIC, Trace.SEEK, -1, length);
         }
     }
 
     public void stopPlaying() {
         Log.d(LOG_TAG, "Stopping Stream");
-        if (mediaPlayer != null) {
-            if (mediaPlayer.isPlaying()/* || mediaPlayer.getPlayerState() == 0*/) {
-                mediaPlayer.stop();
+        resolveRequest++;
+        cancelReconnect();
+        cancelCrossfade();
+        seekCoalescer.cancel();
+        if (player != null) {
+            if (player.isPlaying()/* || mediaPlayer.getPlayerState() == 0*/) {
+                player.stop();
             }
         }
-        // clear interrupts
-        mPendingInterrupts.clear();
+        // clears interrupts too
+        stateMachine.send(PlayerStateMachine.Message.of(PlayerStateMachine.Signal.STOP));
     }
 
     public void hardStopPlaying() {
         Log.d(LOG_TAG, "Hard Stopping Stream");
-        if (mediaPlayer != null) {
-            mediaPlayer.stop();
+        resolveRequest++;
+        cancelReconnect();
+        cancelCrossfade();
+        seekCoalescer.cancel();
+        if (player != null) {
+            player.stop();
         }
-        // clear interrupts
-        mPendingInterrupts.clear();
+        // clears interrupts too
+        stateMachine.send(PlayerStateMachine.Message.of(PlayerStateMachine.Signal.STOP));
     }
 
 
     public void interruptAudio(OnAudioInterruptListener.INTERRUPT_TYPE type, boolean trackInterrupt) {
-        // stop audio. store the fact that this interrupt is pending
-        if (!mPendingInterrupts.contains(type) && mediaPlayer.isPlaying()) {
-            Log.d(LOG_TAG, "Audio interrupted - stop audio - " + type);
-            if (trackInterrupt) {
-                // if tracked, don't allow stream resumption until interrupt goes away
-                mPendingInterrupts.add(type);
-                pausePlaying();
-            } else {
-                stopPlaying();
-            }
-        }
+        Log.d(LOG_TAG, "Audio interrupted - " + type);
+        // if tracked, the state machine holds playback back until the interrupt goes away
+        stateMachine.send(PlayerStateMachine.Message.interruptBegan(type, trackInterrupt));
     }
 
-    public void clearAudioInterrupt(OnAudioInterruptListener.INTERRUPT_TYPE type, boolean restart) throws IOException {
-        if (mPendingInterrupts.contains(type)) {
-            Log.d(LOG_TAG, "Audio interrupt over - " + type);
+    public void clearAudioInterrupt(OnAudioInterruptListener.INTERRUPT_TYPE type, boolean restart) {
+        Log.d(LOG_TAG, "Audio interrupt over - " + type);
+        stateMachine.send(PlayerStateMachine.Message.interruptEnded(type, restart));
+    }
 
-            // remove this interrupt
-            mPendingInterrupts.remove(type);
-            // make sure there are no other interrupts
-            if (mPendingInterrupts.size() == 0) {
-                if (restart) {
-                    Log.d(LOG_TAG, "Audio interrupt over - restart audio - " + type);
+    public PlayerStateMachine.Snapshot getStateSnapshot() {
+        return stateMachine.getSnapshot();
+    }
 
-                    startPlaying(currentlyPlaying, 0);
+    private void performEffect(PlayerStateMachine.Effect effect) {
+        switch (effect) {
+            case PAUSE:
+                pauseMedia();
+                break;
+            case STOP:
+                cancelCrossfade();
+                player.stop();
+                break;
+            case RESUME:
+            case RECONNECT_NOW:
+                if (reconnectEngine.isActive()) {
+                    // reopen at the point where the connection broke
+                    scheduleReconnect(true);
+                } else if (currentlyPlaying != null) {
+                    try {
+                        startPlaying(currentlyPlaying);
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "Could not resume: " + e.getMessage());
+                    }
                 }
-            } else {
-                Log.d(LOG_TAG, "Interrupts still pending");
-            }
+                break;
+            case BEGIN_RECONNECT:
+                // with reconnecting turned off, RECONNECT_NOW restarts the media once the network is back
+                beginReconnect();
+                break;
+            case SUSPEND_RECONNECT:
+                cancelReconnectTasks();
+                break;
+            case CANCEL_RECONNECT:
+                cancelReconnect();
+                break;
+            case ABANDON_FOCUS:
+                abandonAudioFocus();
+                break;
+            case CLOSE:
+                Log.d(LOG_TAG, "Closed from the notification");
+                stopFlushBufferTimer();
+                cancelCrossfade();
+                player.stop();
+                stopForeground(true);
+                notificationUpdater.onRemoved();
+                stopSelf();
+                break;
         }
     }
 
     public void fireAudioStateUpdated() {
-        if (mListener != null && previousEvent != null) {
-            mListener.onAudioStateUpdated(previousEvent);
+        if (mListener != null && previousEventType != -1) {
+            mListener.onAudioStateUpdated(previousEventType, previousEventTime);
+        }
+    }
+
+    /**
+     * @return the duration of the current media in ms, or 0 if it is not known yet
+     */
+    public int getDuration() {
+        PlayerMedia media = player.getMedia();
+        if (media == null) {
+            return 0;
+        }
+        long duration = media.getDuration();
+        if (duration <= 0) {
+            duration = metadataCache.getDuration(LocalStreamProxy.originalUrl(media.getLocation()));
+        }
+        return (int) Math.max(0, duration);
+    }
+
+    /*
+        { "enabled": true, "maxBytes": 209715200 }
+     */
+    public void configureProxy(JSONObject config) {
+        boolean enabled = config.optBoolean("enabled", true);
+        long maxBytes = config.optLong("maxBytes", DEFAULT_PROXY_CACHE_BYTES);
+
+        proxyCaching = enabled;
+        if (!enabled) {
+            if (streamProxy != null) {
+                streamProxy.stop();
+                streamProxy = null;
+            }
+            return;
+        }
+        startProxy(maxBytes);
+    }
+
+    private boolean startProxy(long maxBytes) {
+        if (streamProxy != null) {
+            streamProxy.setMaxBytes(maxBytes);
+            return true;
+        }
+        streamProxy = new LocalStreamProxy(new File(getCacheDir(), "vlc-proxy"), maxBytes);
+        streamProxy.setDownloadManager(downloadManager);
+        if (userAgent != null) {
+            streamProxy.setUserAgent(userAgent[1]);
+        }
+        try {
+            streamProxy.start();
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not start proxy: " + e.getMessage());
+            streamProxy = null;
+            return false;
+        }
+    }
+
+    public DownloadManager getDownloadManager() {
+        return downloadManager;
+    }
+
+    public LocalStreamProxy getStreamProxy() {
+        return streamProxy;
+    }
+
+    /**
+     * Where LibVLC should read the file from: remote files that are partly downloaded are played
+     * from the download, others go through the caching proxy when it is on.
+     */
+    private String playbackLocation(String file, boolean isStream) {
+        if (isStream) {
+            // resolved ahead by playStream where it could be, otherwise LibVLC resolves it
+            return streamResolver.lookup(file);
+        }
+        if (!(file.startsWith("http://") || file.startsWith("https://"))) {
+            return file;
+        }
+        if (downloadManager.get(file) == null && downloadManager.hasPartial(file)) {
+            // finish what is already on disk rather than streaming all of it again
+            downloadManager.start(file, 0);
         }
+        if (downloadManager.get(file) != null) {
+            // the proxy is needed to read the partial file, even if caching is off (nothing gets cached then)
+            if (streamProxy != null || startProxy(0)) {
+                Log.d(LOG_TAG, "Playing " + file + " while it downloads");
+                return streamProxy.proxyUrl(file);
+            }
+        }
+        if (proxyCaching && streamProxy != null) {
+            return streamProxy.proxyUrl(file);
+        }
+        return file;
     }
 
-    public int getDuration() throws NullPointerException {
-        return (int) mediaPlayer.getMedia().getDuration();
+    public MediaMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * @param seekable what the player reports for the media it has open, null if no player has
+     *                 opened it
+     */
+    private void cacheMetadata(PlayerMedia media, Boolean seekable) {
+        if (media == null) {
+            return;
+        }
+        metadataCache.put(LocalStreamProxy.originalUrl(media.getLocation()),
+                new MediaMetadataCache.Entry(media.getDuration(), media.getAudioCodec(), media.getAudioBitrate(), seekable));
     }
 
     /*
@@ -483,28 +1189,498 @@ public class VLCPlayerService extends Service implements MediaPlayer.EventListen
     }
 
     @Override
-    public void onEvent(MediaPlayer.Event event) {
-        int stateType = event.type;
+    public void onEvent(final int type, final long time, final float buffering) {
+        // LibVLC delivers events on the main thread, everything else touching the player runs on the player thread
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                handleEvent(type, time, buffering);
+            }
+        });
+    }
+
+    private void handleEvent(int stateType, long time, float buffering) {
+        boolean frequent = stateType == MediaPlayer.Event.TimeChanged || stateType == MediaPlayer.Event.PositionChanged
+                || stateType == MediaPlayer.Event.Buffering;
+        Trace.record(frequent ? Trace.LEVEL_VERBOSE : Trace.LEVEL_BASIC, Trace.PLAYER_EVENT, stateType, time);
+
+        if (stateType == MediaPlayer.Event.EncounteredError || (stateType == MediaPlayer.Event.EndReached && currentIsStream)) {
+            // a live stream that "ends" while playing lost its connection
+            if (reconnectEngine.isActive()) {
+                onReconnectAttemptFailed();
+                return;
+            }
+            if (currentStateType == MediaPlayer.Event.Playing && isRemote(currentlyPlaying) && beginReconnect()) {
+                // not reported unless reconnecting gives up
+                return;
+            }
+        }
 
         if (stateType == MediaPlayer.Event.EncounteredError) {
             mListener.onAudioStreamingError(stateType);
         }
 
+        if (stateType == MediaPlayer.Event.Playing && reconnectEngine.isActive()) {
+            cancelTask(reconnectTimeoutTask);
+            int attempts = reconnectEngine.getAttempt();
+            long duration = reconnectEngine.succeeded(SystemClock.elapsedRealtime());
+            Log.d(LOG_TAG, "Reconnected after " + attempts + " attempts, " + duration + "ms");
+            fireReconnectEvent("reconnected", attempts, -1, duration);
+            metrics.onReconnected();
+            stateMachine.send(PlayerStateMachine.Message.of(PlayerStateMachine.Signal.RECONNECT_ENDED, true));
+        }
+
         if (stateType != MediaPlayer.Event.Paused) {
             stopFlushBufferTimer();
         }
 
-        if (stateType != currentStateType && mListener != null) {
-            mListener.onAudioStateUpdated(event);
+        if (stateType == MediaPlayer.Event.Stopped || stateType == MediaPlayer.Event.EndReached) {
+            startIdleReleaseTimer();
+        } else if (stateType == MediaPlayer.Event.Playing) {
+            cancelTask(idleReleaseTask);
+            idleReleaseTask = null;
+        }
+
+        if (stateType == MediaPlayer.Event.TimeChanged) {
+            lastTime = time;
+            if (!currentIsStream && currentItem != null) {
+                // memory only, written out in the background every few seconds
+                positionStore.record(currentItem.file, lastTime);
+            }
+            long latency = seekCoalescer.onTimeChanged(time, SystemClock.elapsedRealtime());
+            if (latency >= 0) {
+                metrics.onSeekCompleted(latency);
+                fireSeekCompleted(time, latency);
+            }
+            if (SystemClock.elapsedRealtime() - lastBytesSample >= BYTES_SAMPLE_INTERVAL) {
+                sampleBytes();
+            }
+            prepareCrossfade(time);
+            if (liveLatency.isActive()) {
+                onLiveLatency(liveLatency.onTimeChanged(time, SystemClock.elapsedRealtime()));
+            }
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        switch (stateType) {
+            case MediaPlayer.Event.Playing:
+                bufferingController.onPlaying(now);
+                metrics.onPlaying(now);
+                stateMachine.send(PlayerStateMachine.Message.of(PlayerStateMachine.Signal.PLAYER_PLAYING));
+                break;
+            case MediaPlayer.Event.Buffering:
+                boolean stalled = bufferingController.onBuffering(buffering, now);
+                if (stalled) {
+                    Trace.record(Trace.LEVEL_BASIC, Trace.STALL, lastTime, (long) buffering);
+                }
+                metrics.onBuffering(buffering, stalled, now);
+                break;
+            case MediaPlayer.Event.Paused:
+                bufferingController.onPaused(now);
+                metrics.onPaused(now);
+                sampleBytes();
+                positionStore.flush();
+                stateMachine.send(PlayerStateMachine.Message.of(PlayerStateMachine.Signal.PLAYER_PAUSED));
+                break;
+            case MediaPlayer.Event.Stopped:
+            case MediaPlayer.Event.EndReached:
+                bufferingController.onPaused(now);
+                metrics.onPaused(now);
+                sampleBytes();
+                if (stateType == MediaPlayer.Event.EndReached && !currentIsStream && currentItem != null) {
+                    // played to the end, next time starts from the top
+                    positionStore.forget(currentItem.file);
+                }
+                positionStore.flush();
+                stateMachine.send(PlayerStateMachine.Message.of(PlayerStateMachine.Signal.PLAYER_STOPPED));
+                break;
+            case MediaPlayer.Event.EncounteredError:
+                bufferingController.onPaused(now);
+                metrics.onPaused(now);
+                stateMachine.send(PlayerStateMachine.Message.of(PlayerStateMachine.Signal.PLAYER_ERROR));
+                break;
+        }
+
+        if (stateType == MediaPlayer.Event.Playing || stateType == MediaPlayer.Event.SeekableChanged) {
+            cacheMetadata(player.getMedia(), player.isSeekable());
+        }
+
+        if (stateType == MediaPlayer.Event.Playing) {
+            preloadNext();
+            // first progress update after (re)starting goes out right away
+            eventGovernor.resetThrottle();
+        }
+
+        // an item the queue moves on from is reported ended by the queue's advance event; an
+        // EndReached sent after it would look like the end of the item that just started
+        boolean advanced = false;
+        if (stateType == MediaPlayer.Event.EndReached && playQueue.size() > 0) {
+            try {
+                advanced = advanceQueue(currentItem);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Queue advance failed: " + e.getMessage());
+            }
+        }
+
+        // the governor alone decides what JS hears: DELIVER always goes out, THROTTLE at most
+        // once an interval, DROP never; whatever is held back is counted as dropped
+        if (advanced) {
+            eventGovernor.countDropped(stateType);
             currentStateType = stateType;
-            previousEvent = event;
+        } else if (mListener != null && eventGovernor.shouldDeliver(stateType, SystemClock.elapsedRealtime())) {
+            mListener.onAudioStateUpdated(stateType, time);
+            // progress is not a state
+            if (!eventGovernor.isThrottled(stateType)) {
+                currentStateType = stateType;
+            }
+            previousEventType = stateType;
+            previousEventTime = time;
+        }
+    }
+
+    public BufferingController getBufferingController() {
+        return bufferingController;
+    }
+
+    public StreamResolver getStreamResolver() {
+        return streamResolver;
+    }
+
+    public LiveLatencyController getLiveLatencyController() {
+        return liveLatency;
+    }
+
+    /**
+     * @return how far behind the live edge the live stream is in ms, -1 if not in live mode
+     */
+    public long getLiveLatency() {
+        return liveLatency.getLatency();
+    }
+
+    public Crossfader getCrossfader() {
+        return crossfader;
+    }
+
+    public NetworkMonitor getNetworkMonitor() {
+        return networkMonitor;
+    }
+
+    public JSONObject getMetrics() throws JSONException {
+        return metrics.toJSON(SystemClock.elapsedRealtime());
+    }
+
+    /*
+        { "interval": 0 }
+
+        with an interval (ms) above 0, a "metrics" event goes out that often
+     */
+    public void configureMetrics(JSONObject config) {
+        if (config == null) {
+            return;
+        }
+        cancelTask(metricsTask);
+        metricsTask = null;
+        long interval = config.optLong("interval", 0);
+        if (interval > 0) {
+            metricsTask = scheduler.scheduleAtFixedRate("metrics", new Runnable() {
+                @Override
+                public void run() {
+                    sampleBytes();
+                    fireMetrics();
+                }
+            }, interval, interval);
+        }
+    }
 
-            Log.d(LOG_TAG, String.valueOf(currentStateType));
+    /**
+     * Reads how many bytes the current media took in so far. Call on the player thread.
+     */
+    private void sampleBytes() {
+        lastBytesSample = SystemClock.elapsedRealtime();
+        if (currentlyPlaying == null) {
+            return;
+        }
+        long bytes = currentlyPlaying.getReadBytes();
+        if (bytes >= 0) {
+            metrics.setMediaBytes(bytes);
+        }
+    }
+
+    private void fireMetrics() {
+        if (mListener != null) {
+            try {
+                JSONObject json = new JSONObject();
+                json.put("type", "metrics");
+                json.put("metrics", getMetrics());
+                mListener.onPlayerEvent(json);
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sets the network caching the buffering controller picked on media read over the network.
+     */
+    private void applyNetworkCaching(PlayerMedia media, int networkCaching) {
+        if (networkCaching < 0 || !isRemote(media)) {
+            return;
+        }
+        media.addOption(":network-caching=" + networkCaching);
+        Log.d(LOG_TAG, "Network caching " + networkCaching + "ms on "
+                + BufferingController.connectionName(bufferingController.getConnection()));
+
+        if (mListener != null) {
+            try {
+                JSONObject json = bufferingController.toJSON(SystemClock.elapsedRealtime());
+                json.put("type", "buffering");
+                json.put("networkCaching", networkCaching);
+                mListener.onPlayerEvent(json);
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, e.getMessage());
+            }
+        }
+    }
+
+    public PlayerScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public ReconnectEngine getReconnectEngine() {
+        return reconnectEngine;
+    }
+
+    /**
+     * Asks for the live mode's small caching, over what the buffering controller picked.
+     */
+    private void applyLiveCaching(PlayerMedia media) {
+        int caching = liveLatency.getCaching();
+        media.addOption(":network-caching=" + caching);
+        media.addOption(":live-caching=" + caching);
+    }
+
+    private void onLiveLatency(LiveLatencyController.Action action) {
+        if (action == LiveLatencyController.Action.NONE) {
+            return;
+        }
+        Trace.record(Trace.LEVEL_BASIC, Trace.LIVE, liveLatency.getLatency(), action.ordinal());
+        switch (action) {
+            case SPEED_UP:
+                Log.d(LOG_TAG, liveLatency.getLatency() + "ms behind live, catching up");
+                player.setRate(liveLatency.getRate());
+                break;
+            case NORMAL_SPEED:
+                player.setRate(1f);
+                break;
+            case REJOIN:
+                rejoinLiveEdge();
+                break;
+        }
+        fireLiveLatency(action);
+    }
+
+    /**
+     * Drops what is buffered and opens the stream again, which joins it at the live edge.
+     */
+    private void rejoinLiveEdge() {
+        if (currentlyPlaying == null || stateMachine.getSnapshot().isInterrupted()) {
+            return;
+        }
+        Log.d(LOG_TAG, liveLatency.getLatency() + "ms behind live, rejoining");
+        PlayerMedia media = player.newMedia(currentlyPlaying.getLocation());
+        applyNetworkCaching(media, bufferingController.peek());
+        applyLiveCaching(media);
+        currentlyPlaying = media;
+        player.setRate(1f);
+        // releases the media that fell behind
+        player.setMedia(media);
+        player.play();
+        liveLatency.start();
+    }
+
+    private void fireLiveLatency(LiveLatencyController.Action action) {
+        if (mListener != null) {
+            try {
+                JSONObject json = liveLatency.toJSON();
+                json.put("type", "live");
+                json.put("event", action.name().toLowerCase());
+                mListener.onPlayerEvent(json);
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, e.getMessage());
+            }
+        }
+    }
+
+    private static boolean isRemote(PlayerMedia media) {
+        if (media == null) {
+            return false;
+        }
+        String location = media.getLocation();
+        return location.startsWith("http://") || location.startsWith("https://");
+    }
+
+    /**
+     * Starts reconnecting to the current media. Attempts begin straight away if there is a
+     * network, otherwise when the network monitor sees one come back.
+     *
+     * @return false if reconnecting is turned off
+     */
+    private boolean beginReconnect() {
+        boolean live = currentIsStream || player.getLength() <= 0;
+        if (!reconnectEngine.begin(lastTime, live, SystemClock.elapsedRealtime())) {
+            return false;
+        }
+        Log.d(LOG_TAG, "Connection lost at " + lastTime + "ms" + (live ? " (live)" : ""));
+        stateMachine.send(PlayerStateMachine.Message.of(PlayerStateMachine.Signal.RECONNECT_STARTED));
+        if (isNetworkConnected()) {
+            scheduleReconnect(false);
+        }
+        return true;
+    }
+
+    private void scheduleReconnect(boolean immediately) {
+        cancelReconnectTasks();
+
+        long delay = reconnectEngine.nextDelay();
+        if (delay < 0) {
+            giveUpReconnect();
+            return;
+        }
+        if (immediately) {
+            delay = 0;
+        }
+        fireReconnectEvent("attempt", reconnectEngine.getAttempt(), delay, -1);
+        reconnectTask = scheduler.schedule("reconnect", new Runnable() {
+            @Override
+            public void run() {
+                reconnect();
+            }
+        }, delay);
+    }
+
+    private void reconnect() {
+        if (!reconnectEngine.isActive() || currentlyPlaying == null) {
+            return;
+        }
+        if (stateMachine.getSnapshot().isInterrupted()) {
+            // the end of the interrupt resumes the reconnect
+            return;
+        }
+
+        PlayerMedia media = player.newMedia(currentlyPlaying.getLocation());
+        if (!reconnectEngine.isLive() && reconnectEngine.getResumeTime() > 0) {
+            // reopen where playback broke off, LibVLC asks the server for the matching byte range;
+            // live streams are reopened as they are, which joins them at the live edge
+            media.addOption(":start-time=" + (reconnectEngine.getResumeTime() / 1000.0));
+        }
+        applyNetworkCaching(media, bufferingController.peek());
+        if (liveLatency.isActive()) {
+            // reopened at the live edge
+            applyLiveCaching(media);
+            liveLatency.start();
+            player.setRate(1f);
+        }
+        currentlyPlaying = media;
+
+        Trace.record(Trace.LEVEL_BASIC, Trace.RECONNECT, reconnectEngine.getAttempt(), reconnectEngine.getResumeTime());
+        player.setMedia(media);
+        getAudioPlayerGetFocusAndPlay();
+        reconnectTimeoutTask = scheduler.schedule("reconnectTimeout", new Runnable() {
+            @Override
+            public void run() {
+                Log.d(LOG_TAG, "Reconnect attempt " + reconnectEngine.getAttempt() + " timed out");
+                onReconnectAttemptFailed();
+            }
+        }, reconnectEngine.getAttemptTimeout());
+    }
+
+    private void onReconnectAttemptFailed() {
+        cancelTask(reconnectTimeoutTask);
+        if (isNetworkConnected()) {
+            scheduleReconnect(false);
+        }
+    }
+
+    private void giveUpReconnect() {
+        int attempts = reconnectEngine.getAttempt();
+        long duration = reconnectEngine.failed(SystemClock.elapsedRealtime());
+        Log.d(LOG_TAG, "Giving up reconnecting after " + attempts + " attempts");
+        fireReconnectEvent("failed", attempts, -1, duration);
+        stateMachine.send(PlayerStateMachine.Message.of(PlayerStateMachine.Signal.RECONNECT_ENDED, false));
+        player.stop();
+        if (mListener != null) {
+            mListener.onAudioStreamingError(MediaPlayer.Event.EncounteredError);
+        }
+    }
+
+    private void cancelReconnect() {
+        if (reconnectEngine.isActive()) {
+            reconnectEngine.cancel();
+            fireReconnectEvent("cancelled", reconnectEngine.getAttempt(), -1, -1);
+            stateMachine.send(PlayerStateMachine.Message.of(PlayerStateMachine.Signal.RECONNECT_ENDED, false));
+        }
+        cancelReconnectTasks();
+    }
+
+    private void cancelReconnectTasks() {
+        cancelTask(reconnectTask);
+        cancelTask(reconnectTimeoutTask);
+        reconnectTask = null;
+        reconnectTimeoutTask = null;
+    }
+
+    private static void cancelTask(PlayerScheduler.Task task) {
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
+    private void fireReconnectEvent(String name, int attempt, long delay, long duration) {
+        if (mListener != null) {
+            try {
+                JSONObject json = new JSONObject();
+                json.put("type", "reconnect");
+                json.put("event", name);
+                json.put("attempt", attempt);
+                json.put("live", reconnectEngine.isLive());
+                json.put("resumeTime", reconnectEngine.getResumeTime());
+                if (delay >= 0) {
+                    json.put("delay", delay);
+                }
+                if (duration >= 0) {
+                    json.put("duration", duration);
+                }
+                mListener.onPlayerEvent(json);
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, e.getMessage());
+            }
+        }
+    }
+
+    private void fireSeekCompleted(long position, long latency) {
+        if (mListener != null) {
+            try {
+                JSONObject json = new JSONObject();
+                json.put("type", "seek");
+                json.put("position", position);
+                json.put("latency", latency);
+                mListener.onPlayerEvent(json);
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, e.getMessage());
+            }
         }
     }
 
     public void setUserAgent(String readableName, String userAgent) {
-        libVLC.setUserAgent(readableName, userAgent);
+        // kept so a LibVLC rebuilt for a new profile gets it too
+        this.userAgent = new String[]{readableName, userAgent};
+        if (streamProxy != null) {
+            streamProxy.setUserAgent(userAgent);
+        }
+        downloadManager.setUserAgent(userAgent);
+        artworkCache.setUserAgent(userAgent);
+        streamResolver.setUserAgent(userAgent);
+        engine.setUserAgent(readableName, userAgent);
     }
 
     @Override
@@ -515,46 +1691,67 @@ public class VLCPlayerService extends Service implements MediaPlayer.EventListen
             case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
                 break;
             case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
-                pausePlaying();
+                stateMachine.send(PlayerStateMachine.Message.of(PlayerStateMachine.Signal.FOCUS_LOSS_TRANSIENT));
                 break;
             case AudioManager.AUDIOFOCUS_LOSS:
-                pausePlaying();
-                audioManager.abandonAudioFocus(this);
+                stateMachine.send(PlayerStateMachine.Message.of(PlayerStateMachine.Signal.FOCUS_LOSS));
                 break;
         }
     }
 
-    private boolean requestAudioFocus() {
+    protected boolean requestAudioFocus() {
         int audioFocus = audioManager.requestAudioFocus(this, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
         return audioFocus == AudioManager.AUDIOFOCUS_REQUEST_GRANTED;
     }
 
+    protected void abandonAudioFocus() {
+        audioManager.abandonAudioFocus(this);
+    }
+
+    protected void showNotification(String title, String artist, String url) {
+        notificationUpdater.update(cordovaActivity.getClass(), title, artist, url);
+    }
+
+    protected boolean isNetworkConnected() {
+        return networkMonitor.isConnected();
+    }
+
     private void getAudioPlayerGetFocusAndPlay() {
         stopFlushBufferTimer();
         requestAudioFocus();
-        mediaPlayer.play();
+        player.play();
     }
 
     private void startFlushBufferTimer() {
         stopFlushBufferTimer();
-        flushBufferTimer = new Timer();
-        TimerTask timerTask = new TimerTask() {
+        flushBufferTask = scheduler.schedule("flushBuffer", new Runnable() {
             @Override
             public void run() {
-                hardStopPlaying();
+                // only drops the buffered audio; the end of an interrupt still resumes
+                Log.d(LOG_TAG, "Paused too long, flushing buffer");
+                player.stop();
             }
-        };
-        flushBufferTimer.schedule(timerTask, FLUSH_BUFFER_TIMEOUT);
+        }, FLUSH_BUFFER_TIMEOUT);
     }
 
     private void stopFlushBufferTimer() {
-        try {
-            if (flushBufferTimer != null) {
-                flushBufferTimer.cancel();
+        cancelTask(flushBufferTask);
+        flushBufferTask = null;
+    }
+
+    /**
+     * Media preloaded for the queue keeps a connection open; once the player has sat
+     * stopped for a while there is no point holding on to it.
+     */
+    private void startIdleReleaseTimer() {
+        cancelTask(idleReleaseTask);
+        idleReleaseTask = scheduler.schedule("idleRelease", new Runnable() {
+            @Override
+            public void run() {
+                Log.d(LOG_TAG, "Idle, releasing preloaded media");
+                releasePreload();
             }
-        } catch (Exception e) {
-        } finally {
-            flushBufferTimer = null;
-        }
+        }, IDLE_RELEASE_TIMEOUT);
     }
+
 }
@@ -2,7 +2,11 @@ package org.nypr.cordova.vlcplugin;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaInterface;
@@ -19,15 +23,15 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.net.ConnectivityManager;
 import android.os.Environment;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.videolan.libvlc.MediaPlayer;
 
-public class VLCPlugin extends CordovaPlugin implements OnAudioInterruptListener, OnAudioStateUpdatedListenerVLC {
+public class VLCPlugin extends CordovaPlugin implements OnAudioInterruptListener, OnAudioStateUpdatedListenerVLC, EventBatcher.Sink {
 
     private static final String INIT = "init";
     private static final String PLAY_STREAM = "playstream";
@@ -43,23 +47,40 @@ public class VLCPlugin extends CordovaPlugin implements OnAudioInterruptListener
     private static final String SET_USER_AGENT = "setuseragent";
     private static final String SET_NEXT_ENABLED = "setnextenabled";
     private static final String SET_PREVIOUS_ENABLED = "setpreviousenabled";
+    private static final String GET_EVENT_STATS = "geteventstats";
+    private static final String GET_COMMAND_STATS = "getcommandstats";
+    private static final String ENQUEUE = "enqueue";
+    private static final String DEQUEUE = "dequeue";
+    private static final String MOVE_QUEUE_ITEM = "movequeueitem";
+    private static final String SKIP = "skip";
+    private static final String CLEAR_QUEUE = "clearqueue";
+    private static final String GET_QUEUE = "getqueue";
+    private static final String GET_CACHE_STATS = "getcachestats";
+    private static final String DOWNLOAD = "download";
+    private static final String CANCEL_DOWNLOAD = "canceldownload";
+    private static final String DOWNLOAD_STATUS = "downloadstatus";
+    private static final String GET_BUFFERING_STATS = "getbufferingstats";
+    private static final String GET_PLAYER_STATE = "getplayerstate";
+    private static final String GET_METRICS = "getmetrics";
+    private static final String DUMP_TRACE = "dumptrace";
+    private static final String LOCAL_STATUS = "localstatus";
 
     protected static final String LOG_TAG = "VLCPlugin";
 //    protected static CordovaWebView mCachedWebView = null;
 
     protected PhoneHandler mPhoneHandler = null;
-    protected CallbackContext connectionCallbackContext;
+    // read on the player and main threads
+    protected volatile CallbackContext connectionCallbackContext;
     protected VLCPlayerService playerService;
 
-    private enum CordovaMediaState {
-        MEDIA_NONE,
-        MEDIA_STARTING,
-        MEDIA_RUNNING,
-        MEDIA_PAUSED,
-        MEDIA_STOPPED,
-        MEDIA_LOADING,
-        MEDIA_COMPLETED
-    }
+    protected AudioEventEncoder eventEncoder = new AudioEventEncoder();
+    protected EventBatcher eventBatcher = new EventBatcher(this);
+    protected PlayerCommandExecutor commandExecutor = new PlayerCommandExecutor();
+    protected JSONObject serviceOptions;
+    // by directory, built on the first lookup
+    private final Map<File, LocalFileIndex> localFiles = new LinkedHashMap<File, LocalFileIndex>();
+
+    private static volatile String directory;
 
     private ServiceConnection playerServiceConnection = new ServiceConnection() {
 
@@ -70,10 +91,17 @@ public class VLCPlugin extends CordovaPlugin implements OnAudioInterruptListener
             playerService = ((VLCPlayerService.LocalBinder) service).getService();
             playerService.setAudioStateListener(VLCPlugin.this);
             playerService.setCordovaActivity(cordova.getActivity());
+            commandExecutor.setTarget(playerService.getScheduler());
+            try {
+                configureService();
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, "Invalid init options: " + e.getMessage());
+            }
         }
 
         @Override
         public void onServiceDisconnected(ComponentName arg0) {
+            commandExecutor.setTarget(null);
             cordova.getActivity().finish();
         }
     };
@@ -111,55 +139,92 @@ public class VLCPlugin extends CordovaPlugin implements OnAudioInterruptListener
         Log.d(LOG_TAG, "VLC Plugin initialized");
     }
 
+    @Override
+    public void onDestroy() {
+        commandExecutor.shutdown();
+        synchronized (localFiles) {
+            for (LocalFileIndex index : localFiles.values()) {
+                index.stop();
+            }
+            localFiles.clear();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
         boolean ret = true;
         try {
 
-            Log.d(LOG_TAG, "VLC EXECUTING ACTION: " + action);
+            Trace.record(Trace.LEVEL_BASIC, Trace.COMMAND, args.length(), 0, action);
 
-            this.connectionCallbackContext = callbackContext;
+            // batched events belong to the callback they were collected for; the switch happens
+            // under the batcher's lock so a flush from the main thread cannot fall in between
+            final CallbackContext nextCallbackContext = callbackContext;
+            eventBatcher.flushThen(new Runnable() {
+                @Override
+                public void run() {
+                    connectionCallbackContext = nextCallbackContext;
+                }
+            });
 
             if (action.equalsIgnoreCase(INIT)) {
 
-                JSONObject audio = null;
+                JSONObject options = args.optJSONObject(0);
 
-                if (playerService != null) {
-                    audio = playerService.checkForExistingAudio();
+                if (options != null) {
+                    eventBatcher.setWindow(options.optLong("batchWindow", 0));
+                    commandExecutor.setAckOnComplete(options.optBoolean("ackOnComplete", false));
+                    Trace.configure(options.optJSONObject("trace"));
+                    // the service may not be bound yet, keep the options for when it is
+                    serviceOptions = options;
                 }
 
-                PluginResult pluginResult;
-
-                if (audio != null) {
-                    JSONObject json = new JSONObject();
-                    json.put("type", "current");
-                    json.put("audio", audio);
-                    pluginResult = new PluginResult(PluginResult.Status.OK, json);
+                if (playerService != null) {
+                    configureService();
+                    // what is playing, or else what played last, is looked up on the player thread
+                    final CallbackContext initCallbackContext = callbackContext;
+                    commandExecutor.post(action, new PlayerCommandExecutor.Command() {
+                        @Override
+                        public boolean run() throws Exception {
+                            JSONObject audio = playerService.checkForExistingAudio();
+                            if (audio != null) {
+                                sendInitResult(initCallbackContext, "current", "audio", audio);
+                                return true;
+                            }
+                            playerService.restoreSession(new VLCPlayerService.SessionCallback() {
+                                @Override
+                                public void onSessionRestored(JSONObject session) {
+                                    sendInitResult(initCallbackContext, "session", "session", session);
+                                }
+                            });
+                            return true;
+                        }
+                    });
                 } else {
-                    pluginResult = new PluginResult(PluginResult.Status.OK);
+                    sendInitResult(callbackContext, null, null, null);
                 }
-
-                pluginResult.setKeepCallback(true);
-                callbackContext.sendPluginResult(pluginResult);
             } else if (action.equals(PLAY_STREAM)) {
 
-                JSONObject stationUrls = args.getJSONObject(0);
-                JSONObject info = args.getJSONObject(1);
+                final JSONObject stationUrls = args.getJSONObject(0);
+                final JSONObject info = args.getJSONObject(1);
                 JSONObject audioJson = null;
                 if (args.length() > 2) {
                     audioJson = args.getJSONObject(2);
                 }
+                final JSONObject streamAudioJson = audioJson;
 
-                ret = playStream(stationUrls, info, audioJson);
-
-                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK);
-                pluginResult.setKeepCallback(true);
-                callbackContext.sendPluginResult(pluginResult);
+                commandExecutor.submit(action, new PlayerCommandExecutor.Command() {
+                    @Override
+                    public boolean run() throws Exception {
+                        return playStream(stationUrls, info, streamAudioJson);
+                    }
+                }, callbackContext);
 
             } else if (action.equals(PLAY_REMOTE_FILE)) {
 
-                String file = args.getString(0);
-                JSONObject info = args.getJSONObject(1);
+                final String file = args.getString(0);
+                final JSONObject info = args.getJSONObject(1);
                 JSONObject audioJson = null;
                 int position = 0;
                 if (args.length() > 2) {
@@ -168,18 +233,20 @@ public class VLCPlugin extends CordovaPlugin implements OnAudioInterruptListener
                 if (args.length() > 3) {
                     audioJson = args.getJSONObject(3);
                 }
+                final int startPosition = position;
+                final JSONObject fileAudioJson = audioJson;
 
-                ret = playRemoteFile(file, info, position, audioJson);
+                commandExecutor.submit(action, new PlayerCommandExecutor.Command() {
+                    @Override
+                    public boolean run() throws Exception {
+                        return playRemoteFile(file, info, startPosition, fileAudioJson);
+                    }
+                }, callbackContext);
 
-                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK);
-                pluginResult.setKeepCallback(true);
-                callbackContext.sendPluginResult(pluginResult);
             } else if (action.equals(PLAY_FILE)) {
 
-                Log.d("PLAYER", action + " & Args: " + args.toString());
-
-                String file = new File(args.getString(0)).getName();
-                JSONObject info = args.getJSONObject(1);
+                final String url = args.getString(0);
+                final JSONObject info = args.getJSONObject(1);
                 JSONObject audioJson = null;
                 int position = 0;
                 if (args.length() > 2) {
@@ -188,55 +255,219 @@ public class VLCPlugin extends CordovaPlugin implements OnAudioInterruptListener
                 if (args.length() > 3) {
                     audioJson = args.getJSONObject(3);
                 }
-                String directory = getDirectory(cordova.getActivity().getApplicationContext());
-                file = stripArgumentsFromFilename(file);
-                File f = new File(directory + "/" + file);
+                final int startPosition = position;
+                final JSONObject fileAudioJson = audioJson;
+
+                commandExecutor.submit(action, new PlayerCommandExecutor.Command() {
+                    @Override
+                    public boolean run() throws Exception {
+                        File f = findLocalFile(url);
+
+                        if (f != null) {
+                            return playAudioLocal(f.getAbsolutePath(), info, startPosition, fileAudioJson);
+                        } else {
+                            return playRemoteFile(url, info, startPosition, fileAudioJson);
+                        }
+                    }
+                }, callbackContext);
+
+            } else if (action.equals(PAUSE)) {
 
-                if (f.exists()) {
-                    ret = playAudioLocal(directory + "/" + file, info, position, audioJson);
+                commandExecutor.submit(action, new PlayerCommandExecutor.Command() {
+                    @Override
+                    public boolean run() {
+                        playerService.pausePlaying();
+                        return true;
+                    }
+                }, callbackContext);
+
+            } else if (action.equals(SEEK)) {
+                int interval = args.getInt(0);
+
+                if (playerService.seekAudio(interval)) {
+                    submitPendingSeek(action, callbackContext);
                 } else {
-                    ret = playRemoteFile(args.getString(0), info, position, audioJson);
+                    // folded into the seek that is already queued
+                    sendOk(callbackContext);
                 }
 
-                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK);
+            } else if (action.equals(SEEK_TO)) {
+                int pos = args.getInt(0);
+
+                if (playerService.seekToAudio(pos)) {
+                    submitPendingSeek(action, callbackContext);
+                } else {
+                    // folded into the seek that is already queued
+                    sendOk(callbackContext);
+                }
+
+            } else if (action.equals(STOP)) {
+
+                commandExecutor.submit(action, new PlayerCommandExecutor.Command() {
+                    @Override
+                    public boolean run() {
+                        //playerService.stopPlaying();
+                        playerService.pausePlaying();
+                        return true;
+                    }
+                }, callbackContext);
+
+            } else if (action.equals(HARD_STOP)) {
+
+                commandExecutor.submit(action, new PlayerCommandExecutor.Command() {
+                    @Override
+                    public boolean run() {
+                        playerService.stopPlaying();
+                        return true;
+                    }
+                }, callbackContext);
+
+            } else if (action.equals(ENQUEUE)) {
+
+                final String url = args.getString(0);
+                final JSONObject info = args.getJSONObject(1);
+                final JSONObject audioJson = args.length() > 2 ? args.optJSONObject(2) : null;
+                final int index = args.length() > 3 ? args.getInt(3) : -1;
+                final boolean isStream = args.length() > 4 && args.optBoolean(4, false);
+
+                commandExecutor.submit(action, new PlayerCommandExecutor.Command() {
+                    @Override
+                    public boolean run() throws Exception {
+                        // queue the local copy if there is one, like playfile does; streams have none
+                        File f = isStream ? null : findLocalFile(url);
+                        String location = f != null ? "file://" + f.getAbsolutePath() : url;
+
+                        playerService.getPlayQueue().add(location, info.optString("title", null), info.optString("artist", null),
+                                getThumbnailUrl(info), audioJson, isStream, index);
+                        playerService.queueChanged();
+                        return true;
+                    }
+                }, callbackContext);
+
+            } else if (action.equals(DEQUEUE)) {
+                final int id = args.getInt(0);
+
+                commandExecutor.submit(action, new PlayerCommandExecutor.Command() {
+                    @Override
+                    public boolean run() {
+                        boolean removed = playerService.getPlayQueue().remove(id);
+                        playerService.queueChanged();
+                        return removed;
+                    }
+                }, callbackContext);
+
+            } else if (action.equals(MOVE_QUEUE_ITEM)) {
+                final int id = args.getInt(0);
+                final int index = args.getInt(1);
+
+                commandExecutor.submit(action, new PlayerCommandExecutor.Command() {
+                    @Override
+                    public boolean run() {
+                        boolean moved = playerService.getPlayQueue().move(id, index);
+                        playerService.queueChanged();
+                        return moved;
+                    }
+                }, callbackContext);
+
+            } else if (action.equals(SKIP)) {
+
+                commandExecutor.submit(action, new PlayerCommandExecutor.Command() {
+                    @Override
+                    public boolean run() throws Exception {
+                        return playerService.skipToNext();
+                    }
+                }, callbackContext);
+
+            } else if (action.equals(CLEAR_QUEUE)) {
+
+                commandExecutor.submit(action, new PlayerCommandExecutor.Command() {
+                    @Override
+                    public boolean run() {
+                        playerService.getPlayQueue().clear();
+                        playerService.queueChanged();
+                        return true;
+                    }
+                }, callbackContext);
+
+            } else if (action.equals(GET_QUEUE)) {
+                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, playerService.getPlayQueue().toJSON());
                 pluginResult.setKeepCallback(true);
                 callbackContext.sendPluginResult(pluginResult);
-            } else if (action.equals(PAUSE)) {
 
-                playerService.pausePlaying();
-
-                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK);
+            } else if (action.equals(GET_CACHE_STATS)) {
+                LocalStreamProxy proxy = playerService.getStreamProxy();
+                JSONObject stats = proxy != null ? proxy.toJSON() : new JSONObject();
+                stats.put("enabled", proxy != null);
+                stats.put("resolver", playerService.getStreamResolver().toJSON());
+                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, stats);
                 pluginResult.setKeepCallback(true);
                 callbackContext.sendPluginResult(pluginResult);
 
-            } else if (action.equals(SEEK)) {
-                int interval = args.getInt(0);
-                playerService.seekAudio(interval);
+            } else if (action.equals(DOWNLOAD)) {
+                String url = args.getString(0);
+                int chunks = args.length() > 1 ? args.getInt(1) : 0;
+                playerService.getDownloadManager().start(url, chunks);
+                sendOk(callbackContext);
 
-                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK);
+            } else if (action.equals(CANCEL_DOWNLOAD)) {
+                playerService.getDownloadManager().cancel(args.getString(0));
+                sendOk(callbackContext);
+
+            } else if (action.equals(DOWNLOAD_STATUS)) {
+                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, playerService.getDownloadManager().status(args.getString(0)));
                 pluginResult.setKeepCallback(true);
                 callbackContext.sendPluginResult(pluginResult);
 
-            } else if (action.equals(SEEK_TO)) {
-                int pos = args.getInt(0);
-                playerService.seekToAudio(pos);
-
-                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK);
+            } else if (action.equals(GET_PLAYER_STATE)) {
+                // the snapshot is immutable, no need to go through the player thread
+                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, playerService.getStateSnapshot().toJSON());
                 pluginResult.setKeepCallback(true);
                 callbackContext.sendPluginResult(pluginResult);
 
-            } else if (action.equals(STOP)) {
-                //playerService.stopPlaying();
-                playerService.pausePlaying();
+            } else if (action.equals(GET_BUFFERING_STATS)) {
+                JSONObject stats = playerService.getBufferingController().toJSON(SystemClock.elapsedRealtime());
+                stats.put("live", playerService.getLiveLatencyController().toJSON());
+                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, stats);
+                pluginResult.setKeepCallback(true);
+                callbackContext.sendPluginResult(pluginResult);
 
-                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK);
+            } else if (action.equals(GET_METRICS)) {
+                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, playerService.getMetrics());
                 pluginResult.setKeepCallback(true);
                 callbackContext.sendPluginResult(pluginResult);
 
-            } else if (action.equals(HARD_STOP)) {
-                playerService.stopPlaying();
+            } else if (action.equals(DUMP_TRACE)) {
+                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, Trace.dump(args.optInt(0, 0)));
+                pluginResult.setKeepCallback(true);
+                callbackContext.sendPluginResult(pluginResult);
 
-                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK);
+            } else if (action.equals(LOCAL_STATUS)) {
+                JSONArray urls = args.getJSONArray(0);
+                JSONArray status = null;
+                for (LocalFileIndex index : getLocalFiles()) {
+                    JSONArray found = index.status(urls);
+                    if (status == null) {
+                        status = found;
+                        continue;
+                    }
+                    // found in an earlier directory wins, as it does for playfile
+                    for (int i = 0; i < found.length(); i++) {
+                        if (!status.getJSONObject(i).getBoolean("local")) {
+                            status.put(i, found.getJSONObject(i));
+                        }
+                    }
+                }
+                if (status == null) {
+                    // nowhere to look, nothing is local
+                    status = new JSONArray();
+                    for (int i = 0; i < urls.length(); i++) {
+                        JSONObject json = new JSONObject();
+                        json.put("url", urls.getString(i));
+                        json.put("local", false);
+                        status.put(json);
+                    }
+                }
+                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, status);
                 pluginResult.setKeepCallback(true);
                 callbackContext.sendPluginResult(pluginResult);
 
@@ -280,6 +511,18 @@ public class VLCPlugin extends CordovaPlugin implements OnAudioInterruptListener
                 PluginResult pluginResult = new PluginResult(PluginResult.Status.OK);
                 pluginResult.setKeepCallback(true);
                 callbackContext.sendPluginResult(pluginResult);
+            } else if (action.equals(GET_EVENT_STATS)) {
+                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, playerService.getEventGovernor().toJSON());
+                pluginResult.setKeepCallback(true);
+                callbackContext.sendPluginResult(pluginResult);
+            } else if (action.equals(GET_COMMAND_STATS)) {
+                JSONObject stats = commandExecutor.toJSON();
+                if (playerService != null) {
+                    stats.put("scheduler", playerService.getScheduler().toJSON());
+                }
+                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, stats);
+                pluginResult.setKeepCallback(true);
+                callbackContext.sendPluginResult(pluginResult);
             } else if (action.equals(SET_NEXT_ENABLED) || action.equals(SET_PREVIOUS_ENABLED)) {
                 PluginResult pluginResult = new PluginResult(PluginResult.Status.OK);
                 pluginResult.setKeepCallback(true);
@@ -300,6 +543,83 @@ public class VLCPlugin extends CordovaPlugin implements OnAudioInterruptListener
         return ret;
     }
 
+    private void configureService() throws JSONException {
+        final JSONObject options = serviceOptions;
+        if (options == null) {
+            return;
+        }
+        serviceOptions = null;
+
+        playerService.getEventGovernor().configure(options.optJSONObject("events"));
+        playerService.getReconnectEngine().configure(options.optJSONObject("reconnect"));
+        playerService.getBufferingController().configure(options.optJSONObject("buffering"));
+        playerService.getPositionStore().configure(options.optJSONObject("positions"));
+        playerService.configureMetrics(options.optJSONObject("metrics"));
+        playerService.getCrossfader().configure(options.optJSONObject("crossfade"));
+        playerService.getLiveLatencyController().configure(options.optJSONObject("live"));
+        playerService.getStreamResolver().configure(options.optJSONObject("resolver"));
+
+        if (options.has("proxyCache")) {
+            final JSONObject proxyConfig = options.getJSONObject("proxyCache");
+            commandExecutor.post("proxy", new PlayerCommandExecutor.Command() {
+                @Override
+                public boolean run() {
+                    playerService.configureProxy(proxyConfig);
+                    return true;
+                }
+            });
+        }
+
+        if (options.has("profile")) {
+            final PlayerProfile profile = PlayerProfile.fromJSON(options.get("profile"));
+            commandExecutor.post("profile", new PlayerCommandExecutor.Command() {
+                @Override
+                public boolean run() {
+                    playerService.setProfile(profile);
+                    return true;
+                }
+            });
+        }
+    }
+
+    private void submitPendingSeek(String action, CallbackContext callbackContext) {
+        commandExecutor.submit(action, new PlayerCommandExecutor.Command() {
+            @Override
+            public boolean run() {
+                playerService.applyPendingSeek();
+                return true;
+            }
+        }, callbackContext);
+    }
+
+    private static void sendOk(CallbackContext callbackContext) {
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK);
+        pluginResult.setKeepCallback(true);
+        callbackContext.sendPluginResult(pluginResult);
+    }
+
+    /**
+     * @param type "current" or "session", null for a plain OK
+     */
+    private static void sendInitResult(CallbackContext callbackContext, String type, String key, JSONObject value) {
+        PluginResult pluginResult;
+        if (type != null && value != null) {
+            try {
+                JSONObject json = new JSONObject();
+                json.put("type", type);
+                json.put(key, value);
+                pluginResult = new PluginResult(PluginResult.Status.OK, json);
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, e.getMessage());
+                pluginResult = new PluginResult(PluginResult.Status.OK);
+            }
+        } else {
+            pluginResult = new PluginResult(PluginResult.Status.OK);
+        }
+        pluginResult.setKeepCallback(true);
+        callbackContext.sendPluginResult(pluginResult);
+    }
+
     public static String stripArgumentsFromFilename(String filename) {
         int q = filename.lastIndexOf("?");
         if (q >= 0) {
@@ -308,8 +628,73 @@ public class VLCPlugin extends CordovaPlugin implements OnAudioInterruptListener
         return filename;
     }
 
+    /**
+     * @return the local copy of a remote file, or null if it was not downloaded
+     */
+    private File findLocalFile(String url) {
+        for (LocalFileIndex index : getLocalFiles()) {
+            File f = index.find(url);
+            if (f != null) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Directories downloads may be in, in the order they are looked in: external storage
+     * while it is mounted, then the app's own files, where downloads go without it.
+     */
+    protected List<File> getLocalDirectories() {
+        Context context = cordova.getActivity().getApplicationContext();
+        List<File> directories = new ArrayList<File>(2);
+        String external = getDirectory(context);
+        if (external != null) {
+            directories.add(new File(external));
+        }
+        directories.add(getInternalDirectory(context));
+        return directories;
+    }
+
+    /**
+     * @return an index for each of getLocalDirectories(), built when first needed; the index
+     * of external storage is dropped while it is not mounted and built again when it is back
+     */
+    private List<LocalFileIndex> getLocalFiles() {
+        List<File> directories = getLocalDirectories();
+        List<LocalFileIndex> indexes = new ArrayList<LocalFileIndex>(directories.size());
+        synchronized (localFiles) {
+            Iterator<Map.Entry<File, LocalFileIndex>> it = localFiles.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<File, LocalFileIndex> entry = it.next();
+                if (!directories.contains(entry.getKey())) {
+                    entry.getValue().stop();
+                    it.remove();
+                }
+            }
+            for (File directory : directories) {
+                LocalFileIndex index = localFiles.get(directory);
+                if (index == null) {
+                    index = new LocalFileIndex(directory);
+                    index.start();
+                    localFiles.put(directory, index);
+                }
+                indexes.add(index);
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Where downloads go when external storage is not available.
+     */
+    public static File getInternalDirectory(Context context) {
+        return new File(context.getFilesDir(), "music");
+    }
+
     public static String getDirectory(Context context) {
         // one-stop for directory, so it only needs to be changed here once
+
         // check if we can write to the SDCard
 
         boolean externalStorageAvailable;
@@ -334,20 +719,28 @@ public class VLCPlugin extends CordovaPlugin implements OnAudioInterruptListener
 
         // if we can write to the SDCARD
         if (externalStorageAvailable && externalStorageWriteable) {
-            return context.getExternalFilesDir(Environment.DIRECTORY_MUSIC).getAbsolutePath() + "/";
+            if (directory == null) {
+                // the path does not change, only whether the storage is there
+                directory = context.getExternalFilesDir(Environment.DIRECTORY_MUSIC).getAbsolutePath() + "/";
+            }
+            return directory;
         } else {
             return null;
         }
     }
 
-    private boolean playAudioLocal(String file, JSONObject info, int position, JSONObject audioJson) throws JSONException, RemoteException, IOException {
-        File f = new File(file);
-        if (f.exists()) {
-            // Set to Readable and MODE_WORLD_READABLE
-            f.setReadable(true, false);
-            Log.d(LOG_TAG, "is file readable? " + f.canRead());
+    private static String getThumbnailUrl(JSONObject info) throws JSONException {
+        if (info.has("imageThumbnail")) {
+            JSONObject thumbnailImage = info.getJSONObject("imageThumbnail");
+            if (thumbnailImage.has("url")) {
+                return thumbnailImage.getString("url");
+            }
         }
+        return null;
+    }
 
+    private boolean playAudioLocal(String file, JSONObject info, int position, JSONObject audioJson) throws JSONException, RemoteException, IOException {
+        // made readable when it was indexed
         String title = null;
         String artist = null;
         String imageUrl = null;
@@ -377,7 +770,7 @@ public class VLCPlugin extends CordovaPlugin implements OnAudioInterruptListener
         String imageUrl = null;
         boolean ret = false;
 
-        if (this.isConnected()) {
+        if (playerService.getNetworkMonitor().isConnected()) {
 
             if (info.has("title")) {
                 title = info.getString("title");
@@ -414,7 +807,7 @@ public class VLCPlugin extends CordovaPlugin implements OnAudioInterruptListener
         String imageUrl = null;
         boolean ret = false;
 
-        if (this.isConnected()) {
+        if (playerService.getNetworkMonitor().isConnected()) {
 
             if (info != null && info.has("name")) {
                 title = info.getString("name");
@@ -429,7 +822,7 @@ public class VLCPlugin extends CordovaPlugin implements OnAudioInterruptListener
                 }
             }
 
-            playAudio(url, title, artist, imageUrl, -1, audioJson, true);
+            playerService.playStream(url, title, artist, imageUrl, audioJson);
             ret = true;
         } else {
             Log.d(LOG_TAG, "play stream failed: no connection");
@@ -439,159 +832,85 @@ public class VLCPlugin extends CordovaPlugin implements OnAudioInterruptListener
     }
 
     public void playAudio(String file, String title, String artist, String url, int position, JSONObject audioJson, boolean isStream) throws RemoteException, IOException, JSONException {
-        Log.d(LOG_TAG, "Playing audio -- " + file);
-
         playerService.startPlaying(file, title, artist, url, position, audioJson, isStream);
         //this.setAudioInfo(info);
 
     }
 
-    protected boolean isConnected() {
-        ConnectivityManager connectivity = (ConnectivityManager) webView.getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
-
-        if (connectivity.getActiveNetworkInfo() == null) {
-            return false;
-        } else if (connectivity.getActiveNetworkInfo().isConnected()) {
-            return true;
-        } else {
-            return false;
-        }
-    }
-
     @Override
-    public void onAudioStateUpdated(MediaPlayer.Event event) {
+    public void onAudioStateUpdated(int type, long time) {
         if (this.connectionCallbackContext != null) {
-            JSONObject o = new JSONObject();
-            PluginResult result = null;
+            boolean terminal = type == MediaPlayer.Event.EndReached || type == MediaPlayer.Event.EncounteredError;
             try {
-                o.put("type", "state");
-                o.put("state", mapStates(event.type).ordinal());
-
-                Field[] fields = MediaPlayer.Event.class.getDeclaredFields();
-                for (Field f : fields) {
-                    try {
-                        if (f.getInt(event) == event.type) {
-                            o.put("description", f.getName());
-                            break;
-                        }
-                    } catch (IllegalAccessException e) {
-                        Log.e(LOG_TAG, e.getMessage());
-                    }
+                if (eventBatcher.isEnabled()) {
+                    eventBatcher.add(eventEncoder.stateMessage(type), terminal);
+                } else {
+                    this.connectionCallbackContext.sendPluginResult(eventEncoder.stateResult(type));
                 }
-
-                result = new PluginResult(PluginResult.Status.OK, o);
             } catch (JSONException e) {
-                result = new PluginResult(PluginResult.Status.ERROR, e.getMessage());
-            } finally {
-                result.setKeepCallback(true);
-                this.connectionCallbackContext.sendPluginResult(result);
+                this.connectionCallbackContext.sendPluginResult(eventEncoder.errorResult(e.getMessage()));
             }
         }
 
-        if (event.type == MediaPlayer.Event.Stopped) {
+        if (type == MediaPlayer.Event.Stopped) {
             onAudioProgressUpdated(0, 0);
-        } else if (event.type == MediaPlayer.Event.TimeChanged) {
-            int duration;
-            try {
-                duration = playerService.getDuration();
-            } catch (NullPointerException e) {
-                return;
-            }
-            onAudioProgressUpdated((int) event.getTimeChanged(), duration);
+        } else if (type == MediaPlayer.Event.TimeChanged) {
+            onAudioProgressUpdated((int) time, playerService.getDuration());
         }
     }
 
-    /*
-    // audio states
-        MEDIA_NONE      : 0
-        MEDIA_STARTING  : 1
-        MEDIA_RUNNING   : 2
-        MEDIA_PAUSED    : 3
-        MEDIA_STOPPED   : 4
-        MEDIA_LOADING   : 5
-        MEDIA_COMPLETED : 6
-
-        public static final int Opening = 258;
-        public static final int Playing = 260;
-        public static final int Paused = 261;
-        public static final int Stopped = 262;
-        public static final int EndReached = 265;
-        public static final int EncounteredError = 266;
-        public static final int TimeChanged = 267;
-        public static final int PositionChanged = 268;
-        public static final int Vout = 274;
-        public static final int ESAdded = 276;
-        public static final int ESDeleted = 277;
-     */
-    private CordovaMediaState mapStates(int type) {
-        CordovaMediaState state;
-
-        switch (type) {
-            case MediaPlayer.Event.Opening:
-                state = CordovaMediaState.MEDIA_LOADING;
-                break;
-            case MediaPlayer.Event.Playing:
-                state = CordovaMediaState.MEDIA_RUNNING;
-                break;
-            case MediaPlayer.Event.Paused:
-                state = CordovaMediaState.MEDIA_PAUSED;
-                break;
-            case MediaPlayer.Event.Stopped:
-                state = CordovaMediaState.MEDIA_STOPPED;
-                break;
-            case MediaPlayer.Event.EndReached:
-                state = CordovaMediaState.MEDIA_COMPLETED;
-                break;
-            case MediaPlayer.Event.TimeChanged:
-                state = CordovaMediaState.MEDIA_RUNNING;
-                break;
-            case MediaPlayer.Event.PositionChanged:
-                state = CordovaMediaState.MEDIA_RUNNING;
-                break;
-            default:
-                state = CordovaMediaState.MEDIA_NONE;
-                break;
+    @Override
+    public void onAudioProgressUpdated(int progress, int duration) {
+        Trace.record(Trace.LEVEL_VERBOSE, Trace.PROGRESS, progress, duration);
+        if (this.connectionCallbackContext != null) {
+            try {
+                long liveLatency = playerService != null ? playerService.getLiveLatency() : -1;
+                sendMessage(eventEncoder.progressMessage(progress, duration, liveLatency), false);
+            } catch (JSONException e) {
+                this.connectionCallbackContext.sendPluginResult(eventEncoder.errorResult(e.getMessage()));
+            }
         }
-
-        return state;
     }
 
     @Override
-    public void onAudioProgressUpdated(int progress, int duration) {
-        Log.d(LOG_TAG, "Progress : " + progress + ", Duration : " + duration);
+    public void onAudioStreamingError(int reason) {
         if (this.connectionCallbackContext != null) {
-            JSONObject o = new JSONObject();
-            PluginResult result = null;
             try {
-                o.put("type", "progress");
-                o.put("progress", progress);
-                o.put("duration", duration);
-                o.put("available", -1);
-                result = new PluginResult(PluginResult.Status.OK, o);
+                sendMessage(eventEncoder.errorMessage(reason), true);
             } catch (JSONException e) {
-                result = new PluginResult(PluginResult.Status.ERROR, e.getMessage());
-            } finally {
-                result.setKeepCallback(true);
-                this.connectionCallbackContext.sendPluginResult(result);
+                this.connectionCallbackContext.sendPluginResult(eventEncoder.errorResult(e.getMessage()));
             }
         }
     }
 
     @Override
-    public void onAudioStreamingError(int reason) {
+    public void onPlayerEvent(JSONObject event) {
+        if (this.connectionCallbackContext != null) {
+            sendMessage(event, false);
+        }
+    }
+
+    protected void sendMessage(JSONObject message, boolean flushNow) {
+        if (eventBatcher.isEnabled()) {
+            eventBatcher.add(message, flushNow);
+        } else {
+            this.connectionCallbackContext.sendPluginResult(eventEncoder.result(message));
+        }
+    }
+
+    @Override
+    public void sendBatch(JSONArray events) {
         if (this.connectionCallbackContext != null) {
-            JSONObject o = new JSONObject();
-            PluginResult result = null;
+            PluginResult result;
             try {
-                o.put("type", "error");
-                o.put("reason", reason);
-                result = new PluginResult(PluginResult.Status.OK, o);
+                JSONObject o = new JSONObject();
+                o.put("type", "batch");
+                o.put("events", events);
+                result = eventEncoder.result(o);
             } catch (JSONException e) {
-                result = new PluginResult(PluginResult.Status.ERROR, e.getMessage());
-            } finally {
-                result.setKeepCallback(true);
-                this.connectionCallbackContext.sendPluginResult(result);
+                result = eventEncoder.errorResult(e.getMessage());
             }
+            this.connectionCallbackContext.sendPluginResult(result);
         }
     }
 
@@ -604,12 +923,7 @@ public class VLCPlugin extends CordovaPlugin implements OnAudioInterruptListener
     @Override
     public void onAudioInterruptCompleted(INTERRUPT_TYPE type, boolean restart) {
         Log.d(LOG_TAG, "Audio Interrupt Completed - Restart audio if necessary.");
-
-        try {
-            playerService.clearAudioInterrupt(type, restart);
-        } catch (IOException e) {  // TODO - how to handle?
-            Log.d(LOG_TAG, "onAudioInterruptCompleted error: " + e.getMessage());
-        }
+        playerService.clearAudioInterrupt(type, restart);
     }
 
 }
@@ -0,0 +1,95 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.net.Uri;
+
+import org.videolan.libvlc.LibVLC;
+import org.videolan.libvlc.Media;
+
+/**
+ * PlayerMedia on a LibVLC Media, made by VlcPlayer for its LibVLC instance.
+ */
+class VlcMedia implements PlayerMedia {
+
+    final Media media;
+    private final String location;
+
+    VlcMedia(LibVLC libVLC, String location) {
+        this.media = new Media(libVLC, Uri.parse(location));
+        this.location = location;
+    }
+
+    @Override
+    public String getLocation() {
+        return location;
+    }
+
+    @Override
+    public void addOption(String option) {
+        media.addOption(option);
+    }
+
+    @Override
+    public long getDuration() {
+        return media.getDuration();
+    }
+
+    @Override
+    public String getAudioCodec() {
+        Media.Track track = audioTrack();
+        return track != null ? track.codec : null;
+    }
+
+    @Override
+    public int getAudioBitrate() {
+        Media.Track track = audioTrack();
+        return track != null ? track.bitrate : 0;
+    }
+
+    @Override
+    public long getReadBytes() {
+        if (media.isReleased()) {
+            return -1;
+        }
+        Media.Stats stats = media.getStats();
+        // an int in LibVLC, wraps after 2GB
+        return stats != null ? stats.readBytes & 0xffffffffL : -1;
+    }
+
+    @Override
+    public int getState() {
+        return media.getState();
+    }
+
+    @Override
+    public void parseAsync(final ParseListener listener) {
+        media.setEventListener(new Media.EventListener() {
+            @Override
+            public void onEvent(Media.Event event) {
+                if (event.type == Media.Event.ParsedChanged && !media.isReleased()) {
+                    listener.onParsed();
+                }
+            }
+        });
+        media.parseAsync(Media.Parse.ParseNetwork);
+    }
+
+    @Override
+    public boolean isReleased() {
+        return media.isReleased();
+    }
+
+    @Override
+    public void release() {
+        media.release();
+    }
+
+    private Media.Track audioTrack() {
+        for (int i = 0; i < media.getTrackCount(); i++) {
+            Media.Track track = media.getTrack(i);
+            if (track != null && track.type == Media.Track.Type.Audio) {
+                return track;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,153 @@
+package org.nypr.cordova.vlcplugin;
+
+import android.content.Context;
+
+import org.videolan.libvlc.LibVLC;
+import org.videolan.libvlc.MediaPlayer;
+
+import java.util.ArrayList;
+
+/**
+ * Player on a LibVLC MediaPlayer. The LibVLC instance belongs to the caller and outlives
+ * the player.
+ */
+public class VlcPlayer implements Player, MediaPlayer.EventListener {
+
+    /**
+     * A LibVLC instance. It reads its options only when it is created.
+     */
+    public static class Engine implements Player.Engine {
+        private final LibVLC libVLC;
+
+        public Engine(Context context, ArrayList<String> options) {
+            libVLC = new LibVLC(context, options);
+        }
+
+        @Override
+        public Player newPlayer() {
+            return new VlcPlayer(libVLC);
+        }
+
+        @Override
+        public void setUserAgent(String name, String userAgent) {
+            libVLC.setUserAgent(name, userAgent);
+        }
+
+        @Override
+        public void release() {
+            libVLC.release();
+        }
+    }
+
+    private final LibVLC libVLC;
+    private final MediaPlayer mediaPlayer;
+    private volatile Listener listener;
+    // MediaPlayer.getMedia() retains the media it returns, this does not
+    private VlcMedia media;
+
+    public VlcPlayer(LibVLC libVLC) {
+        this.libVLC = libVLC;
+        this.mediaPlayer = new MediaPlayer(libVLC);
+        mediaPlayer.setEventListener(this);
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public PlayerMedia newMedia(String location) {
+        return new VlcMedia(libVLC, location);
+    }
+
+    @Override
+    public void setMedia(PlayerMedia media) {
+        VlcMedia previous = this.media;
+        this.media = (VlcMedia) media;
+        mediaPlayer.setMedia(this.media.media);
+        // the MediaPlayer let go of its own reference to it in setMedia
+        if (previous != null && previous != media) {
+            previous.release();
+        }
+    }
+
+    @Override
+    public PlayerMedia getMedia() {
+        return media;
+    }
+
+    @Override
+    public void play() {
+        mediaPlayer.play();
+    }
+
+    @Override
+    public void pause() {
+        mediaPlayer.pause();
+    }
+
+    @Override
+    public void stop() {
+        mediaPlayer.stop();
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mediaPlayer.isPlaying();
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return mediaPlayer.isSeekable();
+    }
+
+    @Override
+    public long getTime() {
+        return mediaPlayer.getTime();
+    }
+
+    @Override
+    public void setTime(long time) {
+        mediaPlayer.setTime(time);
+    }
+
+    @Override
+    public long getLength() {
+        return mediaPlayer.getLength();
+    }
+
+    @Override
+    public void setAudioDelay(long delay) {
+        mediaPlayer.setAudioDelay(delay);
+    }
+
+    @Override
+    public void setRate(float rate) {
+        mediaPlayer.setRate(rate);
+    }
+
+    @Override
+    public void setVolume(int volume) {
+        mediaPlayer.setVolume(volume);
+    }
+
+    @Override
+    public void release() {
+        listener = null;
+        mediaPlayer.setEventListener(null);
+        mediaPlayer.release();
+        media = null;
+    }
+
+    @Override
+    public void onEvent(MediaPlayer.Event event) {
+        Listener l = listener;
+        if (l == null) {
+            return;
+        }
+        long time = event.type == MediaPlayer.Event.TimeChanged ? event.getTimeChanged() : -1;
+        float buffering = event.type == MediaPlayer.Event.Buffering ? event.getBuffering() : 0;
+        l.onEvent(event.type, time, buffering);
+    }
+}
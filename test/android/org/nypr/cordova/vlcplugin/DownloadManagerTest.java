@@ -0,0 +1,179 @@
+package org.nypr.cordova.vlcplugin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadManagerTest {
+
+    // two chunks of a bit over the minimum chunk size
+    private static final byte[] EPISODE = LocalStreamProxyTest.bytes(1536 * 1024);
+
+    private TestHttpServer server;
+    private File directory;
+    private DownloadManager downloads;
+    private final BlockingQueue<JSONObject> finished = new LinkedBlockingQueue<JSONObject>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestHttpServer();
+        directory = Files.createTempDirectory("downloads").toFile();
+        downloads = new DownloadManager(directory, new DownloadManager.Listener() {
+            @Override
+            public void onDownloadUpdated(JSONObject status) {
+                String state = status.optString("state");
+                if (!DownloadManager.STATE_RUNNING.equals(state)) {
+                    finished.add(status);
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        downloads.shutdown();
+        server.stop();
+        LocalStreamProxyTest.delete(directory);
+    }
+
+    @Test
+    public void downloadsInChunks() throws Exception {
+        server.content("/episode.mp3", EPISODE, "audio/mpeg", -1);
+        String url = server.url("/episode.mp3");
+
+        downloads.start(url, 2);
+        assertEquals(DownloadManager.STATE_COMPLETE, awaitFinished().getString("state"));
+
+        assertArrayEquals(EPISODE, Files.readAllBytes(downloads.targetFor(url).toPath()));
+        // the length probe and one request per chunk
+        assertEquals(3, server.getRequestCount());
+        assertFalse(new File(downloads.targetFor(url).getPath() + ".part").exists());
+        assertFalse(new File(downloads.targetFor(url).getPath() + ".state").exists());
+    }
+
+    @Test
+    public void resumesAChunkWhereTheConnectionWasCut() throws Exception {
+        int cutAfter = 100 * 1024;
+        server.content("/episode.mp3", EPISODE, "audio/mpeg", cutAfter);
+        String url = server.url("/episode.mp3");
+
+        downloads.start(url, 2);
+        JSONObject status = awaitFinished();
+        assertEquals(DownloadManager.STATE_COMPLETE, status.getString("state"));
+        assertEquals(EPISODE.length, status.getLong("bytes"));
+        assertArrayEquals(EPISODE, Files.readAllBytes(downloads.targetFor(url).toPath()));
+
+        // one retry, picking up from the cut rather than the start of its chunk
+        assertEquals(4, server.getRequestCount());
+        String retry = server.getRanges().get(3);
+        String cutChunk = null;
+        for (String range : server.getRanges().subList(1, 3)) {
+            long start = Long.parseLong(range.substring("bytes=".length(), range.indexOf('-')));
+            if (retry.equals("bytes=" + (start + cutAfter) + range.substring(range.indexOf('-')))) {
+                cutChunk = range;
+            }
+        }
+        assertNotNull("retried with " + retry + " after " + server.getRanges(), cutChunk);
+    }
+
+    @Test
+    public void resumesFromTheSavedState() throws Exception {
+        server.content("/episode.mp3", EPISODE, "audio/mpeg", -1);
+        String url = server.url("/episode.mp3");
+        File target = downloads.targetFor(url);
+        int half = EPISODE.length / 2;
+        writePartial(target, EPISODE.length, half, half, 0);
+
+        assertTrue(downloads.hasPartial(url));
+        assertEquals(DownloadManager.STATE_WAITING, downloads.status(url).getString("state"));
+        assertEquals(half, downloads.status(url).getLong("bytes"));
+
+        downloads.start(url, 2);
+        assertEquals(DownloadManager.STATE_COMPLETE, awaitFinished().getString("state"));
+        assertArrayEquals(EPISODE, Files.readAllBytes(target.toPath()));
+        // the probe and the second chunk only
+        assertEquals(2, server.getRequestCount());
+        assertEquals("bytes=" + half + "-" + (EPISODE.length - 1), server.getRanges().get(1));
+    }
+
+    @Test
+    public void startsOverWhenTheRemoteLengthChanged() throws Exception {
+        server.content("/episode.mp3", EPISODE, "audio/mpeg", -1);
+        String url = server.url("/episode.mp3");
+        File target = downloads.targetFor(url);
+        // saved against an older, longer version of the file
+        writePartial(target, EPISODE.length + 1000, (EPISODE.length + 1000) / 2, 4096, 0);
+
+        downloads.start(url, 2);
+        assertEquals(DownloadManager.STATE_COMPLETE, awaitFinished().getString("state"));
+        assertArrayEquals(EPISODE, Files.readAllBytes(target.toPath()));
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void failsWhenTheLengthDoesNotCheckOut() throws Exception {
+        server.content("/episode.mp3", EPISODE, "audio/mpeg", -1);
+        String url = server.url("/episode.mp3");
+        File target = downloads.targetFor(url);
+        int half = EPISODE.length / 2;
+        // a state claiming more of the first chunk than there is
+        writePartial(target, EPISODE.length, half, half + 4096, 0);
+
+        downloads.start(url, 2);
+        JSONObject status = awaitFinished();
+        assertEquals(DownloadManager.STATE_FAILED, status.getString("state"));
+        assertTrue(status.getString("error"), status.getString("error").startsWith("Length mismatch"));
+        assertFalse("a partial file was committed", target.exists());
+    }
+
+    @Test
+    public void downloadsWithoutRangeSupport() throws Exception {
+        server.handle("/live.mp3", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Content-Type", "audio/mpeg");
+                exchange.sendResponseHeaders(200, 0);
+                exchange.getResponseBody().write(EPISODE);
+            }
+        });
+        String url = server.url("/live.mp3");
+
+        downloads.start(url, 4);
+        assertEquals(DownloadManager.STATE_COMPLETE, awaitFinished().getString("state"));
+        assertArrayEquals(EPISODE, Files.readAllBytes(downloads.targetFor(url).toPath()));
+    }
+
+    private JSONObject awaitFinished() throws InterruptedException {
+        JSONObject status = finished.poll(30, TimeUnit.SECONDS);
+        assertNotNull("the download did not finish", status);
+        return status;
+    }
+
+    /**
+     * Leaves behind what a download split in two chunks writes when it is stopped.
+     */
+    private static void writePartial(File target, long total, long split, long firstDone, long secondDone) throws IOException {
+        byte[] part = new byte[(int) total];
+        System.arraycopy(EPISODE, 0, part, 0, (int) Math.min(Math.min(firstDone, split), EPISODE.length));
+        Files.write(new File(target.getPath() + ".part").toPath(), part);
+        new DownloadManager.ChunkState(total, new long[]{0, split}, new long[]{split - 1, total - 1},
+                new long[]{firstDone, secondDone}).write(new File(target.getPath() + ".state"));
+    }
+}
@@ -0,0 +1,79 @@
+package org.nypr.cordova.vlcplugin;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class EventBatcherTest {
+
+    @Test
+    public void flushesBeforeTheChange() throws Exception {
+        final List<String> calls = new ArrayList<String>();
+        EventBatcher batcher = new EventBatcher(new EventBatcher.Sink() {
+            @Override
+            public void sendBatch(JSONArray events) {
+                calls.add("batch of " + events.length());
+            }
+        });
+        batcher.setWindow(100);
+        batcher.add(new JSONObject().put("type", "progress"), false);
+        batcher.add(new JSONObject().put("type", "state"), false);
+
+        batcher.flushThen(new Runnable() {
+            @Override
+            public void run() {
+                calls.add("change");
+            }
+        });
+        batcher.flush();
+
+        assertEquals(2, calls.size());
+        assertEquals("batch of 2", calls.get(0));
+        assertEquals("change", calls.get(1));
+    }
+
+    @Test
+    public void flushesNeverOverlap() throws Exception {
+        final AtomicBoolean sending = new AtomicBoolean();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final EventBatcher batcher = new EventBatcher(new EventBatcher.Sink() {
+            @Override
+            public void sendBatch(JSONArray events) {
+                if (!sending.compareAndSet(false, true)) {
+                    overlapped.set(true);
+                }
+                Thread.yield();
+                sending.set(false);
+            }
+        });
+        batcher.setWindow(100);
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        batcher.add(new JSONObject(), i % 3 == 0);
+                        if (i % 5 == 0) {
+                            batcher.flush();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertFalse("two batches were sent at once", overlapped.get());
+    }
+}
@@ -0,0 +1,53 @@
+package org.nypr.cordova.vlcplugin;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.videolan.libvlc.MediaPlayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventRateGovernorTest {
+
+    private final EventRateGovernor governor = new EventRateGovernor();
+
+    @Test
+    public void deliversRepeatedStates() {
+        assertTrue(governor.shouldDeliver(MediaPlayer.Event.Playing, 0));
+        assertTrue(governor.shouldDeliver(MediaPlayer.Event.Playing, 1));
+
+        assertEquals(2, governor.getDeliveredCount());
+        assertEquals(0, governor.getDroppedCount());
+    }
+
+    @Test
+    public void throttlesProgress() {
+        assertTrue(governor.shouldDeliver(MediaPlayer.Event.TimeChanged, 0));
+        assertFalse(governor.shouldDeliver(MediaPlayer.Event.TimeChanged, 500));
+        assertTrue(governor.shouldDeliver(MediaPlayer.Event.TimeChanged, 1000));
+
+        governor.resetThrottle();
+        assertTrue(governor.shouldDeliver(MediaPlayer.Event.TimeChanged, 1001));
+        assertEquals(1, governor.getDroppedCount());
+    }
+
+    @Test
+    public void dropsAndCountsDropped() throws Exception {
+        assertFalse(governor.shouldDeliver(MediaPlayer.Event.PositionChanged, 0));
+        governor.countDropped(MediaPlayer.Event.EndReached);
+
+        assertEquals(2, governor.getDroppedCount());
+        JSONObject events = governor.toJSON().getJSONObject("events");
+        assertEquals(1, events.getJSONObject(AudioEventEncoder.describe(MediaPlayer.Event.EndReached)).getLong("dropped"));
+    }
+
+    @Test
+    public void appliesConfiguredPolicies() throws Exception {
+        governor.configure(new JSONObject("{\"progressInterval\": 0, \"policies\": {\"Buffering\": \"drop\"}}"));
+
+        assertFalse(governor.shouldDeliver(MediaPlayer.Event.Buffering, 0));
+        assertTrue(governor.shouldDeliver(MediaPlayer.Event.TimeChanged, 0));
+        assertTrue(governor.shouldDeliver(MediaPlayer.Event.TimeChanged, 0));
+    }
+}
@@ -0,0 +1,275 @@
+package org.nypr.cordova.vlcplugin;
+
+import org.videolan.libvlc.MediaPlayer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Player that plays nothing. Calls report the events LibVLC would send for them; anything
+ * else (progress, buffering, errors, the end of the media) is scripted with emit and friends.
+ * Events go to the listener straight away, on the calling thread.
+ */
+class FakePlayer implements Player {
+
+    /**
+     * Hands out fake players and keeps them, the crossfade's second player included.
+     */
+    static class Engine implements Player.Engine {
+        final List<FakePlayer> players = new ArrayList<FakePlayer>();
+        String userAgent;
+        int releases;
+
+        @Override
+        public Player newPlayer() {
+            FakePlayer player = new FakePlayer();
+            players.add(player);
+            return player;
+        }
+
+        @Override
+        public void setUserAgent(String name, String userAgent) {
+            this.userAgent = userAgent;
+        }
+
+        @Override
+        public void release() {
+            releases++;
+        }
+
+        FakePlayer last() {
+            return players.get(players.size() - 1);
+        }
+    }
+
+    static class Media implements PlayerMedia {
+        final String location;
+        final List<String> options = new ArrayList<String>();
+        long duration;
+        boolean released;
+
+        Media(String location) {
+            this.location = location;
+        }
+
+        @Override
+        public String getLocation() {
+            return location;
+        }
+
+        @Override
+        public void addOption(String option) {
+            options.add(option);
+        }
+
+        @Override
+        public long getDuration() {
+            return duration;
+        }
+
+        @Override
+        public String getAudioCodec() {
+            return null;
+        }
+
+        @Override
+        public int getAudioBitrate() {
+            return 0;
+        }
+
+        @Override
+        public long getReadBytes() {
+            return -1;
+        }
+
+        @Override
+        public int getState() {
+            return 0;
+        }
+
+        @Override
+        public void parseAsync(ParseListener listener) {
+            listener.onParsed();
+        }
+
+        @Override
+        public boolean isReleased() {
+            return released;
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    private Listener listener;
+    private Media media;
+    private boolean opened;
+    private boolean playing;
+    private boolean seekable = true;
+    private long time;
+    private long length;
+    float rate = 1f;
+    int volume = 100;
+    long audioDelay;
+    boolean released;
+
+    // how often each command was called
+    int plays;
+    int pauses;
+    int stops;
+    int seeks;
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public PlayerMedia newMedia(String location) {
+        return new Media(location);
+    }
+
+    @Override
+    public void setMedia(PlayerMedia media) {
+        if (this.media != null && this.media != media) {
+            this.media.release();
+        }
+        this.media = (Media) media;
+        opened = false;
+        playing = false;
+        time = 0;
+        emit(MediaPlayer.Event.MediaChanged);
+    }
+
+    @Override
+    public PlayerMedia getMedia() {
+        return media;
+    }
+
+    @Override
+    public void play() {
+        plays++;
+        if (media == null || playing) {
+            return;
+        }
+        if (!opened) {
+            opened = true;
+            emit(MediaPlayer.Event.Opening);
+        }
+        playing = true;
+        emit(MediaPlayer.Event.Playing);
+    }
+
+    @Override
+    public void pause() {
+        pauses++;
+        if (playing) {
+            playing = false;
+            emit(MediaPlayer.Event.Paused);
+        }
+    }
+
+    @Override
+    public void stop() {
+        stops++;
+        if (opened) {
+            opened = false;
+            playing = false;
+            emit(MediaPlayer.Event.Stopped);
+        }
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return seekable;
+    }
+
+    @Override
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public void setTime(long time) {
+        seeks++;
+        this.time = time;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public void setAudioDelay(long delay) {
+        audioDelay = delay;
+    }
+
+    @Override
+    public void setRate(float rate) {
+        this.rate = rate;
+    }
+
+    @Override
+    public void setVolume(int volume) {
+        this.volume = volume;
+    }
+
+    @Override
+    public void release() {
+        released = true;
+        listener = null;
+    }
+
+    void setLength(long length) {
+        this.length = length;
+    }
+
+    void setSeekable(boolean seekable) {
+        this.seekable = seekable;
+    }
+
+    /**
+     * Sends an event that carries neither a time nor a buffer fill.
+     */
+    void emit(int type) {
+        Listener l = listener;
+        if (l != null) {
+            l.onEvent(type, -1, 0);
+        }
+    }
+
+    /**
+     * Moves the time on and reports it.
+     */
+    void progress(long time) {
+        this.time = time;
+        Listener l = listener;
+        if (l != null) {
+            l.onEvent(MediaPlayer.Event.TimeChanged, time, 0);
+        }
+    }
+
+    void buffering(float percent) {
+        Listener l = listener;
+        if (l != null) {
+            l.onEvent(MediaPlayer.Event.Buffering, -1, percent);
+        }
+    }
+
+    /**
+     * Plays to the end of the media.
+     */
+    void end() {
+        playing = false;
+        opened = false;
+        emit(MediaPlayer.Event.EndReached);
+    }
+}
@@ -0,0 +1,50 @@
+package org.nypr.cordova.vlcplugin;
+
+import java.io.File;
+
+/**
+ * The service on fake players and a ManualLoop, without LibVLC, audio focus or the
+ * notification, so the event, command and interrupt paths run on a plain JVM.
+ */
+class FakePlayerService extends VLCPlayerService {
+
+    final ManualLoop loop = new ManualLoop();
+    final FakePlayer.Engine engine = new FakePlayer.Engine();
+    int focusRequests;
+    boolean connected = true;
+
+    FakePlayerService(File filesDir) {
+        setUp(new PlayerScheduler(loop), filesDir, new File(filesDir, "music"));
+    }
+
+    /**
+     * The player made last: the one playing, unless a crossfade is being prepared.
+     */
+    FakePlayer player() {
+        return engine.last();
+    }
+
+    @Override
+    protected Player.Engine createEngine(PlayerProfile profile) {
+        return engine;
+    }
+
+    @Override
+    protected boolean requestAudioFocus() {
+        focusRequests++;
+        return true;
+    }
+
+    @Override
+    protected void abandonAudioFocus() {
+    }
+
+    @Override
+    protected void showNotification(String title, String artist, String url) {
+    }
+
+    @Override
+    protected boolean isNetworkConnected() {
+        return connected;
+    }
+}
@@ -0,0 +1,67 @@
+package org.nypr.cordova.vlcplugin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocalFileIndexTest {
+
+    private static final String EPISODE = "http://127.0.0.1/episode.mp3";
+
+    private File root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("index").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        LocalStreamProxyTest.delete(root);
+    }
+
+    @Test
+    public void findsWhatTheScanFound() throws Exception {
+        File music = new File(root, "music");
+        music.mkdirs();
+        File episode = download(music, EPISODE);
+
+        LocalFileIndex index = started(music);
+        assertEquals(episode, index.find(EPISODE));
+        assertNull(index.find("http://127.0.0.1/other.mp3"));
+    }
+
+    @Test
+    public void missesFallBackToTheFilesystem() throws Exception {
+        // not there yet when the index is built, and no observer to tell it
+        File music = new File(root, "music");
+        LocalFileIndex index = started(music);
+        assertTrue(music.isDirectory());
+
+        File episode = download(music, EPISODE);
+        assertEquals(episode, index.find(EPISODE));
+    }
+
+    private static LocalFileIndex started(File directory) throws InterruptedException {
+        LocalFileIndex index = new LocalFileIndex(directory);
+        index.start();
+        for (int i = 0; i < 100 && !index.isReady(); i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(index.isReady());
+        return index;
+    }
+
+    static File download(File directory, String url) throws Exception {
+        File f = new File(directory, DownloadManager.fileNameFor(url));
+        Files.write(f.toPath(), new byte[100]);
+        return f;
+    }
+}
@@ -0,0 +1,368 @@
+package org.nypr.cordova.vlcplugin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocalStreamProxyTest {
+
+    // a bit over two segments
+    private static final byte[] EPISODE = bytes(2 * SegmentCache.SEGMENT_SIZE + 1000);
+
+    private TestHttpServer server;
+    private File cacheDir;
+    private LocalStreamProxy proxy;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestHttpServer();
+        server.content("/episode.mp3", EPISODE, "audio/mpeg", -1);
+        cacheDir = Files.createTempDirectory("proxy").toFile();
+        proxy = new LocalStreamProxy(cacheDir, 16 * SegmentCache.SEGMENT_SIZE);
+        proxy.start();
+    }
+
+    @After
+    public void tearDown() {
+        proxy.stop();
+        server.stop();
+        delete(cacheDir);
+    }
+
+    @Test
+    public void servesTheWholeFile() throws Exception {
+        Response response = get(server.url("/episode.mp3"), null);
+
+        assertEquals(200, response.status);
+        assertArrayEquals(EPISODE, response.body);
+    }
+
+    @Test
+    public void servesRepeatsFromTheCache() throws Exception {
+        get(server.url("/episode.mp3"), null);
+        int requests = server.getRequestCount();
+
+        Response response = get(server.url("/episode.mp3"), null);
+        assertArrayEquals(EPISODE, response.body);
+        assertEquals(requests, server.getRequestCount());
+        assertTrue(proxy.toJSON().getLong("bytesSaved") >= EPISODE.length);
+    }
+
+    @Test
+    public void servesRanges() throws Exception {
+        int start = SegmentCache.SEGMENT_SIZE - 10;
+        int end = SegmentCache.SEGMENT_SIZE + 10;
+        Response response = get(server.url("/episode.mp3"), "bytes=" + start + "-" + end);
+
+        assertEquals(206, response.status);
+        assertEquals("bytes " + start + "-" + end + "/" + EPISODE.length, response.contentRange);
+        assertArrayEquals(Arrays.copyOfRange(EPISODE, start, end + 1), response.body);
+    }
+
+    @Test
+    public void servesOpenRanges() throws Exception {
+        int start = EPISODE.length - 5000;
+        Response response = get(server.url("/episode.mp3"), "bytes=" + start + "-");
+
+        assertEquals(206, response.status);
+        assertArrayEquals(Arrays.copyOfRange(EPISODE, start, EPISODE.length), response.body);
+    }
+
+    @Test
+    public void servesSuffixRanges() throws Exception {
+        Response response = get(server.url("/episode.mp3"), "bytes=-500");
+
+        assertEquals(206, response.status);
+        assertEquals("bytes " + (EPISODE.length - 500) + "-" + (EPISODE.length - 1) + "/" + EPISODE.length,
+                response.contentRange);
+        assertArrayEquals(Arrays.copyOfRange(EPISODE, EPISODE.length - 500, EPISODE.length), response.body);
+
+        // once the length is cached too
+        response = get(server.url("/episode.mp3"), "bytes=-" + (EPISODE.length + 100));
+        assertArrayEquals(EPISODE, response.body);
+    }
+
+    @Test
+    public void rejectsMalformedRanges() throws Exception {
+        assertEquals(416, get(server.url("/episode.mp3"), "bytes=abc-").status);
+        assertEquals(416, get(server.url("/episode.mp3"), "bytes=-0").status);
+        assertEquals(416, get(server.url("/episode.mp3"), "bytes=100-50").status);
+        assertEquals(416, get(server.url("/episode.mp3"), "bytes=0-1,5-6").status);
+    }
+
+    @Test
+    public void rejectsRangesPastTheEnd() throws Exception {
+        Response response = get(server.url("/episode.mp3"), "bytes=" + EPISODE.length + "-");
+
+        assertEquals(416, response.status);
+        assertEquals("bytes */" + EPISODE.length, response.contentRange);
+    }
+
+    @Test
+    public void parsesRanges() {
+        assertArrayEquals(new long[]{0, Long.MAX_VALUE}, LocalStreamProxy.parseRange("bytes=0-"));
+        assertArrayEquals(new long[]{10, 20}, LocalStreamProxy.parseRange("bytes=10-20"));
+        assertArrayEquals(new long[]{-300, Long.MAX_VALUE}, LocalStreamProxy.parseRange("bytes=-300"));
+        assertNull(LocalStreamProxy.parseRange("bytes=-"));
+        assertNull(LocalStreamProxy.parseRange("bytes=x-1"));
+    }
+
+    @Test
+    public void servesFinishedDownloadsFromTheFile() throws Exception {
+        File directory = Files.createTempDirectory("downloads").toFile();
+        try {
+            DownloadManager downloads = new DownloadManager(directory, null);
+            Files.write(downloads.targetFor(server.url("/episode.mp3")).toPath(), EPISODE);
+            proxy.setDownloadManager(downloads);
+
+            assertArrayEquals(EPISODE, get(server.url("/episode.mp3"), null).body);
+            Response response = get(server.url("/episode.mp3"), "bytes=-100");
+            assertEquals(206, response.status);
+            assertArrayEquals(Arrays.copyOfRange(EPISODE, EPISODE.length - 100, EPISODE.length), response.body);
+            assertEquals(0, server.getRequestCount());
+            downloads.shutdown();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void doesNotWaitForTheLengthOfADownload() throws Exception {
+        final CountDownLatch probed = new CountDownLatch(1);
+        final CountDownLatch answered = new CountDownLatch(1);
+        final HttpHandler content = TestHttpServer.contentHandler(EPISODE, "audio/mpeg", -1);
+        server.handle("/probing.mp3", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if ("bytes=0-0".equals(exchange.getRequestHeaders().getFirst("Range"))) {
+                    // the download's length probe hangs until the player got its answer
+                    probed.countDown();
+                    try {
+                        answered.await(20, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                content.handle(exchange);
+            }
+        });
+        File directory = Files.createTempDirectory("downloads").toFile();
+        DownloadManager downloads = new DownloadManager(directory, null);
+        try {
+            proxy.setDownloadManager(downloads);
+            downloads.start(server.url("/probing.mp3"), 1);
+            assertTrue(probed.await(5, TimeUnit.SECONDS));
+
+            long start = System.currentTimeMillis();
+            Response response = get(server.url("/probing.mp3"), "bytes=0-999");
+            answered.countDown();
+
+            assertEquals(206, response.status);
+            assertArrayEquals(Arrays.copyOfRange(EPISODE, 0, 1000), response.body);
+            assertTrue("waited for the download", System.currentTimeMillis() - start < 5000);
+        } finally {
+            answered.countDown();
+            downloads.shutdown();
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void restartsAfterStop() throws Exception {
+        proxy.stop();
+        proxy.start();
+
+        assertArrayEquals(EPISODE, get(server.url("/episode.mp3"), null).body);
+    }
+
+    @Test
+    public void concurrentMissesOfOneSegmentBothSucceed() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Callable<Response> request = new Callable<Response>() {
+                @Override
+                public Response call() throws Exception {
+                    return get(server.url("/episode.mp3"), "bytes=0-" + (SegmentCache.SEGMENT_SIZE - 1));
+                }
+            };
+            Future<Response> a = pool.submit(request);
+            Future<Response> b = pool.submit(request);
+            byte[] expected = Arrays.copyOfRange(EPISODE, 0, SegmentCache.SEGMENT_SIZE);
+            assertArrayEquals(expected, a.get(10, TimeUnit.SECONDS).body);
+            assertArrayEquals(expected, b.get(10, TimeUnit.SECONDS).body);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // and the cached segment is whole
+        int requests = server.getRequestCount();
+        assertArrayEquals(Arrays.copyOfRange(EPISODE, 0, 1000), get(server.url("/episode.mp3"), "bytes=0-999").body);
+        assertEquals(requests, server.getRequestCount());
+    }
+
+    @Test
+    public void streamsBeforeTheSegmentIsComplete() throws Exception {
+        final CountDownLatch firstBytesRead = new CountDownLatch(1);
+        final AtomicBoolean waitedOut = new AtomicBoolean();
+        server.handle("/slow.mp3", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Content-Type", "audio/mpeg");
+                exchange.getResponseHeaders().add("Content-Range", "bytes 0-" + (EPISODE.length - 1) + "/" + EPISODE.length);
+                exchange.sendResponseHeaders(206, EPISODE.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(EPISODE, 0, 32 * 1024);
+                out.flush();
+                try {
+                    // the rest of the segment only comes once the player got the start
+                    waitedOut.set(!firstBytesRead.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                out.write(EPISODE, 32 * 1024, EPISODE.length - 32 * 1024);
+            }
+        });
+
+        HttpURLConnection connection = open(server.url("/slow.mp3"), null);
+        InputStream in = connection.getInputStream();
+        byte[] start = new byte[1024];
+        readFully(in, start);
+        firstBytesRead.countDown();
+        assertArrayEquals(Arrays.copyOfRange(EPISODE, 0, 1024), start);
+
+        in.close();
+        connection.disconnect();
+        assertTrue("the first bytes waited for the whole segment", !waitedOut.get());
+    }
+
+    @Test
+    public void refusesRequestsWithoutTheToken() throws Exception {
+        String proxied = proxy.proxyUrl(server.url("/episode.mp3"));
+        String withoutToken = proxied.replaceFirst("/[0-9a-f]+/stream", "/stream");
+        String otherToken = proxied.replaceFirst("/[0-9a-f]+/stream", "/0123456789abcdef0123456789abcdef/stream");
+
+        assertEquals(403, fetch(withoutToken, null).status);
+        assertEquals(403, fetch(otherToken, null).status);
+        assertEquals(0, server.getRequestCount());
+
+        // and the token from before a restart no longer works
+        String oldToken = proxied.replaceFirst(".*/([0-9a-f]+)/stream.*", "$1");
+        proxy.stop();
+        proxy.start();
+        String restarted = proxy.proxyUrl(server.url("/episode.mp3"));
+        assertEquals(403, fetch(restarted.replaceFirst("/[0-9a-f]+/stream", "/" + oldToken + "/stream"), null).status);
+        assertEquals(200, fetch(restarted, null).status);
+    }
+
+    @Test
+    public void refusesUrlsThatAreNotHttp() throws Exception {
+        File file = new File(cacheDir, "secret.txt");
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+
+        assertEquals(400, get(file.toURI().toString(), null).status);
+        assertEquals(400, get("ftp://127.0.0.1/episode.mp3", null).status);
+        assertEquals(400, get("jar:" + file.toURI() + "!/x", null).status);
+        assertEquals(400, get("not a url", null).status);
+        // still serving
+        assertArrayEquals(EPISODE, get(server.url("/episode.mp3"), null).body);
+    }
+
+    private static class Response {
+        int status;
+        String contentRange;
+        byte[] body;
+    }
+
+    private Response get(String url, String range) throws IOException {
+        return fetch(proxy.proxyUrl(url), range);
+    }
+
+    private Response fetch(String proxied, String range) throws IOException {
+        HttpURLConnection connection = connect(proxied, range);
+        try {
+            Response response = new Response();
+            response.status = connection.getResponseCode();
+            response.contentRange = connection.getHeaderField("Content-Range");
+            InputStream in = response.status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if (in != null) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, n);
+                }
+                in.close();
+            }
+            response.body = body.toByteArray();
+            return response;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(String url, String range) throws IOException {
+        return connect(proxy.proxyUrl(url), range);
+    }
+
+    private HttpURLConnection connect(String proxied, String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(proxied).openConnection();
+        connection.setReadTimeout(10000);
+        if (range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+        return connection;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int read = 0;
+        while (read < buffer.length) {
+            int n = in.read(buffer, read, buffer.length - read);
+            if (n < 0) {
+                throw new IOException("ended early");
+            }
+            read += n;
+        }
+    }
+
+    static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+}
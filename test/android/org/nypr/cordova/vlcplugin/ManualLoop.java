@@ -0,0 +1,112 @@
+package org.nypr.cordova.vlcplugin;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * A PlayerScheduler loop run by hand on the calling thread, with a clock of its own, so tests
+ * and benchmarks decide when queued and delayed work runs.
+ */
+class ManualLoop implements PlayerScheduler.Loop {
+
+    private static class Entry {
+        final Runnable runnable;
+        final long due;
+        final long order;
+
+        Entry(Runnable runnable, long due, long order) {
+            this.runnable = runnable;
+            this.due = due;
+            this.order = order;
+        }
+    }
+
+    private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>(64, new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.due != b.due) {
+                return a.due < b.due ? -1 : 1;
+            }
+            return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+        }
+    });
+    private long now;
+    private long order;
+    private boolean quit;
+    private volatile Thread running;
+
+    @Override
+    public synchronized boolean post(Runnable runnable, long delay) {
+        if (quit) {
+            return false;
+        }
+        queue.add(new Entry(runnable, now + Math.max(0, delay), order++));
+        return true;
+    }
+
+    @Override
+    public synchronized void remove(Runnable runnable) {
+        for (Iterator<Entry> i = queue.iterator(); i.hasNext(); ) {
+            if (i.next().runnable == runnable) {
+                i.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void removeAll() {
+        queue.clear();
+    }
+
+    @Override
+    public boolean isLoopThread() {
+        return running == Thread.currentThread();
+    }
+
+    @Override
+    public synchronized void quit() {
+        quit = true;
+        queue.clear();
+    }
+
+    /**
+     * Runs everything that is due, including what that posts in turn.
+     *
+     * @return how many runnables ran
+     */
+    int runUntilIdle() {
+        int count = 0;
+        running = Thread.currentThread();
+        try {
+            while (true) {
+                Entry next;
+                synchronized (this) {
+                    next = queue.peek();
+                    if (next == null || next.due > now) {
+                        return count;
+                    }
+                    queue.poll();
+                }
+                next.runnable.run();
+                count++;
+            }
+        } finally {
+            running = null;
+        }
+    }
+
+    /**
+     * Moves the clock on and runs what became due.
+     */
+    int advance(long ms) {
+        synchronized (this) {
+            now += ms;
+        }
+        return runUntilIdle();
+    }
+
+    synchronized int getPendingCount() {
+        return queue.size();
+    }
+}
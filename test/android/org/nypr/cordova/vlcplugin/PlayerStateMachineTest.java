@@ -0,0 +1,249 @@
+package org.nypr.cordova.vlcplugin;
+
+import org.junit.Test;
+import org.nypr.cordova.vlcplugin.OnAudioInterruptListener.INTERRUPT_TYPE;
+import org.nypr.cordova.vlcplugin.PlayerStateMachine.Effect;
+import org.nypr.cordova.vlcplugin.PlayerStateMachine.Message;
+import org.nypr.cordova.vlcplugin.PlayerStateMachine.Phase;
+import org.nypr.cordova.vlcplugin.PlayerStateMachine.Signal;
+import org.nypr.cordova.vlcplugin.PlayerStateMachine.Snapshot;
+import org.nypr.cordova.vlcplugin.PlayerStateMachine.Transition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PlayerStateMachineTest {
+
+    private static final INTERRUPT_TYPE PHONE = INTERRUPT_TYPE.INTERRUPT_PHONE;
+    private static final INTERRUPT_TYPE HEADSET = INTERRUPT_TYPE.INTERRUPT_HEADSET;
+
+    private final List<Effect> effects = new ArrayList<Effect>();
+
+    @Test
+    public void interruptWhilePlayingPausesAndResumes() {
+        Snapshot s = playing();
+
+        s = send(s, Message.interruptBegan(PHONE, true));
+        assertEquals(Phase.INTERRUPTED, s.phase);
+        assertTrue(s.resumePending);
+        assertEffects(Effect.PAUSE);
+
+        s = send(s, Message.interruptEnded(PHONE, true));
+        assertEquals(Phase.PLAYING, s.phase);
+        assertFalse(s.resumePending);
+        assertFalse(s.isInterrupted());
+        assertEffects(Effect.RESUME);
+    }
+
+    @Test
+    public void interruptEndingWithoutRestartStaysPaused() {
+        Snapshot s = send(playing(), Message.interruptBegan(PHONE, true));
+        effects.clear();
+
+        s = send(s, Message.interruptEnded(PHONE, false));
+        assertEquals(Phase.PAUSED, s.phase);
+        assertFalse(s.resumePending);
+        assertEffects();
+    }
+
+    @Test
+    public void untrackedInterruptStops() {
+        Snapshot s = send(playing(), Message.interruptBegan(HEADSET, false));
+
+        assertEquals(Phase.PLAYING, s.phase);
+        assertFalse(s.isInterrupted());
+        assertEffects(Effect.STOP);
+    }
+
+    @Test
+    public void overlappingInterruptsResumeWhenTheLastEnds() {
+        Snapshot s = send(playing(), Message.interruptBegan(PHONE, true), Message.interruptBegan(HEADSET, true));
+        effects.clear();
+
+        s = send(s, Message.interruptEnded(HEADSET, true));
+        assertEquals(Phase.INTERRUPTED, s.phase);
+        assertEffects();
+
+        s = send(s, Message.interruptEnded(PHONE, true));
+        assertEquals(Phase.PLAYING, s.phase);
+        assertEffects(Effect.RESUME);
+    }
+
+    @Test
+    public void networkComingAndGoingDuringInterruptWaitsForTheEnd() {
+        Snapshot s = send(playing(), Message.interruptBegan(PHONE, true));
+        effects.clear();
+
+        s = send(s, Message.of(Signal.NETWORK_LOST, true));
+        assertEquals(Phase.INTERRUPTED, s.phase);
+        assertFalse(s.connected);
+        assertEffects();
+
+        s = send(s, Message.of(Signal.NETWORK_AVAILABLE));
+        assertEquals(Phase.INTERRUPTED, s.phase);
+        assertTrue(s.connected);
+        assertEffects();
+
+        s = send(s, Message.interruptEnded(PHONE, true));
+        assertEquals(Phase.PLAYING, s.phase);
+        assertEffects(Effect.RESUME);
+    }
+
+    @Test
+    public void interruptEndingWithoutNetworkReconnects() {
+        Snapshot s = send(playing(), Message.interruptBegan(PHONE, true), Message.of(Signal.NETWORK_LOST, true));
+        effects.clear();
+
+        s = send(s, Message.interruptEnded(PHONE, true));
+        assertEquals(Phase.RECONNECTING, s.phase);
+        assertEffects(Effect.BEGIN_RECONNECT);
+
+        s = send(s, Message.of(Signal.NETWORK_AVAILABLE));
+        assertEffects(Effect.RECONNECT_NOW);
+        s = send(s, Message.of(Signal.RECONNECT_ENDED, true));
+        assertEquals(Phase.PLAYING, s.phase);
+    }
+
+    @Test
+    public void callDuringReconnectSuspendsIt() {
+        Snapshot s = reconnecting();
+
+        s = send(s, Message.interruptBegan(PHONE, true));
+        assertEquals(Phase.INTERRUPTED, s.phase);
+        assertTrue(s.resumePending);
+        assertEffects(Effect.SUSPEND_RECONNECT);
+
+        // the network coming back during the call does not reconnect yet
+        s = send(s, Message.of(Signal.NETWORK_AVAILABLE));
+        assertEquals(Phase.INTERRUPTED, s.phase);
+        assertEffects();
+
+        s = send(s, Message.interruptEnded(PHONE, true));
+        assertEquals(Phase.PLAYING, s.phase);
+        assertEffects(Effect.RESUME);
+    }
+
+    @Test
+    public void callEndingWhileStillOfflineGoesBackToReconnecting() {
+        Snapshot s = send(reconnecting(), Message.interruptBegan(PHONE, true));
+        effects.clear();
+
+        s = send(s, Message.interruptEnded(PHONE, true));
+        assertEquals(Phase.RECONNECTING, s.phase);
+        assertFalse(s.resumePending);
+        assertEffects(Effect.BEGIN_RECONNECT);
+    }
+
+    @Test
+    public void stopClearsInterrupts() {
+        Snapshot s = send(playing(), Message.interruptBegan(PHONE, true));
+        effects.clear();
+
+        s = send(s, Message.of(Signal.STOP));
+        assertEquals(Phase.STOPPED, s.phase);
+        assertFalse(s.isInterrupted());
+        assertFalse(s.resumePending);
+        assertEffects();
+
+        // the end of the old call does not start anything
+        s = send(s, Message.interruptEnded(PHONE, true));
+        assertEquals(Phase.STOPPED, s.phase);
+        assertEffects();
+    }
+
+    @Test
+    public void stopWhileReconnectingCancelsIt() {
+        Snapshot s = send(reconnecting(), Message.of(Signal.STOP));
+
+        assertEquals(Phase.STOPPED, s.phase);
+        assertEffects(Effect.CANCEL_RECONNECT);
+    }
+
+    @Test
+    public void pauseKeepsInterrupts() {
+        Snapshot s = send(playing(), Message.interruptBegan(PHONE, true), Message.of(Signal.PAUSE));
+
+        assertEquals(Phase.PAUSED, s.phase);
+        assertTrue(s.isInterrupted());
+        assertFalse(s.resumePending);
+    }
+
+    @Test
+    public void playerPlayingDuringInterruptIsPausedAgain() {
+        Snapshot s = send(playing(), Message.interruptBegan(PHONE, true));
+        effects.clear();
+
+        s = send(s, Message.of(Signal.PLAYER_PLAYING));
+        assertEquals(Phase.INTERRUPTED, s.phase);
+        assertTrue(s.resumePending);
+        assertEffects(Effect.PAUSE);
+    }
+
+    @Test
+    public void playDuringInterruptWaitsForTheEnd() {
+        Snapshot s = send(PlayerStateMachine.INITIAL, Message.interruptBegan(PHONE, true), Message.of(Signal.PLAY));
+
+        assertEquals(Phase.INTERRUPTED, s.phase);
+        assertTrue(s.resumePending);
+
+        s = send(s, Message.interruptEnded(PHONE, true));
+        assertEquals(Phase.PLAYING, s.phase);
+        assertEffects(Effect.RESUME);
+    }
+
+    @Test
+    public void localMediaIgnoresNetworkLoss() {
+        Snapshot s = send(playing(), Message.of(Signal.NETWORK_LOST, false));
+
+        assertEquals(Phase.PLAYING, s.phase);
+        assertFalse(s.connected);
+        assertEffects();
+    }
+
+    @Test
+    public void unchangedStateKeepsTheSnapshot() {
+        Snapshot s = playing();
+        Transition t = PlayerStateMachine.transition(s, Message.of(Signal.PLAYER_PLAYING));
+
+        assertSame(s, t.next);
+        assertEquals(s.version, t.next.version);
+    }
+
+    private Snapshot playing() {
+        Snapshot s = send(PlayerStateMachine.INITIAL, Message.of(Signal.PLAY), Message.of(Signal.PLAYER_PLAYING));
+        assertEquals(Phase.PLAYING, s.phase);
+        effects.clear();
+        return s;
+    }
+
+    private Snapshot reconnecting() {
+        Snapshot s = send(playing(), Message.of(Signal.NETWORK_LOST, true));
+        assertEquals(Phase.RECONNECTING, s.phase);
+        assertEffects(Effect.PAUSE, Effect.BEGIN_RECONNECT);
+        return s;
+    }
+
+    private Snapshot send(Snapshot s, Message... messages) {
+        for (Message m : messages) {
+            Transition t = PlayerStateMachine.transition(s, m);
+            effects.addAll(t.effects);
+            s = t.next;
+        }
+        return s;
+    }
+
+    /**
+     * Checks the effects since the last check.
+     */
+    private void assertEffects(Effect... expected) {
+        assertEquals(expected.length == 0 ? Collections.<Effect>emptyList() : Arrays.asList(expected), effects);
+        effects.clear();
+    }
+}
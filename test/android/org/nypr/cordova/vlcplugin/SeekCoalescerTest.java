@@ -0,0 +1,67 @@
+package org.nypr.cordova.vlcplugin;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SeekCoalescerTest {
+
+    private final SeekCoalescer seeks = new SeekCoalescer();
+
+    @Test
+    public void foldsABurstIntoOneSeek() {
+        assertTrue(seeks.offerRelative(15000, 0));
+        assertFalse(seeks.offerRelative(15000, 10));
+        assertFalse(seeks.offerRelative(-5000, 20));
+
+        SeekCoalescer.Request request = seeks.take();
+        assertEquals(60000, request.resolve(35000));
+        assertEquals(0, request.requestedAt);
+        assertNull(seeks.take());
+        assertEquals(3, seeks.getRequestedCount());
+    }
+
+    @Test
+    public void absoluteSeekReplacesRelativeOnes() {
+        seeks.offerRelative(15000, 0);
+        seeks.offerAbsolute(90000, 5);
+
+        assertEquals(90000, seeks.take().resolve(35000));
+    }
+
+    @Test
+    public void completesWhenTheTimeReachesTheTarget() {
+        seeks.offerAbsolute(90000, 100);
+        seeks.markApplied(seeks.take(), 90000);
+
+        // still playing from before the seek
+        assertEquals(-1, seeks.onTimeChanged(35250, 200));
+        assertEquals(-1, seeks.onTimeChanged(35500, 300));
+
+        assertEquals(350, seeks.onTimeChanged(90100, 450));
+        assertEquals(350, seeks.getLastLatency());
+        // only once
+        assertEquals(-1, seeks.onTimeChanged(90350, 700));
+    }
+
+    @Test
+    public void smallSeeksCompleteOnTheFirstCloseTime() {
+        seeks.offerRelative(500, 0);
+        SeekCoalescer.Request request = seeks.take();
+        seeks.markApplied(request, request.resolve(10000));
+
+        assertEquals(50, seeks.onTimeChanged(10400, 50));
+    }
+
+    @Test
+    public void cancelForgetsTheAppliedSeek() {
+        seeks.offerAbsolute(90000, 0);
+        seeks.markApplied(seeks.take(), 90000);
+        seeks.cancel();
+
+        assertEquals(-1, seeks.onTimeChanged(90000, 100));
+    }
+}
@@ -0,0 +1,172 @@
+package org.nypr.cordova.vlcplugin;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class StreamResolverTest {
+
+    private static final String HLS = "application/vnd.apple.mpegurl";
+
+    private TestHttpServer server;
+    private StreamResolver resolver;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestHttpServer();
+        server.respond("/stream.mp3", 200, "audio/mpeg", "not really mp3");
+        resolver = new StreamResolver();
+    }
+
+    @After
+    public void tearDown() {
+        resolver.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void followsRedirects() throws Exception {
+        server.redirect("/station", server.url("/moved"));
+        server.redirect("/moved", "/stream.mp3");
+
+        assertEquals(server.url("/stream.mp3"), resolve(server.url("/station")));
+    }
+
+    @Test
+    public void readsPls() throws Exception {
+        server.respond("/station.pls", 200, "audio/x-scpls",
+                "[playlist]\nNumberOfEntries=2\nFile1=/stream.mp3\nTitle1=one\nFile2=/other.mp3\n");
+
+        assertEquals(server.url("/stream.mp3"), resolve(server.url("/station.pls")));
+    }
+
+    @Test
+    public void readsM3uServedAsText() throws Exception {
+        server.respond("/station.m3u", 200, "text/plain", "#EXTM3U\n#EXTINF:-1,Station\nstream.mp3\n");
+
+        assertEquals(server.url("/stream.mp3"), resolve(server.url("/station.m3u")));
+    }
+
+    @Test
+    public void followsPlaylistChains() throws Exception {
+        server.redirect("/station", "/station.pls");
+        server.respond("/station.pls", 200, "audio/x-scpls", "[playlist]\nFile1=" + server.url("/station.m3u") + "\n");
+        server.respond("/station.m3u", 200, "audio/x-mpegurl", "stream.mp3\n");
+
+        assertEquals(server.url("/stream.mp3"), resolve(server.url("/station")));
+    }
+
+    @Test
+    public void passesHlsMasterThrough() throws Exception {
+        server.redirect("/live", "/hls/master.m3u8");
+        server.respond("/hls/master.m3u8", 200, HLS,
+                "#EXTM3U\n#EXT-X-STREAM-INF:BANDWIDTH=64000\nlo/index.m3u8\n#EXT-X-STREAM-INF:BANDWIDTH=256000\nhi/index.m3u8\n");
+
+        // LibVLC gets the master, so it can switch variants itself
+        assertEquals(server.url("/hls/master.m3u8"), resolve(server.url("/live")));
+    }
+
+    @Test
+    public void passesHlsMediaThrough() throws Exception {
+        server.respond("/hls/index.m3u8", 200, HLS, "#EXTM3U\n#EXT-X-TARGETDURATION:10\n#EXTINF:10,\nseg1.aac\n");
+
+        assertEquals(server.url("/hls/index.m3u8"), resolve(server.url("/hls/index.m3u8")));
+    }
+
+    @Test
+    public void playsTheUrlItselfOn404() throws Exception {
+        server.respond("/gone", 404, null, null);
+
+        assertEquals(server.url("/gone"), resolve(server.url("/gone")));
+        assertEquals(1, failures());
+    }
+
+    @Test
+    public void cachesResults() throws Exception {
+        server.redirect("/station", "/stream.mp3");
+        String url = server.url("/station");
+        resolve(url);
+        int requests = server.getRequestCount();
+
+        assertTrue(resolver.isResolved(url));
+        assertEquals(server.url("/stream.mp3"), resolver.lookup(url));
+        assertEquals(server.url("/stream.mp3"), resolve(url));
+        assertEquals(requests, server.getRequestCount());
+    }
+
+    @Test
+    public void expiresResults() throws Exception {
+        resolver.configure(new JSONObject().put("ttl", 0));
+        server.redirect("/station", "/stream.mp3");
+        String url = server.url("/station");
+        resolve(url);
+        int requests = server.getRequestCount();
+
+        assertFalse(resolver.isResolved(url));
+        assertEquals(url, resolver.lookup(url));
+        resolve(url);
+        assertTrue(server.getRequestCount() > requests);
+    }
+
+    @Test
+    public void remembersFailures() throws Exception {
+        server.respond("/gone", 404, null, null);
+        String url = server.url("/gone");
+        resolve(url);
+        int requests = server.getRequestCount();
+
+        assertTrue(resolver.isResolved(url));
+        assertEquals(url, resolve(url));
+        assertEquals(requests, server.getRequestCount());
+        assertEquals(1, failures());
+    }
+
+    @Test
+    public void expiresFailures() throws Exception {
+        resolver.configure(new JSONObject().put("negativeTtl", 0));
+        server.respond("/gone", 404, null, null);
+        String url = server.url("/gone");
+        resolve(url);
+
+        assertFalse(resolver.isResolved(url));
+        resolve(url);
+        assertEquals(2, failures());
+    }
+
+    @Test
+    public void leavesOtherUrlsAlone() throws Exception {
+        assertTrue(resolver.isResolved("file:///sdcard/episode.mp3"));
+        assertEquals("file:///sdcard/episode.mp3", resolve("file:///sdcard/episode.mp3"));
+
+        resolver.configure(new JSONObject().put("enabled", false));
+        assertTrue(resolver.isResolved(server.url("/station.pls")));
+        assertEquals(0, server.getRequestCount());
+    }
+
+    private String resolve(String url) throws InterruptedException {
+        final BlockingQueue<String> result = new LinkedBlockingQueue<String>();
+        resolver.resolve(url, new StreamResolver.Callback() {
+            @Override
+            public void onResolved(String url, String resolved) {
+                result.add(resolved);
+            }
+        });
+        String resolved = result.poll(10, TimeUnit.SECONDS);
+        assertNotNull("not resolved", resolved);
+        return resolved;
+    }
+
+    private long failures() throws Exception {
+        return resolver.toJSON().getLong("failures");
+    }
+}
@@ -0,0 +1,163 @@
+package org.nypr.cordova.vlcplugin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local HTTP server standing in for stations, podcast hosts and CDNs in tests.
+ */
+class TestHttpServer {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final List<String> ranges = new ArrayList<String>();
+
+    TestHttpServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // a handler that holds its response back must not hold up the others
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the Range header of every request so far, null for requests without one
+     */
+    List<String> getRanges() {
+        synchronized (ranges) {
+            return new ArrayList<String>(ranges);
+        }
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    void handle(String path, final HttpHandler handler) {
+        server.createContext(path, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                synchronized (ranges) {
+                    ranges.add(exchange.getRequestHeaders().getFirst("Range"));
+                }
+                try {
+                    handler.handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    void respond(String path, final int status, final String contentType, final String body) {
+        handle(path, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (contentType != null) {
+                    exchange.getResponseHeaders().add("Content-Type", contentType);
+                }
+                send(exchange, status, body == null ? new byte[0] : body.getBytes("UTF-8"));
+            }
+        });
+    }
+
+    void redirect(String path, final String location) {
+        handle(path, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Location", location);
+                exchange.sendResponseHeaders(302, -1);
+            }
+        });
+    }
+
+    /**
+     * Serves the bytes with range support, like a podcast host or CDN.
+     *
+     * @param cutAfter bytes written before the connection is dropped, once, on the first
+     *                 response longer than that, -1 to never drop it
+     */
+    void content(String path, byte[] content, String contentType, int cutAfter) {
+        handle(path, contentHandler(content, contentType, cutAfter));
+    }
+
+    /**
+     * The handler behind content(), for handlers that serve content only some of the time.
+     */
+    static HttpHandler contentHandler(final byte[] content, final String contentType, final int cutAfter) {
+        return new HttpHandler() {
+            private boolean cut;
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int start = 0;
+                int end = content.length - 1;
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                boolean partial = range != null && range.startsWith("bytes=");
+                if (partial) {
+                    String spec = range.substring("bytes=".length());
+                    int dash = spec.indexOf('-');
+                    if (dash == 0) {
+                        start = Math.max(0, content.length - Integer.parseInt(spec.substring(1)));
+                    } else {
+                        start = Integer.parseInt(spec.substring(0, dash));
+                        if (dash < spec.length() - 1) {
+                            end = Math.min(end, Integer.parseInt(spec.substring(dash + 1)));
+                        }
+                    }
+                    if (start >= content.length) {
+                        exchange.getResponseHeaders().add("Content-Range", "bytes */" + content.length);
+                        exchange.sendResponseHeaders(416, -1);
+                        return;
+                    }
+                    exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+                }
+                exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+                exchange.getResponseHeaders().add("Content-Type", contentType);
+                int length = end - start + 1;
+                exchange.sendResponseHeaders(partial ? 206 : 200, length);
+
+                OutputStream out = exchange.getResponseBody();
+                boolean dropping;
+                synchronized (this) {
+                    dropping = cutAfter >= 0 && cutAfter < length && !cut;
+                    cut |= dropping;
+                }
+                if (dropping) {
+                    out.write(content, start, cutAfter);
+                    out.flush();
+                    // closing the exchange now leaves the client short of the declared length
+                    throw new IOException("cut");
+                }
+                out.write(content, start, length);
+            }
+        };
+    }
+
+    static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            exchange.getResponseBody().write(body);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package org.nypr.cordova.vlcplugin;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nypr.cordova.vlcplugin.OnAudioInterruptListener.INTERRUPT_TYPE;
+import org.videolan.libvlc.MediaPlayer;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VLCPlayerServiceTest {
+
+    private static final String EPISODE = "http://127.0.0.1/episode.mp3";
+    private static final String NEXT = "http://127.0.0.1/next.mp3";
+
+    private File filesDir;
+    private FakePlayerService service;
+    private final List<Integer> states = new ArrayList<Integer>();
+    private final List<JSONObject> events = new ArrayList<JSONObject>();
+
+    @Before
+    public void setUp() throws Exception {
+        filesDir = Files.createTempDirectory("service").toFile();
+        service = new FakePlayerService(filesDir);
+        service.setAudioStateListener(new OnAudioStateUpdatedListenerVLC() {
+            @Override
+            public void onAudioStateUpdated(int type, long time) {
+                states.add(type);
+            }
+
+            @Override
+            public void onAudioProgressUpdated(int progress, int duration) {
+            }
+
+            @Override
+            public void onAudioStreamingError(int reason) {
+            }
+
+            @Override
+            public void onPlayerEvent(JSONObject event) {
+                events.add(event);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        service.tearDown();
+        LocalStreamProxyTest.delete(filesDir);
+    }
+
+    @Test
+    public void playsOnTheEnginesPlayer() throws Exception {
+        play(EPISODE);
+
+        FakePlayer player = service.player();
+        assertTrue(player.isPlaying());
+        assertEquals(EPISODE, player.getMedia().getLocation());
+        assertEquals(1, service.focusRequests);
+        assertTrue(states.contains(MediaPlayer.Event.Playing));
+    }
+
+    @Test
+    public void interruptPausesAndResumes() throws Exception {
+        play(EPISODE);
+        FakePlayer player = service.player();
+
+        service.interruptAudio(INTERRUPT_TYPE.INTERRUPT_PHONE, true);
+        service.loop.runUntilIdle();
+        assertFalse(player.isPlaying());
+        assertEquals(MediaPlayer.Event.Paused, last(states));
+
+        service.clearAudioInterrupt(INTERRUPT_TYPE.INTERRUPT_PHONE, true);
+        service.loop.runUntilIdle();
+        assertTrue(player.isPlaying());
+        assertEquals(MediaPlayer.Event.Playing, last(states));
+        // resumed on the media it had, not opened again
+        assertEquals(1, player.pauses);
+    }
+
+    @Test
+    public void progressIsThrottledOnTheWay() throws Exception {
+        play(EPISODE);
+        states.clear();
+
+        for (int i = 1; i <= 10; i++) {
+            service.player().progress(i * 250);
+        }
+        service.loop.runUntilIdle();
+
+        // the clock stands still here, so only the first progress after Playing goes out
+        assertEquals(1, states.size());
+        assertEquals(MediaPlayer.Event.TimeChanged, (int) states.get(0));
+        assertTrue(service.getEventGovernor().getDroppedCount() >= 9);
+    }
+
+    @Test
+    public void endOfAnItemAdvancesTheQueue() throws Exception {
+        service.getPlayQueue().add(NEXT, "Next", "Artist", null, new JSONObject(), false, -1);
+        play(EPISODE);
+        states.clear();
+
+        service.player().end();
+        service.loop.runUntilIdle();
+
+        assertEquals(NEXT, service.player().getMedia().getLocation());
+        assertTrue(service.player().isPlaying());
+        assertFalse("EndReached of the old item was delivered", states.contains(MediaPlayer.Event.EndReached));
+        JSONObject advance = event("queue");
+        assertNotNull(advance);
+        assertEquals("advance", advance.getString("event"));
+        assertEquals(EPISODE, advance.getJSONObject("ended").getString("file"));
+    }
+
+    @Test
+    public void seekCompletesWhenTheTimeGetsThere() throws Exception {
+        play(EPISODE);
+        FakePlayer player = service.player();
+        player.setLength(600000);
+
+        assertTrue(service.seekToAudio(90000));
+        service.applyPendingSeek();
+        assertEquals(90000, player.getTime());
+
+        player.progress(250);
+        service.loop.runUntilIdle();
+        assertNull(event("seek"));
+
+        player.progress(90000);
+        service.loop.runUntilIdle();
+        assertEquals(90000, event("seek").getLong("position"));
+    }
+
+    @Test
+    public void seekIsForgottenWhenTheItemChanges() throws Exception {
+        play(EPISODE);
+        service.player().setLength(600000);
+
+        assertTrue(service.seekToAudio(90000));
+        service.applyPendingSeek();
+        play(NEXT);
+
+        service.player().progress(90000);
+        service.loop.runUntilIdle();
+        assertNull(event("seek"));
+    }
+
+    @Test
+    public void reconnectAttemptsReleaseTheMediaTheyReplace() throws Exception {
+        play(EPISODE);
+        FakePlayer player = service.player();
+        PlayerMedia dropped = player.getMedia();
+
+        player.emit(MediaPlayer.Event.EncounteredError);
+        service.loop.runUntilIdle();
+        PlayerMedia firstAttempt = player.getMedia();
+        assertNotSame(dropped, firstAttempt);
+        assertTrue(dropped.isReleased());
+
+        player.emit(MediaPlayer.Event.EncounteredError);
+        service.loop.advance(60000);
+        assertNotSame(firstAttempt, player.getMedia());
+        assertTrue(firstAttempt.isReleased());
+        assertFalse(player.getMedia().isReleased());
+        assertEquals(EPISODE, player.getMedia().getLocation());
+    }
+
+    @Test
+    public void rejoiningTheLiveEdgeReleasesTheMediaItReplaces() throws Exception {
+        // the clock stands still here, so the join delay alone is over the maximum
+        service.getLiveLatencyController().configure(new JSONObject().put("enabled", true).put("max", 100));
+        service.startPlaying(EPISODE, "Live", "Station", null, -1, new JSONObject(), true);
+        service.loop.runUntilIdle();
+        FakePlayer player = service.player();
+        PlayerMedia behind = player.getMedia();
+
+        player.progress(1000);
+        service.loop.runUntilIdle();
+
+        assertNotSame(behind, player.getMedia());
+        assertTrue(behind.isReleased());
+        assertFalse(player.getMedia().isReleased());
+        assertTrue(player.isPlaying());
+    }
+
+    @Test
+    public void crossfadedItemIsNotResumedAgain() throws Exception {
+        service.getPositionStore().configure(new JSONObject().put("resume", true));
+        service.getPositionStore().record(NEXT, 30000);
+        service.getCrossfader().configure(new JSONObject().put("enabled", true).put("duration", 3000));
+        service.getPlayQueue().add(NEXT, "Next", "Artist", null, new JSONObject(), false, -1);
+        play(EPISODE);
+        FakePlayer outgoing = service.player();
+        outgoing.setLength(60000);
+
+        outgoing.progress(58000);
+        service.loop.runUntilIdle();
+
+        FakePlayer incoming = service.player();
+        assertNotSame(outgoing, incoming);
+        assertEquals(NEXT, incoming.getMedia().getLocation());
+        assertTrue(incoming.isPlaying());
+        for (String option : ((FakePlayer.Media) incoming.getMedia()).options) {
+            assertFalse(option, option.startsWith(":start-time="));
+        }
+    }
+
+    @Test
+    public void preloadedItemIsResumedOnFreshMedia() throws Exception {
+        service.getPositionStore().configure(new JSONObject().put("resume", true));
+        service.getPositionStore().record(NEXT, 30000);
+        service.getPlayQueue().add(NEXT, "Next", "Artist", null, new JSONObject(), false, -1);
+        play(EPISODE);
+
+        service.player().end();
+        service.loop.runUntilIdle();
+
+        FakePlayer.Media media = (FakePlayer.Media) service.player().getMedia();
+        assertEquals(NEXT, media.getLocation());
+        assertTrue(media.options.contains(":start-time=30.0"));
+    }
+
+    private void play(String file) throws Exception {
+        service.startPlaying(file, "Title", "Artist", null, 0, new JSONObject(), false);
+        service.loop.runUntilIdle();
+    }
+
+    private JSONObject event(String type) {
+        for (JSONObject event : events) {
+            if (type.equals(event.optString("type"))) {
+                return event;
+            }
+        }
+        return null;
+    }
+
+    private static int last(List<Integer> list) {
+        return list.get(list.size() - 1);
+    }
+}
@@ -0,0 +1,85 @@
+package org.nypr.cordova.vlcplugin;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VLCPluginTest {
+
+    private static final String EPISODE = "http://127.0.0.1/episode.mp3";
+
+    private File root;
+    private File external;
+    private File internal;
+    private final List<File> directories = new ArrayList<File>();
+    private VLCPlugin plugin;
+    private PluginResult result;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("plugin").toFile();
+        external = new File(root, "external");
+        internal = new File(root, "internal");
+        plugin = new VLCPlugin() {
+            @Override
+            protected List<File> getLocalDirectories() {
+                return new ArrayList<File>(directories);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        plugin.onDestroy();
+        LocalStreamProxyTest.delete(root);
+    }
+
+    @Test
+    public void findsDownloadsInTheInternalDirectory() throws Exception {
+        directories.add(internal);
+        internal.mkdirs();
+        File episode = LocalFileIndexTest.download(internal, EPISODE);
+
+        JSONArray status = localStatus(EPISODE);
+        assertTrue(status.getJSONObject(0).getBoolean("local"));
+        assertEquals("file://" + episode.getAbsolutePath(), status.getJSONObject(0).getString("file"));
+    }
+
+    @Test
+    public void looksInExternalStorageOnceItIsMounted() throws Exception {
+        directories.add(internal);
+        assertFalse(localStatus(EPISODE).getJSONObject(0).getBoolean("local"));
+
+        // mounted later, with the episode on it
+        external.mkdirs();
+        File episode = LocalFileIndexTest.download(external, EPISODE);
+        directories.add(0, external);
+
+        JSONArray status = localStatus(EPISODE);
+        assertTrue(status.getJSONObject(0).getBoolean("local"));
+        assertEquals("file://" + episode.getAbsolutePath(), status.getJSONObject(0).getString("file"));
+    }
+
+    private JSONArray localStatus(String url) throws Exception {
+        result = null;
+        plugin.execute("localstatus", new JSONArray().put(new JSONArray().put(url)), new CallbackContext("test", null) {
+            @Override
+            public void sendPluginResult(PluginResult pluginResult) {
+                result = pluginResult;
+            }
+        });
+        return new JSONArray(result.getMessage());
+    }
+}
@@ -1,56 +1,144 @@
 var exec = require("cordova/exec");
 
+/**
+ * When batching is enabled (configure option batchWindow), the plugin delivers
+ * several messages as one {type: 'batch', events: [...]} message. Unpack it so callers
+ * still see one message per call.
+ */
+var unbatch = function(success) {
+  if (!success) {
+    return success;
+  }
+  return function(result) {
+    if (result && result.type === "batch") {
+      for (var i = 0; i < result.events.length; i++) {
+        success(result.events[i]);
+      }
+    } else {
+      success(result);
+    }
+  };
+};
+
 /**
  * This is a global variable called exposed by cordova
  */    
 var AudioPlayer = function(){};
 
-AudioPlayer.prototype.configure = function(success, error) {
-  exec(success, error, "AudioPlayerPlugin", "init",[]);
+AudioPlayer.prototype.configure = function(success, error, options) {
+  exec(unbatch(success), error, "AudioPlayerPlugin", "init", options ? [options] : []);
 };
 
 AudioPlayer.prototype.getaudiostate = function(success, error) {
-  exec(success, error, "AudioPlayerPlugin", "getaudiostate",[]);
+  exec(unbatch(success), error, "AudioPlayerPlugin", "getaudiostate",[]);
 };
 
 AudioPlayer.prototype.playstream = function(success, error, stream, info, extra) {
-  exec(success, error, "AudioPlayerPlugin", "playstream",[stream, info, extra]);
+  exec(unbatch(success), error, "AudioPlayerPlugin", "playstream",[stream, info, extra]);
 };
 
 AudioPlayer.prototype.playfile = function(success, error, url, info, position, extra) {
-  exec(success, error, "AudioPlayerPlugin", "playfile", [url, info, position, extra]);
+  exec(unbatch(success), error, "AudioPlayerPlugin", "playfile", [url, info, position, extra]);
 };
 
 AudioPlayer.prototype.pause = function(success, error) {
-  exec(success, error, "AudioPlayerPlugin", "pause", []);
+  exec(unbatch(success), error, "AudioPlayerPlugin", "pause", []);
 };
 
 AudioPlayer.prototype.stop = function(success, error) {
-  exec(success, error, "AudioPlayerPlugin", "stop", []);
+  exec(unbatch(success), error, "AudioPlayerPlugin", "stop", []);
 };
 
 AudioPlayer.prototype.setaudioinfo = function(success, error, json) {
-  exec(success, error, "AudioPlayerPlugin", "setaudioinfo", json);
+  exec(unbatch(success), error, "AudioPlayerPlugin", "setaudioinfo", json);
 };
 
 AudioPlayer.prototype.seek = function(success, error, interval) {
-  exec(success, error, "AudioPlayerPlugin", "seek", [interval]);
+  exec(unbatch(success), error, "AudioPlayerPlugin", "seek", [interval]);
 };
 
 AudioPlayer.prototype.seekto = function(success, error, position) {
-  exec(success, error, "AudioPlayerPlugin", "seekto", [position]);
+  exec(unbatch(success), error, "AudioPlayerPlugin", "seekto", [position]);
 };
 
 AudioPlayer.prototype.setuseragent = function(success, error, userAgent, readableName) {
-  exec(success, error, "AudioPlayerPlugin", "setuseragent", [userAgent, readableName]);
+  exec(unbatch(success), error, "AudioPlayerPlugin", "setuseragent", [userAgent, readableName]);
 };
 
 AudioPlayer.prototype.setpreviousenabled = function(success, error, enabled) {
-  exec(success, error, "AudioPlayerPlugin", "setpreviousenabled", [enabled]);
+  exec(unbatch(success), error, "AudioPlayerPlugin", "setpreviousenabled", [enabled]);
 };
 
 AudioPlayer.prototype.setnextenabled = function(success, error, enabled) {
-  exec(success, error, "AudioPlayerPlugin", "setnextenabled", [enabled]);
+  exec(unbatch(success), error, "AudioPlayerPlugin", "setnextenabled", [enabled]);
+};
+
+AudioPlayer.prototype.geteventstats = function(success, error) {
+  exec(unbatch(success), error, "AudioPlayerPlugin", "geteventstats", []);
+};
+
+AudioPlayer.prototype.getcommandstats = function(success, error) {
+  exec(unbatch(success), error, "AudioPlayerPlugin", "getcommandstats", []);
+};
+
+AudioPlayer.prototype.enqueue = function(success, error, url, info, extra, index, isStream) {
+  exec(unbatch(success), error, "AudioPlayerPlugin", "enqueue", [url, info, extra || {}, index === undefined ? -1 : index, !!isStream]);
+};
+
+AudioPlayer.prototype.dequeue = function(success, error, id) {
+  exec(unbatch(success), error, "AudioPlayerPlugin", "dequeue", [id]);
+};
+
+AudioPlayer.prototype.movequeueitem = function(success, error, id, index) {
+  exec(unbatch(success), error, "AudioPlayerPlugin", "movequeueitem", [id, index]);
+};
+
+AudioPlayer.prototype.skip = function(success, error) {
+  exec(unbatch(success), error, "AudioPlayerPlugin", "skip", []);
+};
+
+AudioPlayer.prototype.clearqueue = function(success, error) {
+  exec(unbatch(success), error, "AudioPlayerPlugin", "clearqueue", []);
+};
+
+AudioPlayer.prototype.getqueue = function(success, error) {
+  exec(unbatch(success), error, "AudioPlayerPlugin", "getqueue", []);
+};
+
+AudioPlayer.prototype.getcachestats = function(success, error) {
+  exec(unbatch(success), error, "AudioPlayerPlugin", "getcachestats", []);
+};
+
+AudioPlayer.prototype.download = function(success, error, url, chunks) {
+  exec(unbatch(success), error, "AudioPlayerPlugin", "download", chunks ? [url, chunks] : [url]);
+};
+
+AudioPlayer.prototype.canceldownload = function(success, error, url) {
+  exec(unbatch(success), error, "AudioPlayerPlugin", "canceldownload", [url]);
+};
+
+AudioPlayer.prototype.downloadstatus = function(success, error, url) {
+  exec(unbatch(success), error, "AudioPlayerPlugin", "downloadstatus", [url]);
+};
+
+AudioPlayer.prototype.getbufferingstats = function(success, error) {
+  exec(unbatch(success), error, "AudioPlayerPlugin", "getbufferingstats", []);
+};
+
+AudioPlayer.prototype.getplayerstate = function(success, error) {
+  exec(unbatch(success), error, "AudioPlayerPlugin", "getplayerstate", []);
+};
+
+AudioPlayer.prototype.getmetrics = function(success, error) {
+  exec(unbatch(success), error, "AudioPlayerPlugin", "getmetrics", []);
+};
+
+AudioPlayer.prototype.dumptrace = function(success, error, max) {
+  exec(unbatch(success), error, "AudioPlayerPlugin", "dumptrace", [max || 0]);
+};
+
+AudioPlayer.prototype.localstatus = function(success, error, urls) {
+  exec(unbatch(success), error, "AudioPlayerPlugin", "localstatus", [urls]);
 };
 
 module.exports = new AudioPlayer();